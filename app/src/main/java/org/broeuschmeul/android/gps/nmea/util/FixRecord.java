@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * Read-only view of the fix of an epoch, as decoded from its NMEA sentences.
+ * <p>
+ * The values are given as they were decoded, without any conversion: the coordinates are in
+ * nanodegrees (see {@link NmeaCoordinates}) and each optional value has its presence flag.
+ * The record is reused for later epochs, so it is only valid during the call that gives it.
+ */
+public interface FixRecord {
+
+    /**
+     * @return the UTC time of the fix in milliseconds since midnight, -1 if none
+     */
+    int getTimeOfDay();
+
+    /**
+     * @return the UTC time of the fix in milliseconds since the epoch
+     */
+    long getTime();
+
+    /**
+     * @return the system clock when the fix was started
+     */
+    long getSystemTime();
+
+    boolean hasLatitude();
+
+    /**
+     * @return the latitude in nanodegrees
+     */
+    long getLatitude();
+
+    boolean hasLongitude();
+
+    /**
+     * @return the longitude in nanodegrees
+     */
+    long getLongitude();
+
+    boolean hasAltitude();
+
+    /**
+     * @return the altitude above the mean sea level in meters
+     */
+    double getAltitude();
+
+    boolean hasSpeed();
+
+    /**
+     * @return the speed over ground in meters per second
+     */
+    float getSpeed();
+
+    boolean hasBearing();
+
+    /**
+     * @return the track made good in degrees
+     */
+    float getBearing();
+
+    boolean hasAccuracy();
+
+    /**
+     * @return the estimated horizontal accuracy in meters
+     */
+    float getAccuracy();
+
+    boolean hasVerticalAccuracy();
+
+    /**
+     * @return the estimated vertical accuracy in meters
+     */
+    float getVerticalAccuracy();
+
+    boolean hasSatellites();
+
+    /**
+     * @return the number of satellites given by GGA
+     */
+    int getSatellites();
+
+    boolean hasQuality();
+
+    /**
+     * @return the fix quality of GGA: 1 for GPS, 2 for DGPS, 4 for RTK...
+     */
+    int getQuality();
+
+    /**
+     * @return one of the {@link GsaRecord} FIX_TYPE constants, unknown if no GSA was received
+     */
+    int getFixType();
+
+    /**
+     * @return the number of satellites used for the fix, according to GSA
+     */
+    int getUsedCount();
+
+    /**
+     * @return true if the satellite was used for the fix, according to GSA
+     */
+    boolean isUsed(int prn);
+
+    /**
+     * @return the position dilution of precision, 0 if unknown
+     */
+    float getPdop();
+
+    /**
+     * @return the horizontal dilution of precision, 0 if unknown
+     */
+    float getHdop();
+
+    /**
+     * @return the vertical dilution of precision, 0 if unknown
+     */
+    float getVdop();
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * The content of the GSA sentences of an epoch: fix type, satellites used for the fix
+ * and dilutions of precision.
+ * <p>
+ * Multi-constellation receivers send one GSA per constellation, so the decoded sentences
+ * are merged: the used satellites are added, and the best fix type and the last DOP values are kept.
+ * The used PRNs (1 to 128) are kept in a bitmask of two longs.
+ */
+public class GsaRecord {
+
+    public static final int FIX_TYPE_UNKNOWN = 0;
+    public static final int FIX_TYPE_NONE = 1;
+    public static final int FIX_TYPE_2D = 2;
+    public static final int FIX_TYPE_3D = 3;
+
+    public static final int MAX_PRN = 128;
+
+    // indexes of the GSA data fields
+    private static final int GSA_FIX_TYPE = 1;
+    private static final int GSA_FIRST_PRN = 2;
+    private static final int GSA_PRN_COUNT = 12;
+    private static final int GSA_PDOP = 14;
+
+    private boolean empty = true;
+    private int fixType = FIX_TYPE_UNKNOWN;
+    private long usedPrnsLow;
+    private long usedPrnsHigh;
+    // 0 if unknown
+    private float pdop;
+    private float hdop;
+    private float vdop;
+
+    public void clear() {
+        empty = true;
+        fixType = FIX_TYPE_UNKNOWN;
+        usedPrnsLow = 0;
+        usedPrnsHigh = 0;
+        pdop = 0;
+        hdop = 0;
+        vdop = 0;
+    }
+
+    /**
+     * Merges a GSA sentence into the record.
+     *
+     * @throws NumberFormatException if a field is not valid
+     */
+    public void decode(NmeaSentence sentence) {
+        empty = false;
+
+        // fix type  : 1 - no fix / 2 - 2D / 3 - 3D
+        sentence.selectField(GSA_FIX_TYPE);
+        if (!sentence.fieldIsEmpty()) {
+            fixType = Math.max(fixType, sentence.fieldToInt());
+        }
+
+        // PRNs of satellites used for fix (space for 12)
+        for (int i = 0; i < GSA_PRN_COUNT; i++) {
+            sentence.selectField(GSA_FIRST_PRN + i);
+            if (!sentence.fieldIsEmpty()) {
+                setUsed(sentence.fieldToInt());
+            }
+        }
+
+        // PDOP, HDOP and VDOP (float)
+        sentence.selectField(GSA_PDOP);
+        if (!sentence.fieldIsEmpty()) {
+            pdop = sentence.fieldToFloat();
+        }
+        sentence.nextField();
+        if (!sentence.fieldIsEmpty()) {
+            hdop = sentence.fieldToFloat();
+        }
+        sentence.nextField();
+        if (!sentence.fieldIsEmpty()) {
+            vdop = sentence.fieldToFloat();
+        }
+    }
+
+    public void copyFrom(GsaRecord record) {
+        empty = record.empty;
+        fixType = record.fixType;
+        usedPrnsLow = record.usedPrnsLow;
+        usedPrnsHigh = record.usedPrnsHigh;
+        pdop = record.pdop;
+        hdop = record.hdop;
+        vdop = record.vdop;
+    }
+
+    /**
+     * @return true if no GSA sentence was decoded since the record was cleared
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @return one of the FIX_TYPE constants
+     */
+    public int getFixType() {
+        return fixType;
+    }
+
+    /**
+     * @return true if the satellite was used for the fix
+     */
+    public boolean isUsed(int prn) {
+        if (prn < 1 || prn > MAX_PRN) {
+            return false;
+        } else if (prn <= 64) {
+            return (usedPrnsLow & (1L << (prn - 1))) != 0;
+        } else {
+            return (usedPrnsHigh & (1L << (prn - 65))) != 0;
+        }
+    }
+
+    /**
+     * @return the number of satellites used for the fix
+     */
+    public int getUsedCount() {
+        return Long.bitCount(usedPrnsLow) + Long.bitCount(usedPrnsHigh);
+    }
+
+    /**
+     * @return the position dilution of precision, 0 if unknown
+     */
+    public float getPdop() {
+        return pdop;
+    }
+
+    /**
+     * @return the horizontal dilution of precision, 0 if unknown
+     */
+    public float getHdop() {
+        return hdop;
+    }
+
+    /**
+     * @return the vertical dilution of precision, 0 if unknown
+     */
+    public float getVdop() {
+        return vdop;
+    }
+
+    private void setUsed(int prn) {
+        if (prn >= 1 && prn <= 64) {
+            usedPrnsLow |= 1L << (prn - 1);
+        } else if (prn > 64 && prn <= MAX_PRN) {
+            usedPrnsHigh |= 1L << (prn - 65);
+        }
+    }
+}
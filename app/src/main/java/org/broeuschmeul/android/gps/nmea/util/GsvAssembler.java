@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * Assembles the GSV sentences into a {@link SatelliteTable}.
+ * <p>
+ * The satellites in view are sent in groups of up to 9 GSV messages per talker (GP, GL, GA, GB...).
+ * Each talker has its own group being received, and when the last message of a group arrives
+ * the satellites of this group and the ones of the other talkers are written in the back table,
+ * which is then published in place of the front one. A group with a missing message is dropped,
+ * and the satellites of a talker that didn't send a group for a while are forgotten.
+ * <p>
+ * Only the reading thread calls {@link #onSentence(NmeaSentence, long)},
+ * the published table can be read from any thread.
+ */
+public class GsvAssembler {
+
+    private static final int MAX_TALKERS = 8;
+
+    // satellites of a talker are forgotten after this time without a complete group
+    private static final long STALE_TIMEOUT = 5000;
+
+    // indexes of the GSV data fields
+    private static final int GSV_MESSAGE_COUNT = 0;
+    private static final int GSV_MESSAGE_NUMBER = 1;
+    private static final int GSV_FIRST_SATELLITE = 3;
+    private static final int GSV_FIELDS_PER_SATELLITE = 4;
+
+    private final SatelliteTable[] tables = {new SatelliteTable(), new SatelliteTable()};
+    private volatile SatelliteTable published = tables[0];
+    private volatile int sequence = 0;
+
+    private int talkerCount = 0;
+    private final int[] talkers = new int[MAX_TALKERS];
+    private final SatelliteTable[] groups = new SatelliteTable[MAX_TALKERS];
+    private final int[] groupSizes = new int[MAX_TALKERS];
+    // next message number expected in the group of the talker, 0 if no group is being received
+    private final int[] nextMessages = new int[MAX_TALKERS];
+    private final long[] lastUpdates = new long[MAX_TALKERS];
+
+    /**
+     * @return the last complete table, only valid until the next update
+     * @see SatelliteTable
+     */
+    public SatelliteTable getSatelliteTable() {
+        return published;
+    }
+
+    /**
+     * @return the number of updates of the table, so that readers can tell when it changed
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Decodes a GSV sentence.
+     *
+     * @param sentence the sentence
+     * @param now      the current time in milliseconds, from a monotonic clock
+     * @return true if the sentence completed a group and a new table was published
+     * @throws NumberFormatException if a field is not valid
+     */
+    public boolean onSentence(NmeaSentence sentence, long now) {
+        int talker = (sentence.addressByteAt(0) << 8) | sentence.addressByteAt(1);
+        int slot = slotOf(talker);
+        if (slot < 0) {
+            return false;
+        }
+
+        sentence.selectField(GSV_MESSAGE_COUNT);
+        int messageCount = sentence.fieldIsEmpty() ? 0 : sentence.fieldToInt();
+        sentence.selectField(GSV_MESSAGE_NUMBER);
+        int messageNumber = sentence.fieldIsEmpty() ? 0 : sentence.fieldToInt();
+
+        if (messageCount < 1 || messageNumber < 1 || messageNumber > messageCount) {
+            nextMessages[slot] = 0;
+            return false;
+        }
+
+        SatelliteTable group = groups[slot];
+        if (messageNumber == 1) {
+            group.beginUpdate();
+            groupSizes[slot] = messageCount;
+        } else if (messageNumber != nextMessages[slot] || messageCount != groupSizes[slot]) {
+            // we missed a message of the group
+            nextMessages[slot] = 0;
+            return false;
+        }
+
+        int fieldCount = sentence.getFieldCount();
+        for (int field = GSV_FIRST_SATELLITE;
+             field + GSV_FIELDS_PER_SATELLITE <= fieldCount;
+             field += GSV_FIELDS_PER_SATELLITE) {
+            sentence.selectField(field);
+            if (sentence.fieldIsEmpty()) {
+                continue;
+            }
+            int prn = sentence.fieldToInt();
+            sentence.nextField();
+            int elevation = sentence.fieldIsEmpty() ? -1 : sentence.fieldToInt();
+            sentence.nextField();
+            int azimuth = sentence.fieldIsEmpty() ? -1 : sentence.fieldToInt();
+            sentence.nextField();
+            int snr = sentence.fieldIsEmpty() ? -1 : sentence.fieldToInt();
+            group.add(talker, prn, elevation, azimuth, snr);
+        }
+
+        if (messageNumber < messageCount) {
+            nextMessages[slot] = messageNumber + 1;
+            return false;
+        }
+
+        nextMessages[slot] = 0;
+        lastUpdates[slot] = now;
+        publish(slot, now);
+        return true;
+    }
+
+    private void publish(int updatedSlot, long now) {
+        SatelliteTable front = published;
+        SatelliteTable back = (front == tables[0]) ? tables[1] : tables[0];
+
+        // a reader may still be reading the back table, from when it was the published one
+        synchronized (back) {
+            back.beginUpdate();
+            for (int slot = 0; slot < talkerCount; slot++) {
+                if (slot == updatedSlot) {
+                    back.addAll(groups[slot], talkers[slot]);
+                } else if (now - lastUpdates[slot] <= STALE_TIMEOUT) {
+                    back.addAll(front, talkers[slot]);
+                }
+            }
+            back.endUpdate(System.currentTimeMillis());
+        }
+
+        published = back;
+        sequence++;
+    }
+
+    private int slotOf(int talker) {
+        for (int slot = 0; slot < talkerCount; slot++) {
+            if (talkers[slot] == talker) {
+                return slot;
+            }
+        }
+        if (talkerCount == MAX_TALKERS) {
+            return -1;
+        }
+        talkers[talkerCount] = talker;
+        groups[talkerCount] = new SatelliteTable();
+        return talkerCount++;
+    }
+}
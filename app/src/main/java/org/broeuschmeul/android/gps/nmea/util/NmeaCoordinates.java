@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * Fixed point decoding of the NMEA coordinates.
+ * <p>
+ * A NMEA latitude (ddmm.M) or longitude (dddmm.M) is read digit by digit into
+ * a number of nanodegrees (1e-9 degree, about 0.1 mm on the ground), so the minutes
+ * are never rounded through a double and the 7 or 8 decimals given by RTK receivers are kept.
+ * The value is converted to degrees only once, when a double is really needed.
+ */
+public final class NmeaCoordinates {
+
+    public static final long NANODEGREES_PER_DEGREE = 1000000000L;
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    private NmeaCoordinates() {
+    }
+
+    /**
+     * Decodes an unsigned NMEA coordinate.
+     *
+     * @param data buffer holding the coordinate
+     * @param from index of the first digit
+     * @param to   index after the last digit
+     * @return the coordinate in nanodegrees
+     * @throws NumberFormatException if the value is not a valid coordinate
+     */
+    public static long parseNanoDegrees(byte[] data, int from, int to) {
+        int i = from;
+        long degreesMinutes = 0;
+        while (i < to && data[i] != '.') {
+            degreesMinutes = degreesMinutes * 10 + digit(data[i]);
+            i++;
+        }
+
+        if (i == from) {
+            throw new NumberFormatException("Invalid NMEA coordinate");
+        }
+
+        // Fraction of minutes, in units of 1e-9 minute
+        long fraction = 0;
+        if (i < to) {
+            i++;
+            int decimals = 0;
+            for (; i < to; i++) {
+                int digit = digit(data[i]);
+                if (decimals < 9) {
+                    fraction = fraction * 10 + digit;
+                    decimals++;
+                } else {
+                    // rounds on the first digit we can't keep, checking the rest of the field anyway
+                    if (decimals == 9 && digit >= 5) {
+                        fraction++;
+                    }
+                    decimals = 10;
+                }
+            }
+            if (decimals < 9) {
+                fraction *= POWERS_OF_TEN[9 - decimals];
+            }
+        }
+
+        long degrees = degreesMinutes / 100;
+        long minutes = (degreesMinutes % 100) * POWERS_OF_TEN[9] + fraction;
+
+        // 1e-9 minute / 60 = 1 nanodegree, rounded to the nearest
+        return degrees * NANODEGREES_PER_DEGREE + (minutes + 30) / 60;
+    }
+
+    /**
+     * Decodes an unsigned NMEA coordinate.
+     *
+     * @see #parseNanoDegrees(byte[], int, int)
+     */
+    public static long parseNanoDegrees(String value) {
+        int length = value.length();
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) value.charAt(i);
+        }
+        return parseNanoDegrees(data, 0, length);
+    }
+
+    /**
+     * Applies the hemisphere to an unsigned coordinate.
+     *
+     * @param nanoDegrees the unsigned coordinate
+     * @param hemisphere  the hemisphere field (N/S or E/W)
+     * @param positive    the positive hemisphere, 'N' or 'E'
+     * @param negative    the negative hemisphere, 'S' or 'W'
+     * @return the signed coordinate, 0 for an unknown hemisphere
+     */
+    public static long applyHemisphere(long nanoDegrees, char hemisphere, char positive, char negative) {
+        if (hemisphere == positive) {
+            return nanoDegrees;
+        } else if (hemisphere == negative) {
+            return -nanoDegrees;
+        }
+        return 0;
+    }
+
+    public static double toDegrees(long nanoDegrees) {
+        return nanoDegrees / (double) NANODEGREES_PER_DEGREE;
+    }
+
+    private static int digit(byte b) {
+        int digit = b - '0';
+        if (digit < 0 || digit > 9) {
+            throw new NumberFormatException("Invalid digit in NMEA coordinate");
+        }
+        return digit;
+    }
+}
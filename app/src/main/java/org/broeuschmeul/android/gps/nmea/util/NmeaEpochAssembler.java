@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * Groups the NMEA sentences into epochs, using the UTC time of the fix they carry,
+ * and tells when an epoch is complete so that its fix can be published right away
+ * instead of waiting for the first sentence of the next epoch.
+ * <p>
+ * Unless a completion mask is given, the sentence types making an epoch are learnt from the stream:
+ * when an epoch is ended by the next one, the types seen during it become the completion rule.
+ * A type showing up after an epoch was published is added to the rule.
+ * Sentences without a time (GSA, GSV, VTG, or a timed sentence with an empty time) belong to
+ * the open epoch, or to the next one if there is no open epoch.
+ * <p>
+ * An epoch that is still open after the epoch timeout is closed, so that a partial fix is still
+ * published if the last sentence is missing. By default the timeout is half way between the end of
+ * the burst of sentences of an epoch and the start of the next one, as learnt from the stream.
+ * <p>
+ * An instance is not thread safe.
+ */
+public class NmeaEpochAssembler {
+
+    public static final int GGA = 1;
+    public static final int RMC = 1 << 1;
+    public static final int GSA = 1 << 2;
+    public static final int GSV = 1 << 3;
+    public static final int VTG = 1 << 4;
+    public static final int GLL = 1 << 5;
+    public static final int GNS = 1 << 6;
+
+    /**
+     * The sentence belongs to the open epoch (or to the next one for a sentence without time).
+     */
+    public static final int CURRENT_EPOCH = 0;
+
+    /**
+     * The sentence starts a new epoch: the previous one, if still open, has just been closed.
+     */
+    public static final int NEW_EPOCH = 1;
+
+    /**
+     * The sentence belongs to an epoch that was already closed, its data comes too late.
+     */
+    public static final int CLOSED_EPOCH = 2;
+
+    // longest period between two epochs we can learn, in milliseconds
+    private static final int MAX_PERIOD = 10000;
+
+    private int completionMask = 0;
+    private long timeout = 0;
+
+    private int learntMask = 0;
+    private long learntSpan = -1;
+    private int learntPeriod = -1;
+
+    private boolean epochOpen = false;
+    private boolean epochDamaged = false;
+    private int epochTime = -1;
+    private int epochMask = 0;
+    private long epochStart;
+    private long epochLast;
+
+    private int closedTime = -1;
+    private int pendingMask = 0;
+
+    /**
+     * Sets the sentence types that make a complete epoch.
+     *
+     * @param mask a combination of the sentence type constants, 0 to learn it from the stream
+     */
+    public void setCompletionMask(int mask) {
+        completionMask = mask;
+    }
+
+    /**
+     * @return the sentence types that currently make a complete epoch, 0 if not known yet
+     */
+    public int getCompletionMask() {
+        return completionMask != 0 ? completionMask : learntMask;
+    }
+
+    /**
+     * @param timeout time after which an open epoch is closed, in milliseconds,
+     *                0 to learn it from the stream
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the current epoch timeout in milliseconds, 0 if there is none
+     */
+    public long getTimeout() {
+        if (timeout > 0) {
+            return timeout;
+        }
+        if (learntPeriod > 0 && learntSpan >= 0 && learntSpan < learntPeriod) {
+            return learntSpan + (learntPeriod - learntSpan) / 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Starts with what was learnt from a previous stream, so that the first epochs can be
+     * published as soon as they are complete. It is still updated from the new stream.
+     *
+     * @param mask   the sentence types of an epoch, 0 if unknown
+     * @param period the period between two epochs in milliseconds, -1 if unknown
+     */
+    public void seed(int mask, int period) {
+        learntMask = mask;
+        learntPeriod = (period > 0 && period <= MAX_PERIOD) ? period : -1;
+    }
+
+    /**
+     * @return the period between two epochs learnt from the stream, in milliseconds, -1 if unknown
+     */
+    public int getPeriod() {
+        return learntPeriod;
+    }
+
+    /**
+     * @return the time at which the open epoch will be closed by {@link #closeIfExpired(long)},
+     * -1 if there is no open epoch or no timeout
+     */
+    public long getExpiryTime() {
+        long epochTimeout = getTimeout();
+        if (epochOpen && epochTimeout > 0) {
+            return epochStart + epochTimeout + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Records a sentence.
+     *
+     * @param type the sentence type constant
+     * @param time UTC time of the sentence in milliseconds since midnight, -1 if it has none
+     * @param now  the current time in milliseconds, from a monotonic clock
+     * @return {@link #CURRENT_EPOCH}, {@link #NEW_EPOCH} or {@link #CLOSED_EPOCH}
+     */
+    public int onSentence(int type, int time, long now) {
+        if (time < 0 || (epochOpen && time == epochTime)) {
+            if (epochOpen) {
+                epochMask |= type;
+                epochLast = now;
+            } else {
+                pendingMask |= type;
+            }
+            return CURRENT_EPOCH;
+        }
+
+        if (!epochOpen && time == closedTime) {
+            // the rule we learnt misses this sentence
+            if (completionMask == 0) {
+                learntMask |= type;
+            }
+            return CLOSED_EPOCH;
+        }
+
+        int previousTime = epochOpen ? epochTime : closedTime;
+        if (epochOpen) {
+            // ended by the next epoch, so we've seen all of its sentences
+            if (!epochDamaged) {
+                learntMask = epochMask;
+                learntSpan = epochLast - epochStart;
+            }
+            close();
+        }
+
+        if (previousTime >= 0 && time > previousTime && time - previousTime <= MAX_PERIOD) {
+            learntPeriod = time - previousTime;
+        }
+
+        epochOpen = true;
+        epochDamaged = false;
+        epochTime = time;
+        epochMask = pendingMask | type;
+        epochStart = now;
+        epochLast = now;
+        pendingMask = 0;
+        return NEW_EPOCH;
+    }
+
+    /**
+     * Closes the open epoch if it has all the sentences of the completion rule.
+     *
+     * @return true if the epoch has just been closed
+     */
+    public boolean closeIfComplete() {
+        int mask = getCompletionMask();
+        if (epochOpen && mask != 0 && (epochMask & mask) == mask) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closes the open epoch if it is older than the epoch timeout.
+     *
+     * @param now the current time in milliseconds, from the clock given to {@link #onSentence(int, int, long)}
+     * @return true if the epoch has just been closed
+     */
+    public boolean closeIfExpired(long now) {
+        long epochTimeout = getTimeout();
+        if (epochOpen && epochTimeout > 0 && now - epochStart > epochTimeout) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the open epoch as missing some data (e.g. after an invalid sentence),
+     * so that its sentences are not used to learn the completion rule.
+     */
+    public void damage() {
+        epochDamaged = true;
+    }
+
+    /**
+     * Forgets the open epoch and everything that was learnt.
+     */
+    public void reset() {
+        learntMask = 0;
+        learntSpan = -1;
+        learntPeriod = -1;
+        epochOpen = false;
+        epochDamaged = false;
+        epochTime = -1;
+        epochMask = 0;
+        closedTime = -1;
+        pendingMask = 0;
+    }
+
+    private void close() {
+        epochOpen = false;
+        closedTime = epochTime;
+        epochTime = -1;
+        epochMask = 0;
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.nmea.util;
+
+import android.location.Location;
+import android.os.Build;
+import android.os.Bundle;
+
+/**
+ * Mutable record of a GPS fix, filled by the NMEA sentences of one epoch.
+ * <p>
+ * All the values are primitive fields with a presence flag, so collecting a fix doesn't box
+ * or allocate anything. The fix is only turned into an Android {@link Location} when it is
+ * published, with {@link #toLocation(Location)} which reuses the given Location.
+ * Instances are recycled through a {@link Pool}.
+ * Listeners only see it through its read-only {@link FixRecord} view.
+ */
+public class NmeaFix implements FixRecord {
+
+    private static final int HAS_LATITUDE = 1;
+    private static final int HAS_LONGITUDE = 1 << 1;
+    private static final int HAS_ALTITUDE = 1 << 2;
+    private static final int HAS_SPEED = 1 << 3;
+    private static final int HAS_BEARING = 1 << 4;
+    private static final int HAS_ACCURACY = 1 << 5;
+    private static final int HAS_SATELLITES = 1 << 6;
+    private static final int HAS_VERTICAL_ACCURACY = 1 << 7;
+    private static final int HAS_QUALITY = 1 << 8;
+
+    private int flags;
+
+    // UTC time of the fix in milliseconds since midnight, -1 if none
+    private int timeOfDay = -1;
+    private long time;
+    private long systemTime;
+
+    // coordinates in nanodegrees
+    private long latitude;
+    private long longitude;
+    private double altitude;
+    private float speed;
+    private float bearing;
+    private float accuracy;
+    private float verticalAccuracy;
+    private int satellites;
+    private int quality;
+    private final GsaRecord gsa = new GsaRecord();
+
+    /**
+     * Forgets all the values of the fix, so that it can be reused.
+     */
+    public void clear() {
+        flags = 0;
+        timeOfDay = -1;
+        time = 0;
+        systemTime = 0;
+        latitude = 0;
+        longitude = 0;
+        altitude = 0;
+        speed = 0;
+        bearing = 0;
+        accuracy = 0;
+        verticalAccuracy = 0;
+        satellites = 0;
+        quality = 0;
+        gsa.clear();
+    }
+
+    /**
+     * @param timeOfDay UTC time of the fix in milliseconds since midnight
+     * @param time      UTC time of the fix in milliseconds since the epoch
+     */
+    public void setTime(int timeOfDay, long time) {
+        this.timeOfDay = timeOfDay;
+        this.time = time;
+    }
+
+    @Override
+    public int getTimeOfDay() {
+        return timeOfDay;
+    }
+
+    @Override
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @param systemTime the system clock when the fix was started
+     */
+    public void setSystemTime(long systemTime) {
+        this.systemTime = systemTime;
+    }
+
+    @Override
+    public long getSystemTime() {
+        return systemTime;
+    }
+
+    /**
+     * @param latitude the latitude in nanodegrees
+     * @see NmeaCoordinates
+     */
+    public void setLatitude(long latitude) {
+        this.latitude = latitude;
+        flags |= HAS_LATITUDE;
+    }
+
+    @Override
+    public boolean hasLatitude() {
+        return (flags & HAS_LATITUDE) != 0;
+    }
+
+    @Override
+    public long getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * @param longitude the longitude in nanodegrees
+     * @see NmeaCoordinates
+     */
+    public void setLongitude(long longitude) {
+        this.longitude = longitude;
+        flags |= HAS_LONGITUDE;
+    }
+
+    @Override
+    public boolean hasLongitude() {
+        return (flags & HAS_LONGITUDE) != 0;
+    }
+
+    @Override
+    public long getLongitude() {
+        return longitude;
+    }
+
+    public void setAltitude(double altitude) {
+        this.altitude = altitude;
+        flags |= HAS_ALTITUDE;
+    }
+
+    public void removeAltitude() {
+        altitude = 0;
+        flags &= ~HAS_ALTITUDE;
+    }
+
+    @Override
+    public boolean hasAltitude() {
+        return (flags & HAS_ALTITUDE) != 0;
+    }
+
+    @Override
+    public double getAltitude() {
+        return altitude;
+    }
+
+    /**
+     * @param speed the speed in meters per second
+     */
+    public void setSpeed(float speed) {
+        this.speed = speed;
+        flags |= HAS_SPEED;
+    }
+
+    @Override
+    public boolean hasSpeed() {
+        return (flags & HAS_SPEED) != 0;
+    }
+
+    @Override
+    public float getSpeed() {
+        return speed;
+    }
+
+    public void setBearing(float bearing) {
+        this.bearing = bearing;
+        flags |= HAS_BEARING;
+    }
+
+    @Override
+    public boolean hasBearing() {
+        return (flags & HAS_BEARING) != 0;
+    }
+
+    @Override
+    public float getBearing() {
+        return bearing;
+    }
+
+    public void setAccuracy(float accuracy) {
+        this.accuracy = accuracy;
+        flags |= HAS_ACCURACY;
+    }
+
+    @Override
+    public boolean hasAccuracy() {
+        return (flags & HAS_ACCURACY) != 0;
+    }
+
+    @Override
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * @param verticalAccuracy the estimated vertical accuracy in meters
+     */
+    public void setVerticalAccuracy(float verticalAccuracy) {
+        this.verticalAccuracy = verticalAccuracy;
+        flags |= HAS_VERTICAL_ACCURACY;
+    }
+
+    @Override
+    public boolean hasVerticalAccuracy() {
+        return (flags & HAS_VERTICAL_ACCURACY) != 0;
+    }
+
+    @Override
+    public float getVerticalAccuracy() {
+        return verticalAccuracy;
+    }
+
+    /**
+     * @param record the GSA sentences of the epoch, copied into the fix
+     */
+    public void setGsa(GsaRecord record) {
+        gsa.copyFrom(record);
+    }
+
+    /**
+     * @return the GSA sentences of the epoch, empty if none was received
+     */
+    public GsaRecord getGsa() {
+        return gsa;
+    }
+
+    public void setSatellites(int satellites) {
+        this.satellites = satellites;
+        flags |= HAS_SATELLITES;
+    }
+
+    @Override
+    public boolean hasSatellites() {
+        return (flags & HAS_SATELLITES) != 0;
+    }
+
+    @Override
+    public int getSatellites() {
+        return satellites;
+    }
+
+    /**
+     * @param quality the fix quality of the GGA sentence
+     */
+    public void setQuality(int quality) {
+        this.quality = quality;
+        flags |= HAS_QUALITY;
+    }
+
+    @Override
+    public boolean hasQuality() {
+        return (flags & HAS_QUALITY) != 0;
+    }
+
+    @Override
+    public int getQuality() {
+        return quality;
+    }
+
+    @Override
+    public int getFixType() {
+        return gsa.getFixType();
+    }
+
+    @Override
+    public int getUsedCount() {
+        return gsa.getUsedCount();
+    }
+
+    @Override
+    public boolean isUsed(int prn) {
+        return gsa.isUsed(prn);
+    }
+
+    @Override
+    public float getPdop() {
+        return gsa.getPdop();
+    }
+
+    @Override
+    public float getHdop() {
+        return gsa.getHdop();
+    }
+
+    @Override
+    public float getVdop() {
+        return gsa.getVdop();
+    }
+
+    /**
+     * Copies the fix into the given Location, overwriting all its values.
+     * <p>
+     * The extras Bundle of the Location is created once and then updated in place,
+     * as {@link Location#setExtras(Bundle)} makes a copy of it.
+     *
+     * @param location the Location to fill
+     * @return the given location
+     */
+    public Location toLocation(Location location) {
+        location.setTime(time);
+        location.setLatitude(NmeaCoordinates.toDegrees(latitude));
+        location.setLongitude(NmeaCoordinates.toDegrees(longitude));
+
+        if (hasAltitude()) {
+            location.setAltitude(altitude);
+        } else {
+            location.removeAltitude();
+        }
+
+        if (hasSpeed()) {
+            location.setSpeed(speed);
+        } else {
+            location.removeSpeed();
+        }
+
+        if (hasBearing()) {
+            location.setBearing(bearing);
+        } else {
+            location.removeBearing();
+        }
+
+        if (hasAccuracy()) {
+            location.setAccuracy(accuracy);
+        } else {
+            location.removeAccuracy();
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            if (hasVerticalAccuracy()) {
+                location.setVerticalAccuracyMeters(verticalAccuracy);
+            } else {
+                location.removeVerticalAccuracy();
+            }
+        }
+
+        Bundle extras = location.getExtras();
+        if (extras == null) {
+            location.setExtras(new Bundle());
+            extras = location.getExtras();
+        }
+
+        if (hasSatellites()) {
+            extras.putInt(NmeaParser.SATELLITE_KEY, satellites);
+        } else {
+            extras.remove(NmeaParser.SATELLITE_KEY);
+        }
+        if (gsa.getFixType() != GsaRecord.FIX_TYPE_UNKNOWN) {
+            extras.putInt(NmeaParser.FIX_TYPE_KEY, gsa.getFixType());
+        } else {
+            extras.remove(NmeaParser.FIX_TYPE_KEY);
+        }
+        extras.putLong(NmeaParser.SYSTEM_TIME_FIX, systemTime);
+
+        return location;
+    }
+
+    @Override
+    public String toString() {
+        return "NmeaFix[time=" + time +
+                " lat=" + NmeaCoordinates.toDegrees(latitude) +
+                " lon=" + NmeaCoordinates.toDegrees(longitude) +
+                (hasAltitude() ? " alt=" + altitude : "") +
+                (hasSpeed() ? " vel=" + speed : "") +
+                (hasBearing() ? " bear=" + bearing : "") +
+                (hasAccuracy() ? " acc=" + accuracy : "") +
+                (hasSatellites() ? " sats=" + satellites : "") +
+                (hasQuality() ? " quality=" + quality : "") +
+                (gsa.isEmpty() ? "" : " fixType=" + gsa.getFixType() + " used=" + gsa.getUsedCount() +
+                        " pdop=" + gsa.getPdop() + " hdop=" + gsa.getHdop() + " vdop=" + gsa.getVdop()) +
+                "]";
+    }
+
+    /**
+     * A small pool of fixes, so that a new fix doesn't have to be allocated for every epoch.
+     * A fix that is not needed anymore must be given back with {@link #release(NmeaFix)}.
+     */
+    public static class Pool {
+        private final NmeaFix[] fixes;
+        private int size = 0;
+
+        public Pool(int capacity) {
+            fixes = new NmeaFix[capacity];
+        }
+
+        /**
+         * @return a cleared fix, taken from the pool if there is one available
+         */
+        public synchronized NmeaFix acquire() {
+            if (size == 0) {
+                return new NmeaFix();
+            }
+            size--;
+            NmeaFix fix = fixes[size];
+            fixes[size] = null;
+            return fix;
+        }
+
+        /**
+         * Gives back a fix to the pool. The fix must not be used anymore by the caller.
+         */
+        public synchronized void release(NmeaFix fix) {
+            if (fix != null && size < fixes.length) {
+                fix.clear();
+                fixes[size] = fix;
+                size++;
+            }
+        }
+    }
+}
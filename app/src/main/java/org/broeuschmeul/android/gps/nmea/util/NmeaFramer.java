@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * Splits the raw bytes received from a GPS into NMEA sentences, without decoding them into Strings.
+ * <p>
+ * A sentence starts with "$" (or "!" for encapsulated sentences) and ends with "*hh\r\n".
+ * Any other byte is garbage: a partial sentence is dropped as soon as something unexpected comes,
+ * and framing starts again at the next start character, even in the middle of a line.
+ * A sentence only ended by "\n" gets its missing "\r" back.
+ * <p>
+ * When a sentence lies within the bytes given to {@link #feed(byte[], int, int, long)} it is
+ * handed to the listener in place, only a sentence split over two reads is copied.
+ */
+public class NmeaFramer {
+
+    /**
+     * Longest sentence accepted: 82 characters for standard sentences,
+     * some proprietary ones are longer.
+     */
+    public static final int MAX_SENTENCE_LENGTH = 256;
+
+    private static final int SEARCHING = 0;
+    private static final int BODY = 1;
+    private static final int CHECKSUM_1 = 2;
+    private static final int CHECKSUM_2 = 3;
+    private static final int CR = 4;
+    private static final int LF = 5;
+
+    /**
+     * Receives the framed sentences.
+     */
+    public interface Listener {
+        /**
+         * @param buffer    the buffer holding the sentence, only valid during the call
+         * @param start     index of the leading "$" or "!"
+         * @param end       index after the final "\n"
+         * @param timestamp the time the end of the sentence was received
+         */
+        void onSentence(byte[] buffer, int start, int end, long timestamp);
+    }
+
+    private final Listener listener;
+
+    private int state = SEARCHING;
+    // the beginning of a sentence split between two reads
+    private final byte[] pending = new byte[MAX_SENTENCE_LENGTH];
+    private int pendingLength = 0;
+
+    private long sentenceCount = 0;
+    private long garbageCount = 0;
+    private long droppedCount = 0;
+
+    public NmeaFramer(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Frames the bytes received.
+     *
+     * @param timestamp the time the bytes were received
+     */
+    public void feed(byte[] data, int offset, int length, long timestamp) {
+        int end = offset + length;
+        // start of the current sentence in data, -1 if it started in a previous read
+        int start = (state == SEARCHING) ? offset : -1;
+
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+
+            if (b == '$' || b == '!') {
+                if (state != SEARCHING) {
+                    drop();
+                }
+                state = BODY;
+                start = i;
+                continue;
+            }
+
+            if (state == SEARCHING) {
+                garbageCount++;
+                continue;
+            }
+
+            int sentenceLength = (start >= 0) ? i + 1 - start : pendingLength + i + 1 - offset;
+            if (sentenceLength > MAX_SENTENCE_LENGTH) {
+                drop();
+                continue;
+            }
+
+            switch (state) {
+                case BODY:
+                    if (b == '*') {
+                        state = CHECKSUM_1;
+                    } else if (b < 0x20 || b > 0x7E) {
+                        drop();
+                        continue;
+                    }
+                    break;
+
+                case CHECKSUM_1:
+                case CHECKSUM_2:
+                    if (!isHexDigit(b)) {
+                        drop();
+                        continue;
+                    }
+                    state++;
+                    break;
+
+                case CR:
+                    if (b == '\n') {
+                        // no "\r" before the "\n": the sentence is rebuilt with it
+                        append(data, start >= 0 ? start : offset, i);
+                        if (pendingLength + 2 > MAX_SENTENCE_LENGTH) {
+                            drop();
+                            continue;
+                        }
+                        pending[pendingLength++] = '\r';
+                        pending[pendingLength++] = '\n';
+                        emit(pending, 0, pendingLength, timestamp);
+                        continue;
+                    }
+                    if (b != '\r') {
+                        drop();
+                        continue;
+                    }
+                    state = LF;
+                    break;
+
+                case LF:
+                    if (b != '\n') {
+                        drop();
+                        continue;
+                    }
+                    if (start >= 0) {
+                        emit(data, start, i + 1, timestamp);
+                    } else {
+                        append(data, offset, i + 1);
+                        emit(pending, 0, pendingLength, timestamp);
+                    }
+                    continue;
+            }
+        }
+
+        // keep the beginning of a sentence for the next read
+        if (state != SEARCHING) {
+            append(data, start >= 0 ? start : offset, end);
+        }
+    }
+
+    private void append(byte[] data, int from, int to) {
+        int count = Math.min(to - from, MAX_SENTENCE_LENGTH - pendingLength);
+        System.arraycopy(data, from, pending, pendingLength, count);
+        pendingLength += count;
+    }
+
+    private void emit(byte[] buffer, int start, int end, long timestamp) {
+        state = SEARCHING;
+        pendingLength = 0;
+        sentenceCount++;
+        listener.onSentence(buffer, start, end, timestamp);
+    }
+
+    private void drop() {
+        state = SEARCHING;
+        pendingLength = 0;
+        droppedCount++;
+    }
+
+    private static boolean isHexDigit(byte b) {
+        return (b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f');
+    }
+
+    /**
+     * Forgets a partial sentence, e.g. when the link is reopened.
+     */
+    public void reset() {
+        state = SEARCHING;
+        pendingLength = 0;
+    }
+
+    /**
+     * @return the number of sentences framed
+     */
+    public long getSentenceCount() {
+        return sentenceCount;
+    }
+
+    /**
+     * @return the number of bytes skipped outside of any sentence
+     */
+    public long getGarbageCount() {
+        return garbageCount;
+    }
+
+    /**
+     * @return the number of partial sentences dropped
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -21,14 +21,8 @@
 
 package org.broeuschmeul.android.gps.nmea.util;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Locale;
-import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import android.annotation.SuppressLint;
+import java.nio.ByteBuffer;
+
 import android.content.Context;
 import android.location.Criteria;
 import android.location.Location;
@@ -37,8 +31,6 @@ import android.location.LocationProvider;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.SystemClock;
-import android.text.TextUtils;
-import android.text.TextUtils.SimpleStringSplitter;
 import android.util.Log;
 
 import org.broeuschmeul.android.gps.usb.provider.BuildConfig;
@@ -59,14 +51,254 @@ public class NmeaParser {
 
     public static final String SATELLITE_KEY = "satellites";
     public static final String SYSTEM_TIME_FIX = "system_time_fix";
+    /**
+     * Extra of the published Locations giving the fix type from GSA: 1 no fix, 2 for 2D, 3 for 3D.
+     */
+    public static final String FIX_TYPE_KEY = "fix_type";
 
-    private Context appContext;
+    /**
+     * Talker to use to register a decoder for a sentence type whatever the talker.
+     */
+    public static final String ANY_TALKER = null;
+
+    /**
+     * Talker to use to register a decoder for proprietary ($P...) sentences.
+     */
+    public static final String PROPRIETARY_TALKER = "P";
+
+    /**
+     * Decodes one type of NMEA sentence.
+     */
+    public interface SentenceHandler {
+        /**
+         * Called for each valid sentence of the type the handler is registered for.
+         *
+         * @param sentence the sentence, positioned before its first data field.
+         *                 It is only valid during the call.
+         */
+        void onSentence(NmeaSentence sentence);
+    }
+
+    /**
+     * Receives the records decoded from the NMEA sentences, so that they don't have to be
+     * parsed again.
+     * <p>
+     * The callbacks are made on the reading thread and must return quickly. The records are
+     * reused for the next epochs: a listener that needs the values later must copy them.
+     */
+    public interface RecordListener {
+        /**
+         * Record type of {@link #onFix(FixRecord)}: position, time, velocity, quality and DOPs.
+         */
+        int RECORD_FIX = 1;
+        /**
+         * Record type of {@link #onSatellites(SatelliteTable)}: the satellites in view.
+         */
+        int RECORD_SATELLITES = 1 << 1;
+
+        /**
+         * Called when the fix of an epoch is published.
+         *
+         * @param fix the fix, only valid during the call
+         */
+        void onFix(FixRecord fix);
+
+        /**
+         * Called when a group of GSV sentences updated the satellites in view.
+         *
+         * @param table the satellites of all the talkers, not changed during the call
+         */
+        void onSatellites(SatelliteTable table);
+    }
+
+    /**
+     * Immutable list of the record listeners and the record types they want,
+     * replaced as a whole when it changes.
+     */
+    private static final class RecordListeners {
+        private final RecordListener[] listeners;
+        private final int[] masks;
+        // record types wanted by at least one listener
+        private final int mask;
+
+        RecordListeners(RecordListener[] listeners, int[] masks) {
+            this.listeners = listeners;
+            this.masks = masks;
+            int mask = 0;
+            for (int recordMask : masks) {
+                mask |= recordMask;
+            }
+            this.mask = mask;
+        }
+
+        RecordListeners with(RecordListener listener, int recordMask) {
+            int count = 0;
+            for (RecordListener registered : listeners) {
+                if (registered != listener) {
+                    count++;
+                }
+            }
+            if (recordMask != 0) {
+                count++;
+            }
+
+            RecordListener[] newListeners = new RecordListener[count];
+            int[] newMasks = new int[count];
+            int j = 0;
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] != listener) {
+                    newListeners[j] = listeners[i];
+                    newMasks[j] = masks[i];
+                    j++;
+                }
+            }
+            if (recordMask != 0) {
+                newListeners[j] = listener;
+                newMasks[j] = recordMask;
+            }
+            return new RecordListeners(newListeners, newMasks);
+        }
+
+        boolean wants(int recordType) {
+            return (mask & recordType) != 0;
+        }
+
+        void notifyFix(FixRecord fix) {
+            for (int i = 0; i < listeners.length; i++) {
+                if ((masks[i] & RecordListener.RECORD_FIX) != 0) {
+                    listeners[i].onFix(fix);
+                }
+            }
+        }
+
+        void notifySatellites(SatelliteTable table) {
+            for (int i = 0; i < listeners.length; i++) {
+                if ((masks[i] & RecordListener.RECORD_SATELLITES) != 0) {
+                    listeners[i].onSatellites(table);
+                }
+            }
+        }
+    }
+
+    /**
+     * Immutable table of the sentence handlers, replaced as a whole when a handler is
+     * (un)registered so that the reading thread never needs to lock it.
+     */
+    private static final class SentenceHandlers {
+        private final long[] keys;
+        private final SentenceHandler[] handlers;
+
+        SentenceHandlers(long[] keys, SentenceHandler[] handlers) {
+            this.keys = keys;
+            this.handlers = handlers;
+        }
 
-    private String fixTime = null;
-    private long fixTimestamp;
+        static long key(String talker, String type) {
+            if (type == null || type.length() != 3) {
+                throw new IllegalArgumentException("Invalid NMEA sentence type: " + type);
+            }
+            if (talker != null && talker.length() != 2 && !PROPRIETARY_TALKER.equals(talker)) {
+                throw new IllegalArgumentException("Invalid NMEA talker: " + talker);
+            }
+            return key(pack(talker), pack(type));
+        }
+
+        static long key(int talker, int type) {
+            return ((long) talker << 24) | type;
+        }
 
-    private boolean hasGGA = false;
-    private boolean hasRMC = false;
+        private static int pack(String value) {
+            int packed = 0;
+            if (value != null) {
+                for (int i = 0; i < value.length(); i++) {
+                    packed = (packed << 8) | (value.charAt(i) & 0xFF);
+                }
+            }
+            return packed;
+        }
+
+        SentenceHandlers with(long key, SentenceHandler handler) {
+            int count = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != key) {
+                    count++;
+                }
+            }
+            if (handler != null) {
+                count++;
+            }
+
+            long[] newKeys = new long[count];
+            SentenceHandler[] newHandlers = new SentenceHandler[count];
+            int j = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != key) {
+                    newKeys[j] = keys[i];
+                    newHandlers[j] = handlers[i];
+                    j++;
+                }
+            }
+            if (handler != null) {
+                newKeys[j] = key;
+                newHandlers[j] = handler;
+            }
+            return new SentenceHandlers(newKeys, newHandlers);
+        }
+
+        SentenceHandler find(int talker, int type) {
+            long talkerKey = key(talker, type);
+            long anyTalkerKey = key(0, type);
+            SentenceHandler anyTalkerHandler = null;
+
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == talkerKey) {
+                    return handlers[i];
+                } else if (keys[i] == anyTalkerKey) {
+                    anyTalkerHandler = handlers[i];
+                }
+            }
+            return anyTalkerHandler;
+        }
+    }
+
+    // indexes of the data fields used by the decoders
+    private static final int GGA_TIME = 0;
+    private static final int GGA_LATITUDE = 1;
+    private static final int GGA_LONGITUDE = 3;
+    private static final int GGA_QUALITY = 5;
+    private static final int GGA_SATELLITES = 6;
+    private static final int GGA_HDOP = 7;
+    private static final int GGA_ALTITUDE = 8;
+
+    private static final int RMC_TIME = 0;
+    private static final int RMC_STATUS = 1;
+    private static final int RMC_LATITUDE = 2;
+    private static final int RMC_LONGITUDE = 4;
+    private static final int RMC_SPEED = 6;
+    private static final int RMC_BEARING = 7;
+
+    private static final int GLL_TIME = 4;
+
+    private static final int GSV_MESSAGE_COUNT = 0;
+    private static final int GSV_MESSAGE_NUMBER = 1;
+
+    private Context appContext;
+
+    // UTC time of the current fix in milliseconds since midnight, -1 if none
+    private int fixTime = -1;
+
+    private final NmeaSentence sentence = new NmeaSentence();
+    private final NmeaTimeDecoder timeDecoder = new NmeaTimeDecoder();
+    private volatile SentenceHandlers sentenceHandlers =
+            new SentenceHandlers(new long[0], new SentenceHandler[0]);
+    private byte[] sentenceBuffer = new byte[128];
+    private volatile RecordListeners recordListeners =
+            new RecordListeners(new RecordListener[0], new int[0]);
+
+    private final NmeaEpochAssembler epochAssembler = new NmeaEpochAssembler();
+    private final GsvAssembler gsvAssembler = new GsvAssembler();
+    // GSA sentences received since the last published fix
+    private final GsaRecord gsa = new GsaRecord();
     private LocationManager lm;
     private float precision = 10f;
     private boolean mockGpsAutoEnabled = false;
@@ -75,8 +307,19 @@ public class NmeaParser {
 
     private int mockStatus = LocationProvider.OUT_OF_SERVICE;
 
-    private Location fix = null;
-    private String lastSentenceTime = "";
+    // fix of the current epoch, null if none
+    private NmeaFix fix = null;
+    private final NmeaFix.Pool fixPool = new NmeaFix.Pool(2);
+    // Locations handed out in turn, so that a published Location is reused only two fixes later
+    private final Location[] locations = new Location[3];
+    private int nextLocation = 0;
+    // coordinates of the last notified fix, in nanodegrees
+    private volatile long lastLatitude;
+    private volatile long lastLongitude;
+    // the last parsed sentence started a new epoch
+    private boolean epochStarted = false;
+    private final byte[] lastSentenceTime = new byte[16];
+    private int lastSentenceTimeLength = 0;
 
     public NmeaParser(Context context) {
         this(5f, context);
@@ -85,6 +328,87 @@ public class NmeaParser {
     public NmeaParser(float precision, Context context) {
         this.precision = precision;
         this.appContext = context;
+
+        registerSentenceHandler(ANY_TALKER, "GGA", new SentenceHandler() {
+            @Override
+            public void onSentence(NmeaSentence sentence) {
+                parseGga(sentence);
+            }
+        });
+        registerSentenceHandler(ANY_TALKER, "RMC", new SentenceHandler() {
+            @Override
+            public void onSentence(NmeaSentence sentence) {
+                parseRmc(sentence);
+            }
+        });
+        registerSentenceHandler(ANY_TALKER, "GSA", new SentenceHandler() {
+            @Override
+            public void onSentence(NmeaSentence sentence) {
+                parseGsa(sentence);
+            }
+        });
+        registerSentenceHandler(ANY_TALKER, "GSV", new SentenceHandler() {
+            @Override
+            public void onSentence(NmeaSentence sentence) {
+                parseGsv(sentence);
+            }
+        });
+        registerSentenceHandler(ANY_TALKER, "VTG", new SentenceHandler() {
+            @Override
+            public void onSentence(NmeaSentence sentence) {
+                parseVtg(sentence);
+            }
+        });
+        registerSentenceHandler(ANY_TALKER, "GLL", new SentenceHandler() {
+            @Override
+            public void onSentence(NmeaSentence sentence) {
+                parseGll(sentence);
+            }
+        });
+    }
+
+    /**
+     * Registers the decoder of a sentence type, replacing any decoder previously registered
+     * for the same talker and sentence type.
+     * <p>
+     * A decoder registered for a given talker (e.g. "GP" or "GN") takes precedence over
+     * the one registered for {@link #ANY_TALKER}.
+     * For proprietary sentences the talker is {@link #PROPRIETARY_TALKER} and the type
+     * is the manufacturer mnemonic, e.g. "SRF" for $PSRF103, "UBX" for $PUBX or "MTK" for $PMTK001.
+     *
+     * @param talker the talker ID, {@link #ANY_TALKER} or {@link #PROPRIETARY_TALKER}
+     * @param type   the sentence type, e.g. "GGA"
+     * @param handler the decoder, called on the reading thread
+     */
+    public synchronized void registerSentenceHandler(String talker, String type, SentenceHandler handler) {
+        sentenceHandlers = sentenceHandlers.with(SentenceHandlers.key(talker, type), handler);
+    }
+
+    /**
+     * Removes the decoder registered for the given talker and sentence type, if any.
+     *
+     * @see #registerSentenceHandler(String, String, SentenceHandler)
+     */
+    public synchronized void unregisterSentenceHandler(String talker, String type) {
+        sentenceHandlers = sentenceHandlers.with(SentenceHandlers.key(talker, type), null);
+    }
+
+    /**
+     * Registers a listener of the decoded records, or changes the record types it wants.
+     * <p>
+     * The records nobody wants are not delivered, and the GSV sentences are only decoded
+     * while a listener wants the satellites.
+     *
+     * @param listener   the listener, called on the reading thread
+     * @param recordMask a combination of the {@link RecordListener} RECORD constants,
+     *                   0 to remove the listener
+     */
+    public synchronized void addRecordListener(RecordListener listener, int recordMask) {
+        recordListeners = recordListeners.with(listener, recordMask);
+    }
+
+    public synchronized void removeRecordListener(RecordListener listener) {
+        recordListeners = recordListeners.with(listener, 0);
     }
 
     public void setLocationManager(LocationManager lm) {
@@ -238,6 +562,38 @@ public class NmeaParser {
         notifyStatusChanged(LocationProvider.OUT_OF_SERVICE, null, System.currentTimeMillis());
     }
 
+    /**
+     * @return the latitude of the last notified fix, in nanodegrees, without any double rounding
+     * @see NmeaCoordinates
+     */
+    public long getLatitudeNanoDegrees() {
+        return lastLatitude;
+    }
+
+    /**
+     * @return the longitude of the last notified fix, in nanodegrees, without any double rounding
+     * @see NmeaCoordinates
+     */
+    public long getLongitudeNanoDegrees() {
+        return lastLongitude;
+    }
+
+    /**
+     * @return the satellites in view, given by the last complete group of GSV sentences of each talker.
+     * Only updated while a {@link RecordListener} wants the satellites.
+     * @see SatelliteTable
+     */
+    public SatelliteTable getSatelliteTable() {
+        return gsvAssembler.getSatelliteTable();
+    }
+
+    /**
+     * @return the number of updates of the satellites in view, to tell when they changed
+     */
+    public int getSatelliteSequence() {
+        return gsvAssembler.getSequence();
+    }
+
     /**
      * @return the mockLocationProvider
      */
@@ -247,17 +603,34 @@ public class NmeaParser {
 
     /**
      * Notifies a new location fix to the MockLocationProvider
-     * @param fix the location
+     * <p>
+     * The Location given to the location manager is reused for a later fix, the application
+     * copies it for the UI.
+     *
+     * @param nmeaFix the fix, given back to the pool
      * @throws SecurityException
      */
-    private void notifyFix(Location fix) throws SecurityException {
-        fixTime = null;
-        hasGGA = false;
-        hasRMC = false;
+    private void notifyFix(NmeaFix nmeaFix) throws SecurityException {
+        fixTime = -1;
+
+        if (nmeaFix != null) {
+            mergeGsa(nmeaFix);
+            lastLatitude = nmeaFix.getLatitude();
+            lastLongitude = nmeaFix.getLongitude();
+            RecordListeners listeners = recordListeners;
+            if (listeners.wants(RecordListener.RECORD_FIX)) {
+                listeners.notifyFix(nmeaFix);
+            }
+            Location fix = toLocation(nmeaFix);
+            fixPool.release(nmeaFix);
+            if (this.fix == nmeaFix) {
+                this.fix = null;
+            }
 
-        if (fix != null) {
             ((USBGpsApplication) appContext).notifyNewLocation(fix);
-            log("New Fix: " + System.currentTimeMillis() + " " + fix);
+            if (BuildConfig.DEBUG) {
+                log("New Fix: " + System.currentTimeMillis() + " " + fix);
+            }
 
             if (lm != null && mockGpsEnabled) {
 
@@ -279,14 +652,56 @@ public class NmeaParser {
                 log("Fix could not be notified, no locationManager");
 
             }
-            this.fix = null;
         }
     }
 
+    /**
+     * Completes a fix with the GSA sentences received during its epoch:
+     * the accuracies come from their dilutions of precision, and the altitude of a 2D fix is dropped.
+     */
+    private void mergeGsa(NmeaFix nmeaFix) {
+        if (gsa.isEmpty()) {
+            return;
+        }
+
+        nmeaFix.setGsa(gsa);
+        if (gsa.getHdop() > 0) {
+            nmeaFix.setAccuracy(gsa.getHdop() * precision);
+        }
+        if (gsa.getFixType() == GsaRecord.FIX_TYPE_2D) {
+            nmeaFix.removeAltitude();
+        } else if (gsa.getVdop() > 0) {
+            nmeaFix.setVerticalAccuracy(gsa.getVdop() * precision);
+        }
+        gsa.clear();
+    }
+
+    /**
+     * Converts a fix into the next of the reused Locations.
+     */
+    private Location toLocation(NmeaFix nmeaFix) {
+        Location location = locations[nextLocation];
+        if (location == null) {
+            location = new Location(mockLocationProvider);
+            locations[nextLocation] = location;
+        } else {
+            location.setProvider(mockLocationProvider);
+        }
+        nextLocation = (nextLocation + 1) % locations.length;
+
+        return nmeaFix.toLocation(location);
+    }
+
+    /**
+     * Gives back the current fix to the pool.
+     */
+    private void releaseFix() {
+        fixPool.release(fix);
+        fix = null;
+    }
+
     private void notifyStatusChanged(int status, Bundle extras, long updateTime) {
-        fixTime = null;
-        hasGGA = false;
-        hasRMC = false;
+        fixTime = -1;
         if (this.mockStatus != status) {
             log("New mockStatus: " + System.currentTimeMillis() + " " + status);
 
@@ -299,442 +714,592 @@ public class NmeaParser {
                         mockLocationProvider
                 );
             }
-            this.fix = null;
+            releaseFix();
             this.mockStatus = status;
         }
     }
 
-    // parse NMEA Sentence
+    /**
+     * Parses a NMEA sentence.
+     * <p>
+     * This is a thin wrapper around {@link #parseNmeaSentence(byte[], int, int)}.
+     *
+     * @param gpsSentence the complete sentence, including the leading "$", the checksum and the "\r\n"
+     * @return the sentence if it is a valid NMEA sentence, null otherwise
+     * @throws SecurityException
+     */
     public String parseNmeaSentence(String gpsSentence) throws SecurityException {
-        String nmeaSentence = null;
-
         log("data: " + System.currentTimeMillis() + " " + gpsSentence);
 
-        // Check that status is in a readable format
-        Pattern xx = Pattern.compile("\\$([^*$]*)(?:\\*([0-9A-F][0-9A-F]))?\r\n");
-
-        Matcher m = xx.matcher(gpsSentence);
-
-        if (m.matches()) {
-            nmeaSentence = m.group(0);
-            String sentence = m.group(1);
-            String checkSum = m.group(2);
-            log("data: " +
-                    System.currentTimeMillis() +
-                    " " +
-                    sentence +
-                    " checksum: " +
-                    checkSum +
-                    " control: " +
-                    String.format("%02X", computeChecksum(sentence))
-            );
+        int length = gpsSentence.length();
+        if (sentenceBuffer.length < length) {
+            sentenceBuffer = new byte[length];
+        }
 
-            // If we don't have a valid checksum then we obviously don't have the correct sentence
-            if (checkSum != null &&
-                    checkSum.equals(String.format("%02X", computeChecksum(sentence)))) {
-
-                SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter(',');
-                splitter.setString(sentence);
-                String command = splitter.next();
-
-                if (command.length() == 5) {
-                    // If the command length is not 5, safe to assume we got
-                    // bad data
-                    command = command.substring(2);
-
-                    switch (command) {
-                        case "GGA": {
-                        /* $GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47
-
-                            Where:
-                                 GGA          Global Positioning System Fix Data
-                                 123519       Fix taken at 12:35:19 UTC
-                                 4807.038,N   Latitude 48 deg 07.038' N
-                                 01131.000,E  Longitude 11 deg 31.000' E
-                                 1            Fix quality: 0 = invalid
-                                                           1 = GPS fix (SPS)
-                                                           2 = DGPS fix
-                                                           3 = PPS fix
-                                                           4 = Real Time Kinematic
-                                                           5 = Float RTK
-                                                           6 = estimated (dead reckoning) (2.3 feature)
-                                                           7 = Manual input mode
-                                                           8 = Simulation mode
-                                 08           Number of satellites being tracked
-                                 0.9          Horizontal dilution of position
-                                 545.4,M      Altitude, Meters, above mean sea level
-                                 46.9,M       Height of geoid (mean sea level) above WGS84
-                                                  ellipsoid
-                                 (empty field) time in seconds since last DGPS update
-                                 (empty field) DGPS station ID number
-                                 *47          the checksum data, always begins with *
-                         */
-
-                            // UTC time of fix HHmmss.S
-                            String time = splitter.next();
-
-                            // latitude ddmm.M
-                            String lat = splitter.next();
-
-                            // direction (N/S)
-                            String latDir = splitter.next();
-
-                            // longitude dddmm.M
-                            String lon = splitter.next();
-
-                            // direction (E/W)
-                            String lonDir = splitter.next();
-
-                        /* fix quality:
-                            0= invalid
-                            1 = GPS fix (SPS)
-                            2 = DGPS fix
-                            3 = PPS fix
-                            4 = Real Time Kinematic
-                            5 = Float RTK
-                            6 = estimated (dead reckoning) (2.3 feature)
-                            7 = Manual input mode
-                            8 = Simulation mode
-                         */
-                            String quality = splitter.next();
-
-                            // Number of satellites being tracked
-                            String nbSat = splitter.next();
-
-                            // Horizontal dilution of position (float)
-                            String hdop = splitter.next();
-
-                            // Altitude, Meters, above mean sea level
-                            String alt = splitter.next();
-
-                            // Height of geoid (mean sea level) above WGS84 ellipsoid
-                            String geoAlt = splitter.next();
-
-                            if (time != null && !time.equals("")) {
-                                lastSentenceTime = time;
-                            }
-
-                            // time in seconds since last DGPS update
-                            // DGPS station ID number
-                            if (quality != null && !quality.equals("") && !quality.equals("0")) {
-                                if (this.mockStatus != LocationProvider.AVAILABLE) {
-                                    long updateTime = parseNmeaTime(time);
-                                    notifyStatusChanged(LocationProvider.AVAILABLE, null, updateTime);
-                                }
-
-                                if (!time.equals(fixTime)) {
-                                    notifyFix(fix);
-                                    fix = new Location(mockLocationProvider);
-                                    fixTime = time;
-                                    fixTimestamp = parseNmeaTime(time);
-                                    fix.setTime(fixTimestamp);
-
-                                    Bundle bundle = fix.getExtras();
-                                    if (bundle == null) {
-                                        bundle = new Bundle();
-                                    }
-
-                                    bundle.putLong(SYSTEM_TIME_FIX, System.currentTimeMillis());
-                                    fix.setExtras(bundle);
-
-                                    //Log.v(LOG_TAG, "Fix: "+fix);
-                                }
-
-                                if (lat != null && !lat.equals("")) {
-                                    fix.setLatitude(parseNmeaLatitude(lat, latDir));
-                                }
-
-                                if (lon != null && !lon.equals("")) {
-                                    fix.setLongitude(parseNmeaLongitude(lon, lonDir));
-                                }
-
-                                if (hdop != null && !hdop.equals("")) {
-                                    fix.setAccuracy(Float.parseFloat(hdop) * precision);
-                                }
-
-                                if (alt != null && !alt.equals("")) {
-                                    fix.setAltitude(Double.parseDouble(alt));
-                                }
-
-                                if (nbSat != null && !nbSat.equals("")) {
-
-                                    Bundle bundle = fix.getExtras();
-                                    if (bundle == null) {
-                                        bundle = new Bundle();
-                                    }
-
-                                    bundle.putInt(SATELLITE_KEY, Integer.parseInt(nbSat));
-                                    fix.setExtras(bundle);
-                                }
-
-                                //Log.v(LOG_TAG, "Fix: "+System.currentTimeMillis()+" "+fix);
-                                hasGGA = true;
-
-                                if (hasRMC) {
-                                    notifyFix(fix);
-                                }
-
-                            } else if (quality != null && quality.equals("0")) {
-                                if (this.mockStatus != LocationProvider.TEMPORARILY_UNAVAILABLE) {
-                                    long updateTime = parseNmeaTime(time);
-                                    notifyStatusChanged(LocationProvider.TEMPORARILY_UNAVAILABLE, null, updateTime);
-                                }
-                            }
-
-                            break;
-                        }
-                        case "RMC": {
-                        /* $GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A
-
-                           Where:
-                             RMC          Recommended Minimum sentence C
-                             123519       Fix taken at 12:35:19 UTC
-                             A            Status A=active or V=Void.
-                             4807.038,N   Latitude 48 deg 07.038' N
-                             01131.000,E  Longitude 11 deg 31.000' E
-                             022.4        Speed over the ground in knots
-                             084.4        Track angle in degrees True
-                             230394       Date - 23rd of March 1994
-                             003.1,W      Magnetic Variation
-                             *6A          The checksum data, always begins with *
-                        */
-
-                            // UTC time of fix HHmmss.S
-                            String time = splitter.next();
-
-                            // fix status (A/V)
-                            String status = splitter.next();
-
-                            // latitude ddmm.M
-                            String lat = splitter.next();
-
-                            // direction (N/S)
-                            String latDir = splitter.next();
-
-                            // longitude dddmm.M
-                            String lon = splitter.next();
-
-                            // direction (E/W)
-                            String lonDir = splitter.next();
-
-                            // Speed over the ground in knots
-                            String speed = splitter.next();
-
-                            // Track angle in degrees True
-                            String bearing = splitter.next();
-
-                            // UTC date of fix DDMMYY
-                            String date = splitter.next();
-
-                            // Magnetic Variation ddd.D
-                            String magn = splitter.next();
-
-                            // Magnetic variation direction (E/W)
-                            String magnDir = splitter.next();
-
-                            if (time != null && !time.equals("")) {
-                                lastSentenceTime = time;
-                            }
-
-                            // for NMEA 0183 version 3.00 active the Mode indicator field is added
-                            // Mode indicator, (A=autonomous, D=differential, E=Estimated, N=not valid, S=Simulator )
-                            if (status != null && !status.equals("") && status.equals("A")) {
-                                if (this.mockStatus != LocationProvider.AVAILABLE &&
-                                        time != null && !time.equals("")) {
-                                    long updateTime = parseNmeaTime(time);
-                                    notifyStatusChanged(LocationProvider.AVAILABLE, null, updateTime);
-                                }
-
-                                if (time != null && !time.equals("") && !time.equals(fixTime)) {
-                                    notifyFix(fix);
-                                    fix = new Location(mockLocationProvider);
-                                    fixTime = time;
-                                    fixTimestamp = parseNmeaTime(time);
-                                    fix.setTime(fixTimestamp);
-
-                                    Bundle bundle = fix.getExtras();
-                                    if (bundle == null) {
-                                        bundle = new Bundle();
-                                    }
-
-                                    bundle.putLong(SYSTEM_TIME_FIX, System.currentTimeMillis());
-                                    fix.setExtras(bundle);
-
-                                    //Log.v(LOG_TAG, "Fix: "+fix);
-                                }
-
-                                if (lat != null && !lat.equals("")) {
-                                    fix.setLatitude(parseNmeaLatitude(lat, latDir));
-                                }
-
-                                if (lon != null && !lon.equals("")) {
-                                    fix.setLongitude(parseNmeaLongitude(lon, lonDir));
-                                }
-
-                                if (speed != null && !speed.equals("")) {
-                                    fix.setSpeed(parseNmeaSpeed(speed, "N"));
-                                }
-
-                                if (bearing != null && !bearing.equals("")) {
-                                    fix.setBearing(Float.parseFloat(bearing));
-                                }
-                                //	Log.v(LOG_TAG, "Fix: "+System.currentTimeMillis()+" "+fix);
-                                hasRMC = true;
-                                if (hasGGA) {
-                                    notifyFix(fix);
-                                }
-                            } else if (status != null && status.equals("V") &&
-                                    this.mockStatus != LocationProvider.TEMPORARILY_UNAVAILABLE &&
-                                    time != null && !time.equals("")) {
-                                long updateTime = parseNmeaTime(time);
-                                notifyStatusChanged(LocationProvider.TEMPORARILY_UNAVAILABLE, null, updateTime);
-                            }
-
-                            break;
-                        }
-                        case "GSA": {
-                        /*  $GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1*39
-
-                            Where:
-                                 GSA      Satellite status
-                                 A        Auto selection of 2D or 3D fix (M = manual)
-                                 3        3D fix - values include: 1 = no fix
-                                                                   2 = 2D fix
-                                                                   3 = 3D fix
-                                 04,05... PRNs of satellites used for fix (space for 12)
-                                 2.5      PDOP (Position dilution of precision)
-                                 1.3      Horizontal dilution of precision (HDOP)
-                                 2.1      Vertical dilution of precision (VDOP)
-                                 *39      the checksum data, always begins with *
-                         */
-                            // mode : A Auto selection of 2D or 3D fix / M = manual
-                            String mode = splitter.next();
-
-                            // fix type  : 1 - no fix / 2 - 2D / 3 - 3D
-                            String fixType = splitter.next();
-
-                            // discard PRNs of satellites used for fix (space for 12)
-                            for (int i = 0; ((i < 12) && (!"1".equals(fixType))); i++) {
-                                splitter.next();
-                            }
-
-                            // Position dilution of precision (float)
-                            String pdop = splitter.next();
-
-                            // Horizontal dilution of precision (float)
-                            String hdop = splitter.next();
-
-                            // Vertical dilution of precision (float)
-                            String vdop = splitter.next();
-
-                            break;
-                        }
-                        case "VTG": {
-                    /*  $GPVTG,054.7,T,034.4,M,005.5,N,010.2,K*48
+        for (int i = 0; i < length; i++) {
+            sentenceBuffer[i] = (byte) gpsSentence.charAt(i);
+        }
 
-                        where:
-                                VTG          Track made good and ground speed
-                                054.7,T      True track made good (degrees)
-                                034.4,M      Magnetic track made good
-                                005.5,N      Ground speed, knots
-                                010.2,K      Ground speed, Kilometers per hour
-                                *48          Checksum
-                     */
-                            // Track angle in degrees True
-                            String bearing = splitter.next();
+        if (parseNmeaSentence(sentenceBuffer, 0, length)) {
+            return gpsSentence;
+        }
+        return null;
+    }
 
-                            // T
-                            splitter.next();
+    /**
+     * Parses a NMEA sentence held in a {@link ByteBuffer}, from its position to its limit.
+     * The position of the buffer is not modified.
+     *
+     * @see #parseNmeaSentence(byte[], int, int)
+     */
+    public boolean parseNmeaSentence(ByteBuffer gpsSentence) throws SecurityException {
+        int length = gpsSentence.remaining();
+
+        if (gpsSentence.hasArray()) {
+            return parseNmeaSentence(
+                    gpsSentence.array(),
+                    gpsSentence.arrayOffset() + gpsSentence.position(),
+                    length
+            );
+        }
 
-                            // Magnetic track made good
-                            String magn = splitter.next();
+        if (sentenceBuffer.length < length) {
+            sentenceBuffer = new byte[length];
+        }
 
-                            // M
-                            splitter.next();
+        int position = gpsSentence.position();
+        gpsSentence.get(sentenceBuffer, 0, length);
+        gpsSentence.position(position);
 
-                            // Speed over the ground in knots
-                            String speedKnots = splitter.next();
+        return parseNmeaSentence(sentenceBuffer, 0, length);
+    }
 
-                            // N
-                            splitter.next();
+    /**
+     * Parses a NMEA sentence straight from the bytes received from the GPS.
+     * <p>
+     * The framing and the checksum are checked in place and the fields are decoded
+     * without creating any String, so nothing is allocated for the sentence itself.
+     *
+     * @param buffer the buffer holding the sentence
+     * @param offset index of the leading "$"
+     * @param length length of the complete sentence, including the checksum and the "\r\n"
+     * @return true if it is a valid NMEA sentence
+     * @throws SecurityException
+     */
+    public boolean parseNmeaSentence(byte[] buffer, int offset, int length) throws SecurityException {
+        int end = offset + length;
+        epochStarted = false;
+
+        // Check that status is in a readable format: $data*XX\r\n
+        int checksumIndex = end - 5;
+        if (length >= 6 &&
+                buffer[offset] == '$' &&
+                buffer[checksumIndex] == '*' &&
+                buffer[end - 2] == '\r' &&
+                buffer[end - 1] == '\n') {
+
+            int checkSum = (hexValue(buffer[checksumIndex + 1]) << 4) | hexValue(buffer[checksumIndex + 2]);
+
+            byte control = 0;
+            int i = offset + 1;
+            for (; i < checksumIndex; i++) {
+                byte b = buffer[i];
+                if (b == '*' || b == '$') {
+                    break;
+                }
+                control ^= b;
+            }
 
-                            // Speed over the ground in Kilometers per hour
-                            String speedKm = splitter.next();
+            if (i == checksumIndex && checkSum >= 0) {
+                if (BuildConfig.DEBUG) {
+                    log("data: " + System.currentTimeMillis() + " checksum: " + checkSum + " control: " + control);
+                }
 
-                            // K
-                            splitter.next();
-                            // for NMEA 0183 version 3.00 active the Mode indicator field is added
-                            // Mode indicator, (A=autonomous, D=differential, E=Estimated, N=not valid, S=Simulator)
+                // If we don't have a valid checksum then we obviously don't have the correct sentence
+                if (checkSum == (control & 0xFF)) {
+                    sentence.wrap(buffer, offset + 1, checksumIndex);
+
+                    int addressLength = sentence.getAddressLength();
+                    int talker;
+                    int type;
+
+                    if (sentence.isProprietary() && addressLength >= 4) {
+                        // $Pxxx...: the manufacturer mnemonic is used as the sentence type
+                        talker = 'P';
+                        type = (sentence.addressByteAt(1) << 16) |
+                                (sentence.addressByteAt(2) << 8) |
+                                sentence.addressByteAt(3);
+
+                    } else if (addressLength == 5) {
+                        talker = (sentence.addressByteAt(0) << 8) | sentence.addressByteAt(1);
+                        type = (sentence.addressByteAt(2) << 16) |
+                                (sentence.addressByteAt(3) << 8) |
+                                sentence.addressByteAt(4);
+
+                    } else {
+                        // If the command length is not 5, safe to assume we got
+                        // bad data
+                        talker = -1;
+                        type = -1;
+                    }
 
-                            break;
-                        }
-                        case "GLL": {
-                    /*  $GPGLL,4916.45,N,12311.12,W,225444,A,*1D
-
-                        Where:
-                             GLL          Geographic position, Latitude and Longitude
-                             4916.46,N    Latitude 49 deg. 16.45 min. North
-                             12311.12,W   Longitude 123 deg. 11.12 min. West
-                             225444       Fix taken at 22:54:44 UTC
-                             A            Data Active or V (void)
-                             *iD          checksum data
-                     */
-                            // latitude ddmm.M
-                            String lat = splitter.next();
-
-                            // direction (N/S)
-                            String latDir = splitter.next();
-
-                            // longitude dddmm.M
-                            String lon = splitter.next();
-
-                            // direction (E/W)
-                            String lonDir = splitter.next();
-
-                            // UTC time of fix HHmmss.S
-                            String time = splitter.next();
-
-                            // fix status (A/V)
-                            String status = splitter.next();
-
-                            if (time != null && !time.equals("")) {
-                                lastSentenceTime = time;
-                            }
-
-                            // for NMEA 0183 version 3.00 active the Mode indicator field is added
-                            // Mode indicator, (A=autonomous, D=differential, E=Estimated, N=not valid, S=Simulator )
-                            break;
+                    if (talker >= 0) {
+                        flushExpiredEpoch();
+
+                        SentenceHandler handler = sentenceHandlers.find(talker, type);
+
+                        // Sentences nobody is interested in are not even tokenised
+                        if (handler != null) {
+                            handler.onSentence(sentence);
                         }
-                    }
 
-                    return nmeaSentence;
+                        return true;
+                    }
+                } else {
+                    log("Sentence invalid, checksums don't match");
                 }
             } else {
-                log("Sentence invalid, checksums don't match");
+                log("Sentence invalid");
             }
         } else {
             log("Sentence invalid");
         }
         // As we have received some awful data, it is safe to assume we have missed the
         // current fix, so reset all of the current values and restart
-        hasGGA = false;
-        hasRMC = false;
-        fixTime = null;
-        return null;
+        epochAssembler.damage();
+        fixTime = -1;
+        return false;
+    }
+
+    private void parseGga(NmeaSentence sentence) {
+        /* $GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47
+
+            Where:
+                 GGA          Global Positioning System Fix Data
+                 123519       Fix taken at 12:35:19 UTC
+                 4807.038,N   Latitude 48 deg 07.038' N
+                 01131.000,E  Longitude 11 deg 31.000' E
+                 1            Fix quality: 0 = invalid
+                                           1 = GPS fix (SPS)
+                                           2 = DGPS fix
+                                           3 = PPS fix
+                                           4 = Real Time Kinematic
+                                           5 = Float RTK
+                                           6 = estimated (dead reckoning) (2.3 feature)
+                                           7 = Manual input mode
+                                           8 = Simulation mode
+                 08           Number of satellites being tracked
+                 0.9          Horizontal dilution of position
+                 545.4,M      Altitude, Meters, above mean sea level
+                 46.9,M       Height of geoid (mean sea level) above WGS84
+                                  ellipsoid
+                 (empty field) time in seconds since last DGPS update
+                 (empty field) DGPS station ID number
+                 *47          the checksum data, always begins with *
+         */
+
+        // UTC time of fix HHmmss.S
+        sentence.selectField(GGA_TIME);
+        int time = sentence.fieldToTimeOfDay();
+        if (time >= 0) {
+            setLastSentenceTime(sentence);
+        }
+        if (!startEpochSentence(NmeaEpochAssembler.GGA, time)) {
+            return;
+        }
+
+        // fix quality, 0 = invalid
+        sentence.selectField(GGA_QUALITY);
+        boolean hasQuality = !sentence.fieldIsEmpty();
+        boolean invalidQuality = sentence.fieldEquals('0');
+
+        if (hasQuality && !invalidQuality && time >= 0) {
+            if (this.mockStatus != LocationProvider.AVAILABLE) {
+                long updateTime = getTimestamp(time);
+                notifyStatusChanged(LocationProvider.AVAILABLE, null, updateTime);
+            }
+
+            if (time != fixTime) {
+                startFix(time);
+            }
+
+            sentence.selectField(GGA_QUALITY);
+            fix.setQuality(sentence.fieldToInt());
+
+            // latitude ddmm.M and direction (N/S)
+            sentence.selectField(GGA_LATITUDE);
+            if (!sentence.fieldIsEmpty()) {
+                long lat = sentence.fieldToNanoDegrees();
+                sentence.nextField();
+                fix.setLatitude(NmeaCoordinates.applyHemisphere(lat, sentence.fieldChar(), 'N', 'S'));
+            }
+
+            // longitude dddmm.M and direction (E/W)
+            sentence.selectField(GGA_LONGITUDE);
+            if (!sentence.fieldIsEmpty()) {
+                long lon = sentence.fieldToNanoDegrees();
+                sentence.nextField();
+                fix.setLongitude(NmeaCoordinates.applyHemisphere(lon, sentence.fieldChar(), 'E', 'W'));
+            }
+
+            // Number of satellites being tracked
+            sentence.selectField(GGA_SATELLITES);
+            if (!sentence.fieldIsEmpty()) {
+                fix.setSatellites(sentence.fieldToInt());
+            }
+
+            // Horizontal dilution of position (float)
+            sentence.selectField(GGA_HDOP);
+            if (!sentence.fieldIsEmpty()) {
+                fix.setAccuracy(sentence.fieldToFloat() * precision);
+            }
+
+            // Altitude, Meters, above mean sea level
+            sentence.selectField(GGA_ALTITUDE);
+            if (!sentence.fieldIsEmpty()) {
+                fix.setAltitude(sentence.fieldToDouble());
+            }
+
+            //Log.v(LOG_TAG, "Fix: "+System.currentTimeMillis()+" "+fix);
+
+        } else if (invalidQuality && time >= 0) {
+            if (this.mockStatus != LocationProvider.TEMPORARILY_UNAVAILABLE) {
+                long updateTime = getTimestamp(time);
+                notifyStatusChanged(LocationProvider.TEMPORARILY_UNAVAILABLE, null, updateTime);
+            }
+        }
+
+        endEpochSentence();
+    }
+
+    private void parseRmc(NmeaSentence sentence) {
+        /* $GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A
+
+           Where:
+             RMC          Recommended Minimum sentence C
+             123519       Fix taken at 12:35:19 UTC
+             A            Status A=active or V=Void.
+             4807.038,N   Latitude 48 deg 07.038' N
+             01131.000,E  Longitude 11 deg 31.000' E
+             022.4        Speed over the ground in knots
+             084.4        Track angle in degrees True
+             230394       Date - 23rd of March 1994
+             003.1,W      Magnetic Variation
+             *6A          The checksum data, always begins with *
+        */
+
+        // UTC time of fix HHmmss.S
+        sentence.selectField(RMC_TIME);
+        int time = sentence.fieldToTimeOfDay();
+        if (time >= 0) {
+            setLastSentenceTime(sentence);
+        }
+        if (!startEpochSentence(NmeaEpochAssembler.RMC, time)) {
+            return;
+        }
+
+        // fix status (A/V)
+        sentence.selectField(RMC_STATUS);
+        char status = sentence.fieldChar();
+
+        if (status == 'A') {
+            if (this.mockStatus != LocationProvider.AVAILABLE && time >= 0) {
+                long updateTime = getTimestamp(time);
+                notifyStatusChanged(LocationProvider.AVAILABLE, null, updateTime);
+            }
+
+            if (time >= 0 && time != fixTime) {
+                startFix(time);
+            }
+
+            if (fix != null) {
+                // latitude ddmm.M and direction (N/S)
+                sentence.selectField(RMC_LATITUDE);
+                if (!sentence.fieldIsEmpty()) {
+                    long lat = sentence.fieldToNanoDegrees();
+                    sentence.nextField();
+                    fix.setLatitude(NmeaCoordinates.applyHemisphere(lat, sentence.fieldChar(), 'N', 'S'));
+                }
+
+                // longitude dddmm.M and direction (E/W)
+                sentence.selectField(RMC_LONGITUDE);
+                if (!sentence.fieldIsEmpty()) {
+                    long lon = sentence.fieldToNanoDegrees();
+                    sentence.nextField();
+                    fix.setLongitude(NmeaCoordinates.applyHemisphere(lon, sentence.fieldChar(), 'E', 'W'));
+                }
+
+                // Speed over the ground in knots
+                sentence.selectField(RMC_SPEED);
+                if (!sentence.fieldIsEmpty()) {
+                    fix.setSpeed(knotsToMeterSpeed(sentence.fieldToFloat()));
+                }
+
+                // Track angle in degrees True
+                sentence.selectField(RMC_BEARING);
+                if (!sentence.fieldIsEmpty()) {
+                    fix.setBearing(sentence.fieldToFloat());
+                }
+                //	Log.v(LOG_TAG, "Fix: "+System.currentTimeMillis()+" "+fix);
+            }
+        } else if (status == 'V' &&
+                this.mockStatus != LocationProvider.TEMPORARILY_UNAVAILABLE &&
+                time >= 0) {
+            long updateTime = getTimestamp(time);
+            notifyStatusChanged(LocationProvider.TEMPORARILY_UNAVAILABLE, null, updateTime);
+        }
+
+        endEpochSentence();
+    }
+
+    private void parseGsa(NmeaSentence sentence) {
+        /*  $GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1*39
+
+            Where:
+                 GSA      Satellite status
+                 A        Auto selection of 2D or 3D fix (M = manual)
+                 3        3D fix - values include: 1 = no fix
+                                                   2 = 2D fix
+                                                   3 = 3D fix
+                 04,05... PRNs of satellites used for fix (space for 12)
+                 2.5      PDOP (Position dilution of precision)
+                 1.3      Horizontal dilution of precision (HDOP)
+                 2.1      Vertical dilution of precision (VDOP)
+                 *39      the checksum data, always begins with *
+         */
+        startEpochSentence(NmeaEpochAssembler.GSA, -1);
+        gsa.decode(sentence);
+        endEpochSentence();
+    }
+
+    private void parseGsv(NmeaSentence sentence) {
+        /*  $GPGSV,2,1,08,01,40,083,46,02,17,308,41,12,07,344,39,14,22,228,45*75
+
+            Where:
+                  GSV          Satellites in view
+                  2            Number of sentences for full data
+                  1            sentence 1 of 2
+                  08           Number of satellites in view
+
+                  01           Satellite PRN number
+                  40           Elevation, degrees
+                  083          Azimuth, degrees
+                  46           SNR - higher is better
+                               for up to 4 satellites per sentence
+                  *75          the checksum data, always begins with *
+         */
+        RecordListeners listeners = recordListeners;
+        boolean groupComplete;
+        if (listeners.wants(RecordListener.RECORD_SATELLITES)) {
+            groupComplete = gsvAssembler.onSentence(sentence, SystemClock.elapsedRealtime());
+            if (groupComplete) {
+                listeners.notifySatellites(gsvAssembler.getSatelliteTable());
+            }
+        } else {
+            // nobody wants the satellites, only look for the end of the group
+            groupComplete = isLastGsvSentence(sentence);
+        }
+
+        if (groupComplete) {
+            // the group of messages only counts once in the epoch
+            startEpochSentence(NmeaEpochAssembler.GSV, -1);
+            endEpochSentence();
+        }
+    }
+
+    /**
+     * @return true if the GSV sentence is the last one of its group
+     */
+    private static boolean isLastGsvSentence(NmeaSentence sentence) {
+        sentence.selectField(GSV_MESSAGE_COUNT);
+        if (sentence.fieldIsEmpty()) {
+            return false;
+        }
+        int messageCount = sentence.fieldToInt();
+        sentence.selectField(GSV_MESSAGE_NUMBER);
+        return !sentence.fieldIsEmpty() && messageCount >= 1 && sentence.fieldToInt() == messageCount;
+    }
+
+    private void parseVtg(NmeaSentence sentence) {
+        /*  $GPVTG,054.7,T,034.4,M,005.5,N,010.2,K*48
+
+            where:
+                    VTG          Track made good and ground speed
+                    054.7,T      True track made good (degrees)
+                    034.4,M      Magnetic track made good
+                    005.5,N      Ground speed, knots
+                    010.2,K      Ground speed, Kilometers per hour
+                    *48          Checksum
+         */
+        // the same values are taken from RMC, the sentence only counts in the epoch
+        startEpochSentence(NmeaEpochAssembler.VTG, -1);
+        endEpochSentence();
+    }
+
+    private void parseGll(NmeaSentence sentence) {
+        /*  $GPGLL,4916.45,N,12311.12,W,225444,A,*1D
+
+            Where:
+                 GLL          Geographic position, Latitude and Longitude
+                 4916.46,N    Latitude 49 deg. 16.45 min. North
+                 12311.12,W   Longitude 123 deg. 11.12 min. West
+                 225444       Fix taken at 22:54:44 UTC
+                 A            Data Active or V (void)
+                 *iD          checksum data
+         */
+        // UTC time of fix HHmmss.S
+        sentence.selectField(GLL_TIME);
+        int time = sentence.fieldToTimeOfDay();
+        if (time >= 0) {
+            setLastSentenceTime(sentence);
+        }
+        if (!startEpochSentence(NmeaEpochAssembler.GLL, time)) {
+            return;
+        }
+
+        // the position is taken from GGA and RMC
+        endEpochSentence();
+    }
+
+    /**
+     * Records a sentence in the current epoch, publishing the fix of the previous epoch
+     * if the sentence starts a new one.
+     *
+     * @param type the sentence type, one of the {@link NmeaEpochAssembler} constants
+     * @param time the time of the sentence in milliseconds since midnight, -1 if it has none
+     * @return false if the sentence belongs to an epoch already published and must be ignored
+     */
+    private boolean startEpochSentence(int type, int time) {
+        int epoch = epochAssembler.onSentence(type, time, SystemClock.elapsedRealtime());
+        if (epoch == NmeaEpochAssembler.NEW_EPOCH) {
+            epochStarted = true;
+            closeEpoch();
+        }
+        return epoch != NmeaEpochAssembler.CLOSED_EPOCH;
+    }
+
+    /**
+     * Publishes the fix as soon as the last sentence of the epoch has been decoded.
+     */
+    private void endEpochSentence() {
+        if (epochAssembler.closeIfComplete()) {
+            closeEpoch();
+        }
+    }
+
+    /**
+     * Publishes the fix of the current epoch if it is still incomplete after the epoch timeout.
+     * It is checked for every sentence and can also be called when no data is received.
+     */
+    public void flushExpiredEpoch() {
+        if (epochAssembler.closeIfExpired(SystemClock.elapsedRealtime())) {
+            log("Epoch timeout, publishing partial fix");
+            closeEpoch();
+        }
+    }
+
+    /**
+     * Publishes the fix of the epoch, if it has one, and forgets its GSA sentences
+     * so that they don't add up with those of the next epochs while there is no position.
+     */
+    private void closeEpoch() {
+        notifyFix(fix);
+        gsa.clear();
+    }
+
+    /**
+     * @return true if the last parsed sentence started a new epoch
+     */
+    public boolean hasStartedEpoch() {
+        return epochStarted;
+    }
+
+    /**
+     * @return the {@link SystemClock#elapsedRealtime()} at which the current fix will be published
+     * by {@link #flushExpiredEpoch()} if it is still incomplete, -1 if there is none
+     */
+    public long getEpochExpiryTime() {
+        return epochAssembler.getExpiryTime();
+    }
+
+    /**
+     * Starts with the sentences of an epoch and the update period of a previous connection,
+     * they are still learnt from the received sentences.
+     *
+     * @param sentenceMask a combination of the {@link NmeaEpochAssembler} sentence types, 0 if unknown
+     * @param period       the period between two fixes in milliseconds, -1 if unknown
+     */
+    public void seedEpoch(int sentenceMask, int period) {
+        epochAssembler.seed(sentenceMask, period);
+    }
+
+    /**
+     * @return the sentences that make a complete epoch, learnt from the received sentences
+     * or set with {@link #setEpochCompletion(int)}, 0 if unknown
+     */
+    public int getEpochCompletion() {
+        return epochAssembler.getCompletionMask();
+    }
+
+    /**
+     * @return the period between two fixes learnt from the received sentences,
+     * in milliseconds, -1 if unknown
+     */
+    public int getUpdatePeriod() {
+        return epochAssembler.getPeriod();
+    }
+
+    /**
+     * Sets the sentences that make a complete epoch, so that its fix is published
+     * as soon as they have all been received.
+     *
+     * @param sentenceMask a combination of the {@link NmeaEpochAssembler} sentence types,
+     *                     0 to learn it from the received sentences
+     */
+    public void setEpochCompletion(int sentenceMask) {
+        epochAssembler.setCompletionMask(sentenceMask);
+    }
+
+    /**
+     * @param timeout time in milliseconds after which an incomplete fix is published,
+     *                0 to learn it from the received sentences
+     */
+    public void setEpochTimeout(long timeout) {
+        epochAssembler.setTimeout(timeout);
+    }
+
+    /**
+     * Publishes the current fix if any and starts a new one for the given time of the day.
+     */
+    private void startFix(int time) {
+        notifyFix(fix);
+        fix = fixPool.acquire();
+        fixTime = time;
+        fix.setTime(time, getTimestamp(time));
+        fix.setSystemTime(System.currentTimeMillis());
+
+        //Log.v(LOG_TAG, "Fix: "+fix);
+    }
+
+    private void setLastSentenceTime(NmeaSentence sentence) {
+        lastSentenceTimeLength = sentence.copyField(lastSentenceTime);
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        // only upper case hexadecimal digits are valid in a checksum
+        return -0x100;
     }
 
     public double parseNmeaLatitude(String lat, String orientation) {
         double latitude = 0.0;
 
         if (lat != null && orientation != null && !lat.equals("") && !orientation.equals("")) {
-            double temp1 = Double.parseDouble(lat);
-            double temp2 = Math.floor(temp1 / 100);
-            double temp3 = (temp1 / 100 - temp2) / 0.6;
-            if (orientation.equals("S")) {
-                latitude = -(temp2 + temp3);
-            } else if (orientation.equals("N")) {
-                latitude = (temp2 + temp3);
-            }
+            latitude = NmeaCoordinates.toDegrees(parseNmeaLatitudeNanoDegrees(lat, orientation));
         }
         return latitude;
     }
@@ -742,14 +1307,37 @@ public class NmeaParser {
     public double parseNmeaLongitude(String lon, String orientation) {
         double longitude = 0.0;
         if (lon != null && orientation != null && !lon.equals("") && !orientation.equals("")) {
-            double temp1 = Double.parseDouble(lon);
-            double temp2 = Math.floor(temp1 / 100);
-            double temp3 = (temp1 / 100 - temp2) / 0.6;
-            if (orientation.equals("W")) {
-                longitude = -(temp2 + temp3);
-            } else if (orientation.equals("E")) {
-                longitude = (temp2 + temp3);
-            }
+            longitude = NmeaCoordinates.toDegrees(parseNmeaLongitudeNanoDegrees(lon, orientation));
+        }
+        return longitude;
+    }
+
+    /**
+     * Fixed point version of {@link #parseNmeaLatitude(String, String)}
+     *
+     * @return the latitude in nanodegrees
+     * @see NmeaCoordinates
+     */
+    public long parseNmeaLatitudeNanoDegrees(String lat, String orientation) {
+        long latitude = 0;
+        if (lat != null && orientation != null && !lat.equals("") && !orientation.equals("")) {
+            latitude = NmeaCoordinates.applyHemisphere(
+                    NmeaCoordinates.parseNanoDegrees(lat), orientation.charAt(0), 'N', 'S');
+        }
+        return latitude;
+    }
+
+    /**
+     * Fixed point version of {@link #parseNmeaLongitude(String, String)}
+     *
+     * @return the longitude in nanodegrees
+     * @see NmeaCoordinates
+     */
+    public long parseNmeaLongitudeNanoDegrees(String lon, String orientation) {
+        long longitude = 0;
+        if (lon != null && orientation != null && !lon.equals("") && !orientation.equals("")) {
+            longitude = NmeaCoordinates.applyHemisphere(
+                    NmeaCoordinates.parseNanoDegrees(lon), orientation.charAt(0), 'E', 'W');
         }
         return longitude;
     }
@@ -767,37 +1355,40 @@ public class NmeaParser {
         return meterSpeed;
     }
 
+    private static float knotsToMeterSpeed(float knots) {
+        return knots / 3.6f * 1.852f;
+    }
+
+    /**
+     * Converts a NMEA UTC time to a timestamp, around the current day.
+     *
+     * @param time UTC time HHmmss.SSS (the fraction is optional)
+     * @return the timestamp in milliseconds since the epoch, or 0 if the time is not valid
+     */
     public long parseNmeaTime(String time) {
         long timestamp = 0;
-        @SuppressLint("SimpleDateFormat")
-        SimpleDateFormat fmt = new SimpleDateFormat("HHmmss.SSS");
-        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-
-        try {
-            if (time != null) {
-                long now = System.currentTimeMillis();
-                long today = now - (now % 86400000L);
-                long temp1;
-
-                // sometime we don't have millisecond in the time string, so we have to reformat it
-                temp1 = fmt.parse(String.format((Locale) null, "%010.3f", Double.parseDouble(time))).getTime();
-                long temp2 = today + temp1;
-                // if we're around midnight we could have a problem...
-                if (temp2 - now > 43200000L) {
-                    timestamp = temp2 - 86400000L;
-                } else if (now - temp2 > 43200000L) {
-                    timestamp = temp2 + 86400000L;
-                } else {
-                    timestamp = temp2;
-                }
+        if (time != null && time.length() > 0) {
+            try {
+                timestamp = timeDecoder.toTimestamp(time);
+            } catch (NumberFormatException e) {
+                logError("Error while parsing NMEA time", e);
             }
-        } catch (ParseException e) {
-            logError("Error while parsing NMEA time", e);
         }
-        log("Timestamp from gps = " + String.valueOf(timestamp) + " System clock says " + System.currentTimeMillis());
+        if (BuildConfig.DEBUG) {
+            log("Timestamp from gps = " + String.valueOf(timestamp) + " System clock says " + System.currentTimeMillis());
+        }
         return timestamp;
     }
 
+    /**
+     * Converts a UTC time of the day to a timestamp, around the current day.
+     *
+     * @param timeOfDay milliseconds since midnight UTC
+     */
+    private long getTimestamp(int timeOfDay) {
+        return timeDecoder.toTimestamp(timeOfDay);
+    }
+
     public byte computeChecksum(String s) {
         byte checksum = 0;
         for (char c : s.toCharArray()) {
@@ -806,12 +1397,24 @@ public class NmeaParser {
         return checksum;
     }
 
+    public byte computeChecksum(byte[] buffer, int offset, int length) {
+        byte checksum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            checksum ^= buffer[i];
+        }
+        return checksum;
+    }
+
     public String getLastSentenceTime() {
-        return lastSentenceTime;
+        StringBuilder time = new StringBuilder(lastSentenceTimeLength);
+        for (int i = 0; i < lastSentenceTimeLength; i++) {
+            time.append((char) lastSentenceTime[i]);
+        }
+        return time.toString();
     }
 
     public void clearLastSentenceTime() {
-        lastSentenceTime = "";
+        lastSentenceTimeLength = 0;
     }
 
     private void log(String message) {
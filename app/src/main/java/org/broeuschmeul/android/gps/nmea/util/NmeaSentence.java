@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * A reusable view over the data part of a NMEA sentence held in a byte array
+ * (i.e. the bytes between the leading "$" and the "*" of the checksum).
+ * <p>
+ * The address field (talker and sentence type) is located when the sentence is wrapped,
+ * then the data fields are read one after the other with {@link #nextField()}, or picked by index
+ * with {@link #selectField(int)}, and the current field can be decoded straight from the bytes,
+ * without creating any intermediate String.
+ * <p>
+ * The offsets of the fields are only indexed, in a single pass and into a reused array,
+ * the first time a field is selected by index, so a decoder only pays for the fields it uses.
+ * An instance is not thread safe and is meant to be reused for every sentence.
+ */
+public class NmeaSentence {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    private byte[] data;
+    private int start;
+    private int end;
+    private int addressEnd;
+
+    private int position;
+    private int fieldStart;
+    private int fieldEnd;
+
+    // separators[i] is the index of the comma before the data field i, separators[fieldCount] is the end
+    private int[] separators = new int[32];
+    private int fieldCount = -1;
+
+    /**
+     * Points this view to a new sentence and rewinds the field cursor.
+     *
+     * @param data  the buffer holding the sentence
+     * @param start index of the first byte after the "$"
+     * @param end   index of the "*" (or of the end of the data if there is no checksum)
+     */
+    public void wrap(byte[] data, int start, int end) {
+        this.data = data;
+        this.start = start;
+        this.end = end;
+
+        int i = start;
+        while (i < end && data[i] != ',') {
+            i++;
+        }
+        addressEnd = i;
+        fieldCount = -1;
+
+        rewind();
+    }
+
+    /**
+     * Moves the cursor back before the first data field, just after the address field.
+     */
+    public void rewind() {
+        position = addressEnd + 1;
+        fieldStart = start;
+        fieldEnd = addressEnd;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the length of the address field, e.g. 5 for "GPGGA" or 7 for "PSRF103"
+     */
+    public int getAddressLength() {
+        return addressEnd - start;
+    }
+
+    public byte addressByteAt(int index) {
+        return data[start + index];
+    }
+
+    /**
+     * @return true if this is a proprietary sentence, i.e. its address starts with "P"
+     */
+    public boolean isProprietary() {
+        return addressEnd > start && data[start] == 'P';
+    }
+
+    /**
+     * Moves the cursor to the next comma separated field.
+     *
+     * @return false if there is no more field, in which case the current field is empty.
+     */
+    public boolean nextField() {
+        if (position > end) {
+            fieldStart = end;
+            fieldEnd = end;
+            return false;
+        }
+
+        int i = position;
+        while (i < end && data[i] != ',') {
+            i++;
+        }
+
+        fieldStart = position;
+        fieldEnd = i;
+        position = i + 1;
+        return true;
+    }
+
+    /**
+     * Moves the cursor to the data field of the given index, the first data field being 0.
+     * {@link #nextField()} then goes on with the following field.
+     *
+     * @return false if there is no such field, in which case the current field is empty.
+     */
+    public boolean selectField(int index) {
+        if (fieldCount < 0) {
+            indexFields();
+        }
+
+        if (index < 0 || index >= fieldCount) {
+            fieldStart = end;
+            fieldEnd = end;
+            position = end + 1;
+            return false;
+        }
+
+        fieldStart = separators[index] + 1;
+        fieldEnd = separators[index + 1];
+        position = fieldEnd + 1;
+        return true;
+    }
+
+    /**
+     * @return the number of data fields of the sentence
+     */
+    public int getFieldCount() {
+        if (fieldCount < 0) {
+            indexFields();
+        }
+        return fieldCount;
+    }
+
+    private void indexFields() {
+        int count = 0;
+        if (addressEnd < end) {
+            separators[0] = addressEnd;
+            count = 1;
+            for (int i = addressEnd + 1; i < end; i++) {
+                if (data[i] == ',') {
+                    if (count + 1 >= separators.length) {
+                        int[] grown = new int[separators.length * 2];
+                        System.arraycopy(separators, 0, grown, 0, count);
+                        separators = grown;
+                    }
+                    separators[count] = i;
+                    count++;
+                }
+            }
+        }
+        separators[count] = end;
+        fieldCount = count;
+    }
+
+    public int fieldLength() {
+        return fieldEnd - fieldStart;
+    }
+
+    public boolean fieldIsEmpty() {
+        return fieldEnd == fieldStart;
+    }
+
+    public byte fieldByteAt(int index) {
+        return data[fieldStart + index];
+    }
+
+    /**
+     * @return true if the current field is exactly the given one character value
+     */
+    public boolean fieldEquals(char c) {
+        return fieldLength() == 1 && data[fieldStart] == c;
+    }
+
+    /**
+     * @return the first character of the current field or 0 if the field is empty
+     */
+    public char fieldChar() {
+        return fieldIsEmpty() ? 0 : (char) data[fieldStart];
+    }
+
+    /**
+     * Copies the current field into the given array.
+     *
+     * @return the number of bytes copied
+     */
+    public int copyField(byte[] dest) {
+        int length = Math.min(fieldLength(), dest.length);
+        System.arraycopy(data, fieldStart, dest, 0, length);
+        return length;
+    }
+
+    public int fieldToInt() {
+        return (int) parseLong(fieldStart, fieldEnd);
+    }
+
+    public float fieldToFloat() {
+        return (float) parseDouble(fieldStart, fieldEnd);
+    }
+
+    public double fieldToDouble() {
+        return parseDouble(fieldStart, fieldEnd);
+    }
+
+    /**
+     * Decodes a NMEA latitude (ddmm.M) or longitude (dddmm.M) field.
+     *
+     * @return the unsigned coordinate in nanodegrees
+     * @see NmeaCoordinates#parseNanoDegrees(byte[], int, int)
+     */
+    public long fieldToNanoDegrees() {
+        return NmeaCoordinates.parseNanoDegrees(data, fieldStart, fieldEnd);
+    }
+
+    /**
+     * Decodes a NMEA UTC time field (HHmmss.SSS, with an optional or partial fraction)
+     * into milliseconds since midnight.
+     *
+     * @return the time of the day in milliseconds, or -1 if the field is empty
+     * @see NmeaTimeDecoder#parseTimeOfDay(byte[], int, int)
+     */
+    public int fieldToTimeOfDay() {
+        if (fieldIsEmpty()) {
+            return -1;
+        }
+        return NmeaTimeDecoder.parseTimeOfDay(data, fieldStart, fieldEnd);
+    }
+
+    private int digit(int index) {
+        int digit = data[index] - '0';
+        if (digit < 0 || digit > 9) {
+            throw new NumberFormatException("Invalid digit in NMEA field: " + fieldToString());
+        }
+        return digit;
+    }
+
+    private long parseLong(int from, int to) {
+        boolean negative = false;
+        int i = from;
+        if (i < to && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        if (i == to) {
+            throw new NumberFormatException("Invalid number in NMEA field: " + fieldToString());
+        }
+
+        long value = 0;
+        for (; i < to; i++) {
+            value = value * 10 + digit(i);
+        }
+        return negative ? -value : value;
+    }
+
+    private double parseDouble(int from, int to) {
+        boolean negative = false;
+        int i = from;
+        if (i < to && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < to; i++) {
+            if (data[i] == '.' && decimals < 0) {
+                decimals = 0;
+                continue;
+            }
+            mantissa = mantissa * 10 + digit(i);
+            digits++;
+            if (decimals >= 0) {
+                decimals++;
+            }
+        }
+
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid number in NMEA field: " + fieldToString());
+        }
+
+        if (digits > 18) {
+            // too long to be exact with a long mantissa, rare enough to let the JDK do it
+            return Double.parseDouble(fieldToString());
+        }
+
+        double value = (decimals > 0) ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Creates a String from the current field, only meant for logging and errors.
+     */
+    public String fieldToString() {
+        return toString(fieldStart, fieldEnd);
+    }
+
+    @Override
+    public String toString() {
+        return toString(start, end);
+    }
+
+    private String toString(int from, int to) {
+        StringBuilder builder = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            builder.append((char) (data[i] & 0xFF));
+        }
+        return builder.toString();
+    }
+}
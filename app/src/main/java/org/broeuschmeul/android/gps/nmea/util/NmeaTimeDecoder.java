@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.nmea.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * Converts NMEA UTC times (HHmmss.SSS) to timestamps.
+ * <p>
+ * The time is decoded arithmetically and added to the start of the current UTC day,
+ * which is cached until the system clock leaves that day. As a NMEA time has no date,
+ * a time more than 12 hours away from the system clock is considered to be in the previous
+ * or in the next day (i.e. we're around midnight).
+ * The last conversion is remembered, as all the sentences of an epoch carry the same time.
+ * <p>
+ * An instance is not thread safe.
+ */
+public class NmeaTimeDecoder {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final long DAY = 86400000L;
+    private static final long HALF_DAY = 43200000L;
+
+    private long dayStart = -1;
+
+    private int lastTimeOfDay = -1;
+    private String lastTime = null;
+    private long lastTimestamp;
+
+    /**
+     * Decodes a NMEA UTC time into milliseconds since midnight.
+     *
+     * @param data buffer holding the time
+     * @param from index of the first digit
+     * @param to   index after the last character of the time
+     * @return the time of the day in milliseconds
+     * @throws NumberFormatException if the value is not a valid time
+     */
+    public static int parseTimeOfDay(byte[] data, int from, int to) {
+        int i = from;
+        int hhmmss = 0;
+        while (i < to && data[i] != '.') {
+            hhmmss = hhmmss * 10 + digit(data[i]);
+            i++;
+        }
+
+        int millis = 0;
+        int scale = 100;
+        if (i < to) {
+            i++;
+            for (; i < to; i++) {
+                int digit = digit(data[i]);
+                if (scale > 0) {
+                    millis += digit * scale;
+                } else {
+                    // rounded to the millisecond
+                    if (digit >= 5) {
+                        millis++;
+                    }
+                    break;
+                }
+                scale /= 10;
+            }
+        }
+
+        return (hhmmss / 10000) * 3600000 +
+                ((hhmmss / 100) % 100) * 60000 +
+                (hhmmss % 100) * 1000 +
+                millis;
+    }
+
+    /**
+     * Decodes a NMEA UTC time into milliseconds since midnight.
+     *
+     * @see #parseTimeOfDay(byte[], int, int)
+     */
+    public static int parseTimeOfDay(String time) {
+        byte[] data = time.getBytes(US_ASCII);
+        return parseTimeOfDay(data, 0, data.length);
+    }
+
+    /**
+     * Converts a NMEA UTC time to a timestamp.
+     *
+     * @param time UTC time HHmmss.SSS
+     * @return the timestamp in milliseconds since the epoch
+     * @throws NumberFormatException if the value is not a valid time
+     */
+    public long toTimestamp(String time) {
+        if (time.equals(lastTime) && isInCurrentDay(System.currentTimeMillis())) {
+            return lastTimestamp;
+        }
+
+        long timestamp = toTimestamp(parseTimeOfDay(time));
+        lastTime = time;
+        return timestamp;
+    }
+
+    /**
+     * Converts a UTC time of the day to a timestamp.
+     *
+     * @param timeOfDay milliseconds since midnight UTC
+     * @return the timestamp in milliseconds since the epoch
+     */
+    public long toTimestamp(int timeOfDay) {
+        long now = System.currentTimeMillis();
+
+        if (timeOfDay == lastTimeOfDay && isInCurrentDay(now)) {
+            return lastTimestamp;
+        }
+
+        if (!isInCurrentDay(now)) {
+            dayStart = now - (now % DAY);
+        }
+
+        long timestamp = dayStart + timeOfDay;
+
+        // if we're around midnight we could have a problem...
+        if (timestamp - now > HALF_DAY) {
+            timestamp -= DAY;
+        } else if (now - timestamp > HALF_DAY) {
+            timestamp += DAY;
+        }
+
+        lastTimeOfDay = timeOfDay;
+        lastTime = null;
+        lastTimestamp = timestamp;
+        return timestamp;
+    }
+
+    private boolean isInCurrentDay(long now) {
+        return dayStart >= 0 && now >= dayStart && now < dayStart + DAY;
+    }
+
+    private static int digit(byte b) {
+        int digit = b - '0';
+        if (digit < 0 || digit > 9) {
+            throw new NumberFormatException("Invalid digit in NMEA time");
+        }
+        return digit;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.nmea.util;
+
+/**
+ * The satellites in view, as given by the GSV sentences, held in primitive arrays.
+ * <p>
+ * Tables are double buffered by the {@link GsvAssembler}: a table is only written while it is
+ * not the published one, but a reader may still hold it at that time. A table is written while
+ * holding its lock, so a reader on another thread reads it while holding the lock too, or takes
+ * a consistent copy with {@link #copyTo(SatelliteTable)}:
+ * <pre>
+ *     synchronized (table) {
+ *         ... read the values ...
+ *     }
+ * </pre>
+ * Unknown elevation, azimuth or SNR are -1.
+ */
+public class SatelliteTable {
+
+    public static final int MAX_SATELLITES = 128;
+
+    private final int[] prns = new int[MAX_SATELLITES];
+    private final int[] elevations = new int[MAX_SATELLITES];
+    private final int[] azimuths = new int[MAX_SATELLITES];
+    private final int[] snrs = new int[MAX_SATELLITES];
+    private final int[] talkers = new int[MAX_SATELLITES];
+    private int count = 0;
+    private long timestamp;
+
+    private volatile long version = 0;
+
+    /**
+     * @return the number of updates of the table
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Copies the table, consistently even while it is updated by another thread.
+     *
+     * @param table the table to overwrite
+     * @return the given table
+     */
+    public SatelliteTable copyTo(SatelliteTable table) {
+        synchronized (this) {
+            table.count = count;
+            table.timestamp = timestamp;
+            table.version = version;
+            System.arraycopy(prns, 0, table.prns, 0, count);
+            System.arraycopy(elevations, 0, table.elevations, 0, count);
+            System.arraycopy(azimuths, 0, table.azimuths, 0, count);
+            System.arraycopy(snrs, 0, table.snrs, 0, count);
+            System.arraycopy(talkers, 0, table.talkers, 0, count);
+        }
+        return table;
+    }
+
+    /**
+     * @return the system time of the last update of the table
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the number of satellites in view
+     */
+    public int size() {
+        return count;
+    }
+
+    public int getPrn(int index) {
+        return prns[index];
+    }
+
+    /**
+     * @return the elevation in degrees, -1 if unknown
+     */
+    public int getElevation(int index) {
+        return elevations[index];
+    }
+
+    /**
+     * @return the azimuth in degrees, -1 if unknown
+     */
+    public int getAzimuth(int index) {
+        return azimuths[index];
+    }
+
+    /**
+     * @return the signal to noise ratio in dB-Hz, -1 if the satellite is not tracked
+     */
+    public int getSnr(int index) {
+        return snrs[index];
+    }
+
+    /**
+     * @return the talker of the GSV sentence giving the satellite, e.g. "GP" or "GL"
+     * packed in an int as ('G' << 8) | 'P'
+     */
+    public int getTalker(int index) {
+        return talkers[index];
+    }
+
+    /**
+     * @return the number of satellites used for the SNR, i.e. tracked
+     */
+    public int getTrackedCount() {
+        int tracked = 0;
+        for (int i = 0; i < count; i++) {
+            if (snrs[i] > 0) {
+                tracked++;
+            }
+        }
+        return tracked;
+    }
+
+    /**
+     * Starts to fill the table again, the caller holds its lock until {@link #endUpdate(long)}
+     * if the table can be read by other threads.
+     */
+    void beginUpdate() {
+        count = 0;
+    }
+
+    /**
+     * Adds a satellite, ignored if the table is full.
+     */
+    void add(int talker, int prn, int elevation, int azimuth, int snr) {
+        if (count < MAX_SATELLITES) {
+            talkers[count] = talker;
+            prns[count] = prn;
+            elevations[count] = elevation;
+            azimuths[count] = azimuth;
+            snrs[count] = snr;
+            count++;
+        }
+    }
+
+    /**
+     * Adds the satellites of the given table that come from one talker.
+     */
+    void addAll(SatelliteTable table, int talker) {
+        for (int i = 0; i < table.count; i++) {
+            if (table.talkers[i] == talker) {
+                add(talker, table.prns[i], table.elevations[i], table.azimuths[i], table.snrs[i]);
+            }
+        }
+    }
+
+    void endUpdate(long timestamp) {
+        this.timestamp = timestamp;
+        version++;
+    }
+}
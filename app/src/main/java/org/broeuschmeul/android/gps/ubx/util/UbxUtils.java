@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.ubx.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Utilities for generation of u-blox UBX binary commands.
+ * <p>
+ * A UBX message is made of the sync chars B5 62, the class and id of the message,
+ * the little endian length of the payload, the payload and a 2 bytes Fletcher checksum
+ * of everything from the class to the end of the payload.
+ */
+public class UbxUtils {
+
+    public static final int CLASS_CFG = 0x06;
+    public static final int ID_CFG_PRT = 0x00;
+
+    private static final int SYNC_1 = 0xB5;
+    private static final int SYNC_2 = 0x62;
+
+    // UART 1, the one behind the USB bridge of a serial GPS
+    private static final int PORT_UART_1 = 1;
+    // 8 data bits, no parity, 1 stop bit
+    private static final int MODE_8N1 = 0x000008D0;
+    private static final int PROTO_UBX = 0x0001;
+    private static final int PROTO_NMEA = 0x0002;
+    private static final int PROTO_RTCM = 0x0004;
+
+    public static byte[] genUbxCommand(int messageClass, int messageId, byte[] payload) {
+        byte[] command = new byte[payload.length + 8];
+        command[0] = (byte) SYNC_1;
+        command[1] = (byte) SYNC_2;
+        command[2] = (byte) messageClass;
+        command[3] = (byte) messageId;
+        command[4] = (byte) payload.length;
+        command[5] = (byte) (payload.length >> 8);
+        System.arraycopy(payload, 0, command, 6, payload.length);
+
+        int checksumA = 0;
+        int checksumB = 0;
+        for (int i = 2; i < command.length - 2; i++) {
+            checksumA = (checksumA + (command[i] & 0xFF)) & 0xFF;
+            checksumB = (checksumB + checksumA) & 0xFF;
+        }
+        command[command.length - 2] = (byte) checksumA;
+        command[command.length - 1] = (byte) checksumB;
+        return command;
+    }
+
+    /**
+     * Generates the CFG-PRT command setting the speed of the UART, 8N1, keeping UBX and NMEA
+     * in and out.
+     */
+    public static byte[] genSetBaudRateCommand(int baudRate) {
+        ByteBuffer payload = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        payload.put((byte) PORT_UART_1);
+        payload.put((byte) 0);
+        // txReady
+        payload.putShort((short) 0);
+        payload.putInt(MODE_8N1);
+        payload.putInt(baudRate);
+        payload.putShort((short) (PROTO_UBX | PROTO_NMEA | PROTO_RTCM));
+        payload.putShort((short) (PROTO_UBX | PROTO_NMEA));
+        // flags and reserved
+        payload.putShort((short) 0);
+        payload.putShort((short) 0);
+        return genUbxCommand(CLASS_CFG, ID_CFG_PRT, payload.array());
+    }
+}
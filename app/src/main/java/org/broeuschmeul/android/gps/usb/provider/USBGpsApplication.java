@@ -1,13 +1,20 @@
 package org.broeuschmeul.android.gps.usb.provider;
 
+import android.annotation.TargetApi;
 import android.app.Application;
 import android.content.SharedPreferences;
 import android.location.Location;
+import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatDelegate;
+import android.view.Choreographer;
 
-import java.util.ArrayList;
+import java.nio.charset.Charset;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by freshollie on 15/05/17.
@@ -18,21 +25,93 @@ public class USBGpsApplication extends Application {
 
     private int LOG_SIZE = 100;
 
-    private final ArrayList<ServiceDataListener> serviceDataListeners = new ArrayList<>();
-    private Location lastLocation;
-    private ArrayList<String> logLines = new ArrayList<>();
+    // time between two UI updates when they are not synchronized with the display frames
+    private static final long FRAME_INTERVAL = 16;
+
+    // what changed since the last UI update
+    private static final int DIRTY_SENTENCE = 1;
+    private static final int DIRTY_LOCATION = 1 << 1;
+
+    // copied on change: registered from the UI, iterated while notifying
+    private final CopyOnWriteArrayList<ServiceDataListener> serviceDataListeners = new CopyOnWriteArrayList<>();
+    // copy of the last fix, made on the reading thread as the parser reuses its locations
+    private final Location lastLocation = new Location("");
+    private boolean hasLocation = false;
+    // copy of lastLocation given to the UI, only used on the main thread
+    private Location uiLocation;
+
+    // longest sentence kept in the log
+    private static final int MAX_LOG_LINE = 256;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // the last LOG_SIZE sentences as received, oldest first from logStart
+    private final byte[][] logSentences = new byte[LOG_SIZE][MAX_LOG_LINE];
+    private final int[] logLengths = new int[LOG_SIZE];
+    // the same sentences as Strings, only made when the UI asks for them
+    private final String[] logLines = new String[LOG_SIZE];
+    private final boolean[] logLineStale = new boolean[LOG_SIZE];
+    private int logStart = 0;
 
     private Handler mainHandler;
 
+    private final AtomicInteger dirty = new AtomicInteger();
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+    // 0 to update the UI once per display frame
+    private volatile long minUpdateInterval = 0;
+    // SystemClock.uptimeMillis() of the last UI update
+    private volatile long lastUpdate = 0;
+    private FrameScheduler frameScheduler;
+
+    private final Runnable scheduleUpdate = new Runnable() {
+        @Override
+        public void run() {
+            if (frameScheduler != null && minUpdateInterval == 0) {
+                frameScheduler.postFrameCallback();
+            } else {
+                publishUpdate();
+            }
+        }
+    };
+
     static {
 
     }
 
+    /**
+     * Receives the data of the service on the main thread.
+     * <p>
+     * The updates are coalesced: the listener is called at most once per display frame, or per
+     * {@link #setMaxUpdateRate(int) update interval}, with the latest values.
+     */
     public interface ServiceDataListener {
+        /**
+         * @param sentence the last sentence received, the previous ones are in {@link #getLogLines()}
+         */
         void onNewSentence(String sentence);
+
+        /**
+         * @param location the last fix, reused for the later updates:
+         *                 copy it to keep it.
+         */
         void onLocationNotified(Location location);
     }
 
+    /**
+     * Runs the UI updates in sync with the display frames, on API 16 and later.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class FrameScheduler implements Choreographer.FrameCallback {
+        void postFrameCallback() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            publishUpdate();
+        }
+    }
+
     private void setupDaynightMode() {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         boolean on = preferences.getBoolean(getString(R.string.pref_daynight_theme_key), false);
@@ -48,8 +127,11 @@ public class USBGpsApplication extends Application {
         setupDaynightMode();
         locationAsked = false;
         mainHandler = new Handler(getMainLooper());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            frameScheduler = new FrameScheduler();
+        }
         for (int i = 0; i < LOG_SIZE; i++) {
-            logLines.add("");
+            logLines[i] = "";
         }
         super.onCreate();
     }
@@ -67,54 +149,145 @@ public class USBGpsApplication extends Application {
         locationAsked = false;
     }
 
+    /**
+     * @return the last sentences received, oldest first
+     */
     public String[] getLogLines() {
-        return logLines.toArray(new String[logLines.size()]);
+        String[] lines = new String[LOG_SIZE];
+        synchronized (logLines) {
+            for (int i = 0; i < LOG_SIZE; i++) {
+                getLogLine(i);
+            }
+            System.arraycopy(logLines, logStart, lines, 0, LOG_SIZE - logStart);
+            System.arraycopy(logLines, 0, lines, LOG_SIZE - logStart, logStart);
+        }
+        return lines;
     }
 
+    /**
+     * @return the last sentence received, empty if none
+     */
+    private String getLastSentence() {
+        synchronized (logLines) {
+            return getLogLine((logStart + LOG_SIZE - 1) % LOG_SIZE);
+        }
+    }
+
+    /**
+     * Makes the String of a line of the log if it changed, called holding the log lock.
+     */
+    private String getLogLine(int index) {
+        if (logLineStale[index]) {
+            logLines[index] = new String(logSentences[index], 0, logLengths[index], US_ASCII);
+            logLineStale[index] = false;
+        }
+        return logLines[index];
+    }
+
+    /**
+     * Limits the rate of the UI updates, by default they follow the display frames.
+     *
+     * @param updatesPerSecond the maximum number of updates per second, 0 for one per frame
+     */
+    public void setMaxUpdateRate(int updatesPerSecond) {
+        minUpdateInterval = (updatesPerSecond > 0) ? 1000 / updatesPerSecond : 0;
+    }
+
+    /**
+     * Must be called on the main thread.
+     *
+     * @return the last fix, reused for the later updates, null if none
+     */
     public Location getLastLocation() {
-        return lastLocation;
+        synchronized (lastLocation) {
+            if (hasLocation) {
+                if (uiLocation == null) {
+                    uiLocation = new Location(lastLocation);
+                } else {
+                    uiLocation.set(lastLocation);
+                }
+                hasLocation = false;
+            }
+        }
+        return uiLocation;
     }
 
     public void registerServiceDataListener(ServiceDataListener listener) {
-        serviceDataListeners.add(listener);
+        serviceDataListeners.addIfAbsent(listener);
     }
 
     public void unregisterServiceDataListener(ServiceDataListener listener) {
         serviceDataListeners.remove(listener);
     }
 
-    public void notifyNewSentence(final String sentence) {
-        if (logLines.size() > LOG_SIZE) {
-            logLines.remove(0);
+    /**
+     * Keeps a copy of the sentence for the log, without making a String of it.
+     * Called from the reading thread.
+     *
+     * @param buffer the bytes received
+     * @param start  index of the first character of the sentence
+     * @param length length of the sentence, without its end of line
+     */
+    public void notifyNewSentence(byte[] buffer, int start, int length) {
+        length = Math.min(length, MAX_LOG_LINE);
+        synchronized (logLines) {
+            System.arraycopy(buffer, start, logSentences[logStart], 0, length);
+            logLengths[logStart] = length;
+            logLineStale[logStart] = true;
+            logStart = (logStart + 1) % LOG_SIZE;
         }
+        markDirty(DIRTY_SENTENCE);
+    }
 
-        logLines.add(sentence);
+    /**
+     * @param location the new fix, copied before the parser reuses it
+     */
+    public void notifyNewLocation(Location location) {
+        synchronized (lastLocation) {
+            lastLocation.set(location);
+            hasLocation = true;
+        }
+        markDirty(DIRTY_LOCATION);
+    }
 
-        synchronized (serviceDataListeners) {
-            mainHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    for (ServiceDataListener dataListener: serviceDataListeners) {
-                        dataListener.onNewSentence(sentence);
-                    }
-                }
-            });
+    /**
+     * Records what changed and schedules a UI update, unless one is already pending.
+     * Called from the reading thread.
+     */
+    private void markDirty(int flag) {
+        int flags;
+        do {
+            flags = dirty.get();
+        } while ((flags & flag) == 0 && !dirty.compareAndSet(flags, flags | flag));
 
+        if (!serviceDataListeners.isEmpty() && updateScheduled.compareAndSet(false, true)) {
+            long interval = (minUpdateInterval > 0 || frameScheduler == null) ?
+                    Math.max(minUpdateInterval, FRAME_INTERVAL) : 0;
+            long updateTime = Math.max(SystemClock.uptimeMillis(), lastUpdate + interval);
+            mainHandler.postAtTime(scheduleUpdate, updateTime);
         }
     }
 
-    public void notifyNewLocation(final Location location) {
-        lastLocation = location;
-        synchronized (serviceDataListeners) {
-            mainHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    for (ServiceDataListener dataListener: serviceDataListeners) {
-                        dataListener.onLocationNotified(location);
-                    }
-                }
-            });
+    /**
+     * Gives the latest values to the listeners, on the main thread.
+     */
+    private void publishUpdate() {
+        lastUpdate = SystemClock.uptimeMillis();
+        // cleared first, so that a change made meanwhile schedules the next update
+        updateScheduled.set(false);
+        int flags = dirty.getAndSet(0);
 
+        if ((flags & DIRTY_LOCATION) != 0) {
+            Location location = getLastLocation();
+            for (ServiceDataListener dataListener: serviceDataListeners) {
+                dataListener.onLocationNotified(location);
+            }
+        }
+        if ((flags & DIRTY_SENTENCE) != 0) {
+            String sentence = getLastSentence();
+            for (ServiceDataListener dataListener: serviceDataListeners) {
+                dataListener.onNewSentence(sentence);
+            }
         }
     }
 }
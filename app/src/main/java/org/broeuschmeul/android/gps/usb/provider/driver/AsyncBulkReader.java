@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.broeuschmeul.android.gps.usb.provider.util.ByteRingBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a {@link BulkInEndpoint} into a {@link ByteRingBuffer}, keeping several transfers
+ * queued so that the endpoint is always being read, even while a completed transfer is copied.
+ * <p>
+ * Each transfer reads one packet of the endpoint, and is queued again as soon as its data
+ * has been copied into the ring buffer. The status bytes some bridges put at the start of each
+ * packet are skipped.
+ * <p>
+ * The transfers are cancelled by {@link #close()} from any thread, and freed by the reading
+ * thread when it stops.
+ */
+public class AsyncBulkReader implements Runnable {
+
+    public static final int DEFAULT_TRANSFERS = 8;
+
+    private final BulkInEndpoint endpoint;
+    private final ByteRingBuffer ring;
+    private final int transfers;
+    private final int headerLength;
+
+    private volatile boolean closed = false;
+    private volatile long bytesRead = 0;
+    private volatile long transfersCompleted = 0;
+
+    public AsyncBulkReader(BulkInEndpoint endpoint, ByteRingBuffer ring) {
+        this(endpoint, ring, 0);
+    }
+
+    /**
+     * @param headerLength number of status bytes at the start of each packet
+     */
+    public AsyncBulkReader(BulkInEndpoint endpoint, ByteRingBuffer ring, int headerLength) {
+        this(endpoint, ring, headerLength, DEFAULT_TRANSFERS);
+    }
+
+    /**
+     * @param headerLength number of status bytes at the start of each packet
+     * @param transfers    number of transfers kept queued
+     */
+    public AsyncBulkReader(BulkInEndpoint endpoint, ByteRingBuffer ring, int headerLength, int transfers) {
+        this.endpoint = endpoint;
+        this.ring = ring;
+        this.headerLength = headerLength;
+        this.transfers = transfers;
+    }
+
+    /**
+     * Reads until {@link #close()} is called, the endpoint fails or the ring buffer is closed.
+     */
+    @Override
+    public void run() {
+        int packetSize = Math.max(endpoint.getMaxPacketSize(), 8);
+        ByteBuffer[] buffers = new ByteBuffer[transfers];
+
+        try {
+            endpoint.open(transfers);
+            for (int slot = 0; slot < transfers; slot++) {
+                buffers[slot] = ByteBuffer.allocate(packetSize);
+                endpoint.queue(slot, buffers[slot]);
+            }
+
+            while (!closed) {
+                int slot = endpoint.waitCompleted();
+                if (slot < 0 || closed) {
+                    break;
+                }
+
+                ByteBuffer buffer = buffers[slot];
+                int length = buffer.position() - headerLength;
+                if (length > 0) {
+                    if (!ring.write(buffer.array(), buffer.arrayOffset() + headerLength, length)) {
+                        break;
+                    }
+                    bytesRead += length;
+                }
+                transfersCompleted++;
+
+                buffer.clear();
+                endpoint.queue(slot, buffer);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                ring.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            endpoint.close();
+            // nobody waits for the transfers anymore
+            endpoint.release();
+        }
+    }
+
+    /**
+     * Stops reading, cancelling the queued transfers.
+     */
+    public void close() {
+        closed = true;
+        endpoint.close();
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getTransfersCompleted() {
+        return transfersCompleted;
+    }
+}
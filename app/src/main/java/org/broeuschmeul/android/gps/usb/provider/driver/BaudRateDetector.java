@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.os.SystemClock;
+
+/**
+ * Finds the baud rate of a serial GPS by looking at what it sends.
+ * <p>
+ * Each candidate rate is set in turn and the bytes received are scored: a few NMEA sentences with
+ * a valid checksum, or a few UBX or SiRF binary sync words, mean the rate is the right one,
+ * while a burst of bytes without any of them means it is not. So a wrong rate is dropped as soon
+ * as the GPS sends something, instead of waiting a fixed time.
+ * <p>
+ * The rate is set by the detecting thread with {@link #detect(Line, int[], long)}, while the
+ * reading thread gives the bytes it receives to {@link #onData(byte[], int, int)}.
+ */
+public class BaudRateDetector {
+
+    public static final int PROTOCOL_UNKNOWN = 0;
+    public static final int PROTOCOL_NMEA = 1;
+    public static final int PROTOCOL_UBX = 2;
+    public static final int PROTOCOL_SIRF = 3;
+
+    /**
+     * The usual rates of GPS receivers, the most common first.
+     */
+    public static final int[] COMMON_RATES = {9600, 4800, 38400, 115200, 57600, 19200, 2400, 1200};
+
+    // valid sentences or sync words needed to accept a rate
+    private static final int NMEA_CONFIDENCE = 2;
+    private static final int BINARY_CONFIDENCE = 3;
+    // bytes without anything valid after which a rate is rejected
+    private static final int REJECT_BYTES = 300;
+    // bytes received right after a rate change are ignored, they may have been sent at the old rate
+    private static final long SETTLE_TIME = 20;
+
+    private static final int MAX_SENTENCE_LENGTH = 128;
+
+    /**
+     * The serial line of the GPS.
+     */
+    public interface Line {
+        /**
+         * @return false if the rate couldn't be set
+         */
+        boolean setBaudRate(int baudRate);
+    }
+
+    private final Object lock = new Object();
+    private volatile boolean detecting = false;
+    // elapsedRealtime() until which the received bytes are ignored
+    private long settleTime;
+
+    // score of the current trial
+    private int byteCount;
+    private int nmeaCount;
+    private int ubxCount;
+    private int sirfCount;
+
+    // NMEA checksum scanner
+    private boolean inSentence = false;
+    private int sentenceLength;
+    private int checksum;
+    private int checksumDigits;
+    private int expectedChecksum;
+    private int previousByte = -1;
+
+    private int protocol = PROTOCOL_UNKNOWN;
+
+    /**
+     * Orders the rates to try: the given ones first, if valid, then the common ones.
+     *
+     * @param preferredRates the most likely rates, e.g. the last one used or the one set in the device
+     */
+    public static int[] candidates(int... preferredRates) {
+        int[] rates = new int[preferredRates.length + COMMON_RATES.length];
+        int count = 0;
+        for (int rate : preferredRates) {
+            count = addRate(rates, count, rate);
+        }
+        for (int rate : COMMON_RATES) {
+            count = addRate(rates, count, rate);
+        }
+        int[] candidates = new int[count];
+        System.arraycopy(rates, 0, candidates, 0, count);
+        return candidates;
+    }
+
+    private static int addRate(int[] rates, int count, int rate) {
+        if (rate <= 0) {
+            return count;
+        }
+        for (int i = 0; i < count; i++) {
+            if (rates[i] == rate) {
+                return count;
+            }
+        }
+        rates[count] = rate;
+        return count + 1;
+    }
+
+    /**
+     * Tries the candidate rates in turn, until one of them is accepted.
+     *
+     * @param line         the line to set the rates on
+     * @param candidates   the rates to try, in order
+     * @param trialTimeout maximum time to wait for a verdict on a rate, in milliseconds:
+     *                     a bit more than the time between two bursts of data of the GPS
+     * @return the rate found, -1 if none was accepted
+     */
+    public int detect(Line line, int[] candidates, long trialTimeout) throws InterruptedException {
+        protocol = PROTOCOL_UNKNOWN;
+        try {
+            for (int rate : candidates) {
+                if (!line.setBaudRate(rate)) {
+                    continue;
+                }
+
+                synchronized (lock) {
+                    resetScore();
+                    settleTime = SystemClock.elapsedRealtime() + SETTLE_TIME;
+                    detecting = true;
+
+                    long deadline = SystemClock.elapsedRealtime() + trialTimeout;
+                    long remaining = trialTimeout;
+                    while (scoreProtocol() == PROTOCOL_UNKNOWN && !isRejected() && remaining > 0) {
+                        lock.wait(remaining);
+                        remaining = deadline - SystemClock.elapsedRealtime();
+                    }
+                    protocol = scoreProtocol();
+                }
+
+                if (protocol != PROTOCOL_UNKNOWN) {
+                    return rate;
+                }
+            }
+            return -1;
+        } finally {
+            detecting = false;
+        }
+    }
+
+    /**
+     * @return true while the rates are being tried, so that the received bytes are needed
+     */
+    public boolean isDetecting() {
+        return detecting;
+    }
+
+    /**
+     * @return the protocol seen at the rate found, {@link #PROTOCOL_UNKNOWN} if none
+     */
+    public int getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Scores the bytes received at the rate being tried.
+     */
+    public void onData(byte[] data, int offset, int length) {
+        if (!detecting) {
+            return;
+        }
+        synchronized (lock) {
+            if (!detecting || SystemClock.elapsedRealtime() < settleTime) {
+                return;
+            }
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                scoreByte(data[i] & 0xFF);
+            }
+            byteCount += length;
+
+            if (scoreProtocol() != PROTOCOL_UNKNOWN || isRejected()) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void scoreByte(int b) {
+        // binary sync words: B5 62 for UBX, A0 A2 for SiRF
+        if (previousByte == 0xB5 && b == 0x62) {
+            ubxCount++;
+        } else if (previousByte == 0xA0 && b == 0xA2) {
+            sirfCount++;
+        }
+        previousByte = b;
+
+        if (b == '$') {
+            inSentence = true;
+            sentenceLength = 0;
+            checksum = 0;
+            checksumDigits = -1;
+            return;
+        }
+        if (!inSentence) {
+            return;
+        }
+
+        if (++sentenceLength > MAX_SENTENCE_LENGTH) {
+            inSentence = false;
+        } else if (checksumDigits < 0) {
+            if (b == '*') {
+                checksumDigits = 0;
+                expectedChecksum = 0;
+            } else if (b < 0x20 || b > 0x7E) {
+                inSentence = false;
+            } else {
+                checksum ^= b;
+            }
+        } else {
+            int digit = Character.digit(b, 16);
+            if (digit < 0) {
+                inSentence = false;
+            } else {
+                expectedChecksum = (expectedChecksum << 4) | digit;
+                if (++checksumDigits == 2) {
+                    if (expectedChecksum == checksum) {
+                        nmeaCount++;
+                    }
+                    inSentence = false;
+                }
+            }
+        }
+    }
+
+    private int scoreProtocol() {
+        if (nmeaCount >= NMEA_CONFIDENCE) {
+            return PROTOCOL_NMEA;
+        }
+        if (ubxCount >= BINARY_CONFIDENCE) {
+            return PROTOCOL_UBX;
+        }
+        if (sirfCount >= BINARY_CONFIDENCE) {
+            return PROTOCOL_SIRF;
+        }
+        return PROTOCOL_UNKNOWN;
+    }
+
+    private boolean isRejected() {
+        return byteCount >= REJECT_BYTES && nmeaCount == 0 && ubxCount == 0 && sirfCount == 0;
+    }
+
+    private void resetScore() {
+        byteCount = 0;
+        nmeaCount = 0;
+        ubxCount = 0;
+        sirfCount = 0;
+        inSentence = false;
+        previousByte = -1;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The bulk IN endpoint of the GPS, read with several asynchronous transfers at a time.
+ * <p>
+ * Each transfer is identified by a slot number, from 0 to the number of slots given when opening.
+ * The USB implementation is {@link UsbRequestEndpoint}, a fake one can be used to drive
+ * an {@link AsyncBulkReader} without any device.
+ */
+public interface BulkInEndpoint {
+
+    /**
+     * @return the maximum size of a packet of the endpoint
+     */
+    int getMaxPacketSize();
+
+    /**
+     * Prepares the given number of transfer slots.
+     */
+    void open(int slots) throws IOException;
+
+    /**
+     * Queues a transfer reading into the buffer, from its position to its limit.
+     */
+    void queue(int slot, ByteBuffer buffer) throws IOException;
+
+    /**
+     * Waits for the completion of one of the queued transfers.
+     * The position of its buffer is then the end of the data read.
+     *
+     * @return the slot of the completed transfer, -1 if the endpoint was closed
+     */
+    int waitCompleted() throws IOException;
+
+    /**
+     * Cancels the queued transfers, a thread blocked in {@link #waitCompleted()} returns.
+     * Can be called from any thread.
+     */
+    void close();
+
+    /**
+     * Frees the slots, called by the reading thread after {@link #close()},
+     * once it no longer waits for their transfers.
+     */
+    void release();
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * USB Communication Device Class, Abstract Control Model: GPS chips with native USB,
+ * e.g. u-blox or SiRF based receivers, and the default for unknown devices.
+ */
+public class CdcAcmSerialDriver extends UsbSerialDriver {
+
+    static final int REQUEST_TYPE_OUT = 0x21;
+    static final int REQUEST_TYPE_IN = 0xA1;
+    static final int SET_LINE_CODING = 0x20;
+    static final int GET_LINE_CODING = 0x21;
+    static final int SET_CONTROL_LINE_STATE = 0x22;
+
+    // the requests go to the communication interface, the first one
+    private static final int CONTROL_INTERFACE = 0;
+
+    public CdcAcmSerialDriver(UsbControl control, int interfaceIndex) {
+        super(control, interfaceIndex);
+    }
+
+    @Override
+    public String getName() {
+        return "CDC ACM";
+    }
+
+    @Override
+    public void open() throws IOException {
+        setControlLines(false, false);
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) throws IOException {
+        controlOut(REQUEST_TYPE_OUT, SET_LINE_CODING, 0, CONTROL_INTERFACE, lineCoding(baudRate));
+    }
+
+    @Override
+    public int getBaudRate() throws IOException {
+        byte[] lineCoding = controlIn(REQUEST_TYPE_IN, GET_LINE_CODING, 0, CONTROL_INTERFACE, 7);
+        return ByteBuffer.wrap(lineCoding, 0, 4).order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+    }
+
+    @Override
+    public void setControlLines(boolean dtr, boolean rts) throws IOException {
+        int value = (dtr ? 0x01 : 0) | (rts ? 0x02 : 0);
+        controlOut(REQUEST_TYPE_OUT, SET_CONTROL_LINE_STATE, value, CONTROL_INTERFACE, null);
+    }
+
+    @Override
+    public void setFlowControl(boolean rtsCts) throws IOException {
+        if (rtsCts) {
+            throw new IOException(getName() + " has no hardware flow control");
+        }
+    }
+
+    /**
+     * @return the CDC line coding structure: speed, 1 stop bit, no parity, 8 data bits
+     */
+    static byte[] lineCoding(int baudRate) {
+        byte[] lineCoding = {0, 0, 0, 0, 0x00, 0x00, 0x08};
+        ByteBuffer.wrap(lineCoding, 0, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, baudRate);
+        return lineCoding;
+    }
+}
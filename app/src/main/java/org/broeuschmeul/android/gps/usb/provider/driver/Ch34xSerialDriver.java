@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.IOException;
+
+/**
+ * QinHeng CH340 / CH341 USB to serial bridge, found in cheap GPS modules.
+ * <p>
+ * It has no documented requests for flow control nor for purging its buffers.
+ */
+public class Ch34xSerialDriver extends UsbSerialDriver {
+
+    private static final int VENDOR_OUT = 0x40;
+    private static final int VENDOR_IN = 0xC0;
+
+    private static final int READ_VERSION = 0x5F;
+    private static final int READ_REGISTER = 0x95;
+    private static final int WRITE_REGISTER = 0x9A;
+    private static final int SERIAL_INIT = 0xA1;
+    private static final int MODEM_CTRL = 0xA4;
+
+    private static final int CONTROL_DTR = 1 << 5;
+    private static final int CONTROL_RTS = 1 << 6;
+
+    private static final long BAUD_FACTOR = 1532620800L;
+    private static final int DEFAULT_BAUD_RATE = 9600;
+
+    private boolean dtr = false;
+    private boolean rts = false;
+
+    public Ch34xSerialDriver(UsbControl control, int interfaceIndex) {
+        super(control, interfaceIndex);
+    }
+
+    @Override
+    public String getName() {
+        return "CH34x";
+    }
+
+    @Override
+    public void open() throws IOException {
+        controlIn(VENDOR_IN, READ_VERSION, 0, 0, 2);
+        controlOut(VENDOR_OUT, SERIAL_INIT, 0, 0, null);
+        setBaudRate(DEFAULT_BAUD_RATE);
+        controlIn(VENDOR_IN, READ_REGISTER, 0x2518, 0, 2);
+        controlOut(VENDOR_OUT, WRITE_REGISTER, 0x2518, 0x00C3, null);
+        controlIn(VENDOR_IN, READ_REGISTER, 0x0706, 0, 2);
+        controlOut(VENDOR_OUT, SERIAL_INIT, 0x501F, 0xD90A, null);
+        setBaudRate(DEFAULT_BAUD_RATE);
+        writeControlLines();
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) throws IOException {
+        int factor;
+        int divisor;
+        if (baudRate == 921600) {
+            divisor = 7;
+            factor = 0xF300;
+        } else {
+            factor = (int) (BAUD_FACTOR / baudRate);
+            divisor = 3;
+            while (factor > 0xFFF0 && divisor > 0) {
+                factor >>= 3;
+                divisor--;
+            }
+            if (factor > 0xFFF0) {
+                throw new IOException(getName() + " can't do " + baudRate + " bauds");
+            }
+            factor = 0x10000 - factor;
+        }
+        divisor |= 0x0080;
+
+        controlOut(VENDOR_OUT, WRITE_REGISTER, 0x1312, (factor & 0xFF00) | divisor, null);
+        controlOut(VENDOR_OUT, WRITE_REGISTER, 0x0F2C, factor & 0xFF, null);
+    }
+
+    @Override
+    public void setControlLines(boolean dtr, boolean rts) throws IOException {
+        this.dtr = dtr;
+        this.rts = rts;
+        writeControlLines();
+    }
+
+    @Override
+    public void setFlowControl(boolean rtsCts) throws IOException {
+        if (rtsCts) {
+            throw new IOException(getName() + " has no hardware flow control");
+        }
+    }
+
+    private void writeControlLines() throws IOException {
+        int value = ~((dtr ? CONTROL_DTR : 0) | (rts ? CONTROL_RTS : 0));
+        controlOut(VENDOR_OUT, MODEM_CTRL, value & 0xFFFF, 0, null);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends the commands to the GPS from its own thread, so that nobody waits for the link.
+ * <p>
+ * The commands are queued until the link is {@link #setReady(boolean) ready}, then written as
+ * soon as possible: the commands queued meanwhile are sent together in a single write.
+ * Each command gives a {@link Future} completed once it is written, or failed if it couldn't be.
+ * <p>
+ * The commands setting up the link itself, e.g. its speed, are
+ * {@link #submitLinkCommand(byte[]) sent} before the link is ready, ahead of the others.
+ */
+public class CommandWriter {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Maximum size of a write gathering several commands.
+     */
+    private static final int MAX_WRITE_SIZE = 1024;
+
+    /**
+     * A command waiting to be written.
+     */
+    public static class Command implements Future<Void> {
+        private final CommandWriter writer;
+        private final byte[] data;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled = false;
+        private volatile IOException error;
+
+        private Command(CommandWriter writer, byte[] data) {
+            this.writer = writer;
+            this.data = data;
+        }
+
+        private void complete(IOException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        /**
+         * Cancels the command if it was not written yet.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!writer.remove(this)) {
+                return false;
+            }
+            cancelled = true;
+            complete(null);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * @return true if the command was written
+         */
+        public boolean isWritten() {
+            return isDone() && error == null && !cancelled;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException("command not written after " + unit.toMillis(timeout) + " ms");
+            }
+            return result();
+        }
+
+        private Void result() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException("command cancelled");
+            }
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return null;
+        }
+    }
+
+    private final GpsTransport transport;
+    private final int capacity;
+    private final ArrayDeque<Command> queue;
+    private final ArrayDeque<Command> linkQueue;
+    private final byte[] writeBuffer = new byte[MAX_WRITE_SIZE];
+
+    private boolean ready = false;
+    private boolean closed = false;
+    private Thread writer;
+
+    private volatile long commandsWritten = 0;
+    private volatile long writes = 0;
+    private volatile long commandsRejected = 0;
+
+    public CommandWriter(GpsTransport transport) {
+        this(transport, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of commands waiting to be written
+     */
+    public CommandWriter(GpsTransport transport, int capacity) {
+        this.transport = transport;
+        this.capacity = capacity;
+        this.queue = new ArrayDeque<>(capacity);
+        this.linkQueue = new ArrayDeque<>();
+    }
+
+    /**
+     * Starts the writing thread.
+     */
+    public synchronized void start() {
+        if (writer != null || closed) {
+            return;
+        }
+        writer = new Thread("USB GPS writer") {
+            @Override
+            public void run() {
+                writeCommands();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Tells whether the GPS can receive commands, they are kept queued until it can.
+     */
+    public synchronized void setReady(boolean ready) {
+        if (this.ready != ready) {
+            this.ready = ready;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Queues a command.
+     *
+     * @return the command, already failed if the queue is full or the writer closed
+     */
+    public Command submit(byte[] data) {
+        return submit(queue, data);
+    }
+
+    /**
+     * Queues a command setting up the link, written even if the link is not ready
+     * and before the commands already queued.
+     *
+     * @return the command, already failed if the queue is full or the writer closed
+     */
+    public Command submitLinkCommand(byte[] data) {
+        return submit(linkQueue, data);
+    }
+
+    private Command submit(ArrayDeque<Command> commands, byte[] data) {
+        Command command = new Command(this, data);
+        synchronized (this) {
+            if (closed) {
+                command.complete(new IOException("command writer closed"));
+            } else if (commands.size() >= capacity) {
+                commandsRejected++;
+                command.complete(new IOException("command queue full, " + capacity + " commands waiting"));
+            } else {
+                commands.add(command);
+                notifyAll();
+            }
+        }
+        return command;
+    }
+
+    private synchronized boolean remove(Command command) {
+        return linkQueue.remove(command) || queue.remove(command);
+    }
+
+    /**
+     * @return the number of commands waiting to be written
+     */
+    public synchronized int getPendingCount() {
+        return linkQueue.size() + queue.size();
+    }
+
+    public long getCommandsWritten() {
+        return commandsWritten;
+    }
+
+    /**
+     * @return the number of writes, each of them gathering one or more commands
+     */
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getCommandsRejected() {
+        return commandsRejected;
+    }
+
+    /**
+     * Stops the writing thread, the commands not written yet fail.
+     */
+    public void close() {
+        List<Command> dropped;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            dropped = new ArrayList<>(linkQueue);
+            dropped.addAll(queue);
+            linkQueue.clear();
+            queue.clear();
+            notifyAll();
+        }
+        IOException error = new IOException("command writer closed");
+        for (Command command : dropped) {
+            command.complete(error);
+        }
+    }
+
+    private void writeCommands() {
+        List<Command> batch = new ArrayList<>();
+        try {
+            while (takeBatch(batch)) {
+                IOException error = null;
+                try {
+                    if (batch.size() == 1) {
+                        byte[] data = batch.get(0).data;
+                        transport.write(data, 0, data.length);
+                    } else {
+                        int length = 0;
+                        for (Command command : batch) {
+                            System.arraycopy(command.data, 0, writeBuffer, length, command.data.length);
+                            length += command.data.length;
+                        }
+                        transport.write(writeBuffer, 0, length);
+                    }
+                    writes++;
+                    commandsWritten += batch.size();
+                } catch (IOException e) {
+                    error = e;
+                }
+                for (Command command : batch) {
+                    command.complete(error);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            close();
+        }
+    }
+
+    /**
+     * Waits for link commands, or for commands and a ready link, then takes the first command
+     * and those following it that fit in the write buffer with it.
+     *
+     * @return false once closed
+     */
+    private synchronized boolean takeBatch(List<Command> batch) throws InterruptedException {
+        while (!closed && linkQueue.isEmpty() && (!ready || queue.isEmpty())) {
+            wait();
+        }
+        if (closed) {
+            return false;
+        }
+
+        ArrayDeque<Command> queue = linkQueue.isEmpty() ? this.queue : linkQueue;
+        Command command = queue.poll();
+        batch.add(command);
+        int length = command.data.length;
+        while ((command = queue.peek()) != null && length + command.data.length <= writeBuffer.length) {
+            queue.poll();
+            batch.add(command);
+            length += command.data.length;
+        }
+        return true;
+    }
+}
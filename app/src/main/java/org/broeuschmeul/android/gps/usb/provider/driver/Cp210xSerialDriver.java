@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.IOException;
+
+/**
+ * Silicon Labs CP210x USB to serial bridge, used by many u-blox based GPS.
+ */
+public class Cp210xSerialDriver extends UsbSerialDriver {
+
+    private static final int REQUEST_TYPE_OUT = 0x41;
+
+    private static final int IFC_ENABLE = 0x00;
+    private static final int SET_LINE_CTL = 0x03;
+    private static final int SET_MHS = 0x07;
+    private static final int PURGE = 0x12;
+    private static final int SET_FLOW = 0x13;
+    private static final int SET_BAUDRATE = 0x1E;
+
+    private static final int UART_ENABLE = 0x0001;
+    // 8 data bits, no parity, 1 stop bit
+    private static final int LINE_CTL_8N1 = 0x0800;
+
+    private static final int MHS_DTR = 0x0001;
+    private static final int MHS_RTS = 0x0002;
+    private static final int MHS_DTR_MASK = 0x0100;
+    private static final int MHS_RTS_MASK = 0x0200;
+
+    private static final int PURGE_ALL = 0x000A | 0x0005;
+
+    public Cp210xSerialDriver(UsbControl control, int interfaceIndex) {
+        super(control, interfaceIndex);
+    }
+
+    @Override
+    public String getName() {
+        return "CP210x";
+    }
+
+    @Override
+    public void open() throws IOException {
+        request(IFC_ENABLE, UART_ENABLE, null);
+        request(SET_LINE_CTL, LINE_CTL_8N1, null);
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) throws IOException {
+        byte[] data = {
+                (byte) baudRate,
+                (byte) (baudRate >> 8),
+                (byte) (baudRate >> 16),
+                (byte) (baudRate >> 24)
+        };
+        request(SET_BAUDRATE, 0, data);
+        request(SET_LINE_CTL, LINE_CTL_8N1, null);
+    }
+
+    @Override
+    public void setControlLines(boolean dtr, boolean rts) throws IOException {
+        int value = MHS_DTR_MASK | MHS_RTS_MASK | (dtr ? MHS_DTR : 0) | (rts ? MHS_RTS : 0);
+        request(SET_MHS, value, null);
+    }
+
+    @Override
+    public void setFlowControl(boolean rtsCts) throws IOException {
+        byte[] data = new byte[16];
+        if (rtsCts) {
+            data[0] = 0x09;
+            data[4] = (byte) 0x80;
+        } else {
+            data[0] = 0x01;
+            data[4] = 0x40;
+        }
+        request(SET_FLOW, 0, data);
+    }
+
+    @Override
+    public void purge() throws IOException {
+        request(PURGE, PURGE_ALL, null);
+    }
+
+    private void request(int request, int value, byte[] data) throws IOException {
+        controlOut(REQUEST_TYPE_OUT, request, value, interfaceIndex, data);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.usb.UsbDevice;
+import android.os.Build;
+
+/**
+ * Keeps what was learnt about each USB GPS during its last connection, so that the next one
+ * can start with it: the speed, the interface and endpoints used, the protocol and the sentences
+ * of an epoch. Whatever turns out to be wrong is found again the usual way.
+ * <p>
+ * The devices are told apart by vendor id, product id and serial number.
+ */
+public class DeviceProfileStore {
+
+    private static final String PREFERENCES_NAME = "usb_gps_device_profiles";
+
+    private static final String KEY_BAUD_RATE = "baud_rate";
+    private static final String KEY_INTERFACE = "interface";
+    private static final String KEY_ENDPOINT_IN = "endpoint_in";
+    private static final String KEY_ENDPOINT_OUT = "endpoint_out";
+    private static final String KEY_PROTOCOL = "protocol";
+    private static final String KEY_SENTENCES = "sentences";
+    private static final String KEY_UPDATE_PERIOD = "update_period";
+
+    /**
+     * What is known of a device, -1 (or 0 for the masks) when unknown.
+     */
+    public static class Profile {
+        /**
+         * Speed of the serial line.
+         */
+        public int baudRate = -1;
+        /**
+         * Index of the interface and of its bulk endpoints.
+         */
+        public int interfaceIndex = -1;
+        public int inEndpointIndex = -1;
+        public int outEndpointIndex = -1;
+        /**
+         * One of the {@link BaudRateDetector} protocols.
+         */
+        public int protocol = BaudRateDetector.PROTOCOL_UNKNOWN;
+        /**
+         * The sentences of an epoch, a combination of the
+         * {@link org.broeuschmeul.android.gps.nmea.util.NmeaEpochAssembler} sentence types.
+         */
+        public int sentenceMask = 0;
+        /**
+         * Period between two fixes in milliseconds.
+         */
+        public int updatePeriod = -1;
+
+        @Override
+        public String toString() {
+            return "Profile[baudRate=" + baudRate +
+                    " interface=" + interfaceIndex +
+                    " endpoints=" + inEndpointIndex + "/" + outEndpointIndex +
+                    " protocol=" + protocol +
+                    " sentences=" + sentenceMask +
+                    " updatePeriod=" + updatePeriod + "]";
+        }
+    }
+
+    private final SharedPreferences preferences;
+
+    public DeviceProfileStore(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the profile of the device, null if it was never connected
+     */
+    public Profile load(UsbDevice device) {
+        String prefix = keyPrefix(device);
+        if (!preferences.contains(prefix + KEY_BAUD_RATE)) {
+            return null;
+        }
+
+        Profile profile = new Profile();
+        profile.baudRate = preferences.getInt(prefix + KEY_BAUD_RATE, -1);
+        profile.interfaceIndex = preferences.getInt(prefix + KEY_INTERFACE, -1);
+        profile.inEndpointIndex = preferences.getInt(prefix + KEY_ENDPOINT_IN, -1);
+        profile.outEndpointIndex = preferences.getInt(prefix + KEY_ENDPOINT_OUT, -1);
+        profile.protocol = preferences.getInt(prefix + KEY_PROTOCOL, BaudRateDetector.PROTOCOL_UNKNOWN);
+        profile.sentenceMask = preferences.getInt(prefix + KEY_SENTENCES, 0);
+        profile.updatePeriod = preferences.getInt(prefix + KEY_UPDATE_PERIOD, -1);
+        return profile;
+    }
+
+    public void save(UsbDevice device, Profile profile) {
+        String prefix = keyPrefix(device);
+        preferences.edit()
+                .putInt(prefix + KEY_BAUD_RATE, profile.baudRate)
+                .putInt(prefix + KEY_INTERFACE, profile.interfaceIndex)
+                .putInt(prefix + KEY_ENDPOINT_IN, profile.inEndpointIndex)
+                .putInt(prefix + KEY_ENDPOINT_OUT, profile.outEndpointIndex)
+                .putInt(prefix + KEY_PROTOCOL, profile.protocol)
+                .putInt(prefix + KEY_SENTENCES, profile.sentenceMask)
+                .putInt(prefix + KEY_UPDATE_PERIOD, profile.updatePeriod)
+                .apply();
+    }
+
+    /**
+     * Forgets the profile of the device, e.g. when it didn't work.
+     */
+    public void remove(UsbDevice device) {
+        String prefix = keyPrefix(device);
+        preferences.edit()
+                .remove(prefix + KEY_BAUD_RATE)
+                .remove(prefix + KEY_INTERFACE)
+                .remove(prefix + KEY_ENDPOINT_IN)
+                .remove(prefix + KEY_ENDPOINT_OUT)
+                .remove(prefix + KEY_PROTOCOL)
+                .remove(prefix + KEY_SENTENCES)
+                .remove(prefix + KEY_UPDATE_PERIOD)
+                .apply();
+    }
+
+    private static String keyPrefix(UsbDevice device) {
+        String serial = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                serial = device.getSerialNumber();
+            } catch (SecurityException e) {
+                // no permission to read it, the device is only known by its ids
+            }
+        }
+        return device.getVendorId() + ":" + device.getProductId() + ":" +
+                (serial != null ? serial : "") + ":";
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Replays a file recorded from a GPS receiver, e.g. an NMEA log.
+ * <p>
+ * The file can be replayed at a given data rate, or as fast as it can be read to stress
+ * the parsing, and in a loop. The data written is dropped.
+ */
+public class FileReplayTransport extends StreamGpsTransport {
+
+    private final File file;
+    private final int bytesPerSecond;
+    private final boolean loop;
+
+    /**
+     * Replays the file once, as fast as possible.
+     */
+    public FileReplayTransport(File file) {
+        this(file, 0, false);
+    }
+
+    /**
+     * @param bytesPerSecond data rate of the replay, 0 to replay as fast as possible
+     * @param loop           true to replay the file again when its end is reached
+     */
+    public FileReplayTransport(File file, int bytesPerSecond, boolean loop) {
+        super("File replay", DEFAULT_BUFFER_SIZE);
+        this.file = file;
+        this.bytesPerSecond = bytesPerSecond;
+        this.loop = loop;
+    }
+
+    @Override
+    protected InputStream openInput() throws IOException {
+        return new ReplayInputStream();
+    }
+
+    private class ReplayInputStream extends InputStream {
+        private InputStream in;
+        private final byte[] oneByteBuffer = new byte[1];
+        private final long startTime = System.nanoTime();
+        private long bytesReplayed = 0;
+
+        ReplayInputStream() throws IOException {
+            in = new FileInputStream(file);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int nb = read(oneByteBuffer, 0, 1);
+            return nb > 0 ? oneByteBuffer[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (bytesPerSecond > 0) {
+                // small chunks, so that the data comes regularly
+                length = Math.min(length, Math.max(1, bytesPerSecond / 50));
+            }
+
+            int nb = in.read(buffer, offset, length);
+            if (nb < 0 && loop && bytesReplayed > 0) {
+                in.close();
+                in = new FileInputStream(file);
+                nb = in.read(buffer, offset, length);
+            }
+
+            if (nb > 0) {
+                bytesReplayed += nb;
+                if (bytesPerSecond > 0) {
+                    pace();
+                }
+            }
+            return nb;
+        }
+
+        /**
+         * Waits until the data replayed is due.
+         */
+        private void pace() throws IOException {
+            long due = startTime + bytesReplayed * 1000000000L / bytesPerSecond;
+            long wait = (due - System.nanoTime()) / 1000000L;
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("replay interrupted");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.IOException;
+
+/**
+ * FTDI FT232 USB to serial bridge.
+ * <p>
+ * Each packet it sends starts with 2 modem status bytes, skipped by the reader.
+ * <p>
+ * The chip is told by the bcdDevice of its device descriptor. The older single port chips
+ * (FT232AM, FT232BM, FT232R) take the bit 16 of the baud rate divisor as the whole index of
+ * the request, and 0 as the index of the other requests. The multi port chips, the FT232H and
+ * the FT-X take the port number in the low byte of the index, and the high bits of the divisor
+ * in its high byte, as libftdi does.
+ */
+public class FtdiSerialDriver extends UsbSerialDriver {
+
+    private static final int REQUEST_TYPE_OUT = 0x40;
+
+    private static final int RESET = 0;
+    private static final int MODEM_CTRL = 1;
+    private static final int SET_FLOW_CTRL = 2;
+    private static final int SET_BAUD_RATE = 3;
+    private static final int SET_DATA = 4;
+    private static final int SET_LATENCY_TIMER = 9;
+
+    private static final int RESET_SIO = 0;
+    private static final int PURGE_RX = 1;
+    private static final int PURGE_TX = 2;
+
+    private static final int DTR_ON = 0x0101;
+    private static final int DTR_OFF = 0x0100;
+    private static final int RTS_ON = 0x0202;
+    private static final int RTS_OFF = 0x0200;
+
+    private static final int FLOW_NONE = 0x00;
+    private static final int FLOW_RTS_CTS = 0x01;
+
+    // 8 data bits, no parity, 1 stop bit
+    private static final int DATA_8N1 = 0x0008;
+    // flush what was received every 2 ms instead of the default 16 ms
+    private static final int LATENCY = 2;
+
+    // bcdDevice of the chips
+    private static final int CHIP_FT232AM = 0x0200;
+    private static final int CHIP_FT232BM = 0x0400;
+    private static final int CHIP_FT2232C = 0x0500;
+    private static final int CHIP_FT232R = 0x0600;
+    private static final int CHIP_FT2232H = 0x0700;
+    private static final int CHIP_FT4232H = 0x0800;
+    private static final int CHIP_FT232H = 0x0900;
+    private static final int CHIP_FTX = 0x1000;
+
+    private static final int BASE_CLOCK = 48000000;
+    // encoding of the eighths of the divisor, 0.125 is 4 and so on
+    private static final int[] FRACTION_CODES = {0, 3, 2, 4, 1, 5, 6, 7};
+
+    // the bcdDevice of the chip, FT232R if unknown
+    private int chip = CHIP_FT232R;
+
+    public FtdiSerialDriver(UsbControl control, int interfaceIndex) {
+        super(control, interfaceIndex);
+    }
+
+    @Override
+    public String getName() {
+        switch (chip) {
+            case CHIP_FT232AM:
+                return "FT232AM";
+            case CHIP_FT232BM:
+                return "FT232BM";
+            case CHIP_FT2232C:
+                return "FT2232C";
+            case CHIP_FT232R:
+                return "FT232R";
+            case CHIP_FT2232H:
+                return "FT2232H";
+            case CHIP_FT4232H:
+                return "FT4232H";
+            case CHIP_FT232H:
+                return "FT232H";
+            case CHIP_FTX:
+                return "FT-X";
+            default:
+                return "FTDI";
+        }
+    }
+
+    @Override
+    public void open() throws IOException {
+        byte[] descriptors = control.getRawDescriptors();
+        if (descriptors != null && descriptors.length >= 14) {
+            chip = (descriptors[12] & 0xFF) | ((descriptors[13] & 0xFF) << 8);
+        }
+
+        request(RESET, RESET_SIO, 0);
+        request(SET_DATA, DATA_8N1, 0);
+        request(SET_LATENCY_TIMER, LATENCY, 0);
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) throws IOException {
+        int divisor = baudRateDivisor(baudRate);
+        int index;
+        if (hasPortIndex()) {
+            // the high bits of the divisor go in the high byte of the index, beside the port
+            index = ((divisor >> 8) & 0xFF00) | port();
+        } else {
+            index = divisor >> 16;
+        }
+        controlOut(REQUEST_TYPE_OUT, SET_BAUD_RATE, divisor & 0xFFFF, index, null);
+        request(SET_DATA, DATA_8N1, 0);
+    }
+
+    @Override
+    public void setControlLines(boolean dtr, boolean rts) throws IOException {
+        request(MODEM_CTRL, dtr ? DTR_ON : DTR_OFF, 0);
+        request(MODEM_CTRL, rts ? RTS_ON : RTS_OFF, 0);
+    }
+
+    @Override
+    public void setFlowControl(boolean rtsCts) throws IOException {
+        request(SET_FLOW_CTRL, 0, rtsCts ? FLOW_RTS_CTS : FLOW_NONE);
+    }
+
+    @Override
+    public void purge() throws IOException {
+        request(RESET, PURGE_RX, 0);
+        request(RESET, PURGE_TX, 0);
+    }
+
+    @Override
+    public int getReadHeaderLength() {
+        return 2;
+    }
+
+    /**
+     * @return the divisor of the 3 MHz clock, its 3 bits fraction encoded in bits 14 to 16
+     */
+    static int baudRateDivisor(int baudRate) {
+        if (baudRate >= 2500000) {
+            return 0;
+        }
+        if (baudRate >= 1750000) {
+            return 1;
+        }
+        int divisor = ((BASE_CLOCK / baudRate) + 1) >> 1;
+        int fraction = divisor & 7;
+        divisor >>= 3;
+        return divisor | (FRACTION_CODES[fraction] << 14);
+    }
+
+    /**
+     * @return true if the chip takes the port number in the index of the requests
+     */
+    private boolean hasPortIndex() {
+        return chip == CHIP_FT2232C || chip == CHIP_FT2232H || chip == CHIP_FT4232H ||
+                chip == CHIP_FT232H || chip == CHIP_FTX;
+    }
+
+    /**
+     * @return the port number, 1 for the first one, or 0 for the single port chips
+     */
+    private int port() {
+        return hasPortIndex() ? interfaceIndex + 1 : 0;
+    }
+
+    /**
+     * @param highIndex the high byte of the index, the low one is the port
+     */
+    private void request(int request, int value, int highIndex) throws IOException {
+        controlOut(REQUEST_TYPE_OUT, request, value, (highIndex << 8) | port(), null);
+    }
+}
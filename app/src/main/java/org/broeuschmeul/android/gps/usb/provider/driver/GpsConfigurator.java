@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.os.SystemClock;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Applies a set of settings to the GPS and checks that they took, from the sentences it sends.
+ * <p>
+ * All the commands are sent at once, then the received sentences are watched: a sentence type
+ * turned on must show up, one turned off must stay away. Only the settings that didn't take are
+ * sent again. Settings that can't be seen in the output, e.g. SBAS, are done once written.
+ * <p>
+ * The reading thread gives the received sentences to {@link #onSentence(byte[], int, int)}
+ * while {@link #isWatching()}.
+ */
+public class GpsConfigurator {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long WRITE_TIMEOUT = 2000;
+    private static final long DEFAULT_PERIOD = 1000;
+    // sentences still in the buffers when a command is written
+    private static final long MARGIN = 500;
+
+    /**
+     * Sends a command to the GPS.
+     */
+    public interface Sender {
+        /**
+         * @return the command, done once written
+         */
+        Future<Void> send(byte[] command);
+    }
+
+    /**
+     * A setting of the GPS and the command setting it.
+     */
+    public static class Setting {
+        private final String name;
+        private final byte[] command;
+        // the type of the sentence it controls, null if it can't be checked
+        private final byte[] sentenceType;
+        // seconds between two sentences, 0 for off
+        private final int rate;
+
+        private boolean done;
+        private boolean failed;
+        private long writeTime;
+        private long lastSeen;
+
+        private Setting(String name, byte[] command, String sentenceType, int rate) {
+            this.name = name;
+            this.command = command;
+            this.sentenceType = (sentenceType != null) ? sentenceType.getBytes(US_ASCII) : null;
+            this.rate = rate;
+        }
+
+        /**
+         * A setting checked by the rate of a sentence type.
+         *
+         * @param sentenceType the 3 letters type of the sentence, e.g. "GSV"
+         * @param rate         seconds between two sentences, 0 when turned off
+         */
+        public static Setting sentenceRate(String name, byte[] command, String sentenceType, int rate) {
+            return new Setting(name, command, sentenceType, rate);
+        }
+
+        /**
+         * A setting that can't be checked, done once written.
+         */
+        public static Setting unchecked(String name, byte[] command) {
+            return new Setting(name, command, null, 0);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final Object lock = new Object();
+    private volatile boolean watching = false;
+    private List<Setting> watched = new ArrayList<>();
+    private long period = DEFAULT_PERIOD;
+    private long lastNmeaSentence;
+    private long sentenceCount = 0;
+
+    /**
+     * @return true while the received sentences are needed
+     */
+    public boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * Applies the settings, sending again those that didn't take.
+     *
+     * @param period time between two fixes of the GPS in milliseconds, -1 if unknown
+     * @return the settings that didn't take, empty if all of them did
+     */
+    public List<Setting> apply(Sender sender, List<Setting> settings, long period)
+            throws InterruptedException {
+        if (period <= 0) {
+            period = DEFAULT_PERIOD;
+        }
+        List<Setting> pending = new ArrayList<>(settings);
+        for (Setting setting : pending) {
+            setting.done = false;
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS && !pending.isEmpty(); attempt++) {
+            // all of them in one go, the writer gathers them
+            List<Future<Void>> writes = new ArrayList<>(pending.size());
+            for (Setting setting : pending) {
+                writes.add(sender.send(setting.command));
+            }
+
+            long deadline = SystemClock.elapsedRealtime();
+            List<Setting> checked = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                Setting setting = pending.get(i);
+                if (!awaitWrite(writes.get(i))) {
+                    continue;
+                }
+                if (setting.sentenceType == null) {
+                    setting.done = true;
+                } else {
+                    setting.failed = false;
+                    setting.writeTime = SystemClock.elapsedRealtime();
+                    setting.lastSeen = setting.writeTime;
+                    deadline = Math.max(deadline, setting.lastSeen + checkTime(setting, period));
+                    checked.add(setting);
+                }
+            }
+
+            if (!checked.isEmpty()) {
+                watch(checked, deadline, period);
+            }
+
+            List<Setting> failed = new ArrayList<>();
+            for (Setting setting : pending) {
+                if (!setting.done) {
+                    failed.add(setting);
+                }
+            }
+            pending = failed;
+        }
+        return pending;
+    }
+
+    /**
+     * Waits until no NMEA sentence was received for the given time, e.g. after a switch to a
+     * binary protocol.
+     *
+     * @return true if the stream went quiet before the timeout
+     */
+    public boolean awaitQuiet(long quietTime, long timeout) throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        long deadline = start + timeout;
+        synchronized (lock) {
+            lastNmeaSentence = start;
+            watching = true;
+            try {
+                long now = start;
+                while (now - lastNmeaSentence < quietTime) {
+                    if (now >= deadline) {
+                        return false;
+                    }
+                    lock.wait(Math.min(deadline - now, lastNmeaSentence + quietTime - now));
+                    now = SystemClock.elapsedRealtime();
+                }
+                return true;
+            } finally {
+                watching = false;
+            }
+        }
+    }
+
+    /**
+     * Waits for a NMEA sentence, e.g. after a switch back to NMEA.
+     *
+     * @return true if a sentence was received before the timeout
+     */
+    public boolean awaitSentence(long timeout) throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        long deadline = start + timeout;
+        synchronized (lock) {
+            long sentences = sentenceCount;
+            watching = true;
+            try {
+                long now = start;
+                while (sentenceCount == sentences) {
+                    if (now >= deadline) {
+                        return false;
+                    }
+                    lock.wait(deadline - now);
+                    now = SystemClock.elapsedRealtime();
+                }
+                return true;
+            } finally {
+                watching = false;
+            }
+        }
+    }
+
+    /**
+     * Looks at a received sentence.
+     *
+     * @param start index of the first character, the '$'
+     * @param end   index after the last character
+     */
+    public void onSentence(byte[] buffer, int start, int end) {
+        if (!watching) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        synchronized (lock) {
+            lastNmeaSentence = now;
+            sentenceCount++;
+            for (Setting setting : watched) {
+                if (setting.sentenceType != null && isType(buffer, start, end, setting.sentenceType)) {
+                    setting.lastSeen = now;
+                    if (setting.rate > 0) {
+                        setting.done = true;
+                    } else if (now - setting.writeTime > period + MARGIN) {
+                        // still there well after the command
+                        setting.failed = true;
+                    }
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void watch(List<Setting> checked, long deadline, long period) throws InterruptedException {
+        synchronized (lock) {
+            watched = checked;
+            watching = true;
+            try {
+                long now = SystemClock.elapsedRealtime();
+                this.period = period;
+                while (now < deadline && !updateOffSettings(checked, now, period)) {
+                    lock.wait(Math.min(deadline - now, period));
+                    now = SystemClock.elapsedRealtime();
+                }
+            } finally {
+                watching = false;
+                watched = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Marks as done the settings turning off a sentence no longer seen.
+     *
+     * @return true if all the settings are done or failed
+     */
+    private static boolean updateOffSettings(List<Setting> settings, long now, long period) {
+        boolean allChecked = true;
+        for (Setting setting : settings) {
+            if (setting.rate == 0 && !setting.failed) {
+                setting.done = now - setting.lastSeen >= 2 * period + MARGIN;
+            }
+            allChecked &= setting.done || setting.failed;
+        }
+        return allChecked;
+    }
+
+    /**
+     * @return the time needed to see that a setting took
+     */
+    private static long checkTime(Setting setting, long period) {
+        if (setting.rate > 0) {
+            return setting.rate * 1000L + period + MARGIN;
+        }
+        return 2 * period + 2 * MARGIN;
+    }
+
+    private static boolean awaitWrite(Future<Void> write) throws InterruptedException {
+        try {
+            write.get(WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the sentence, e.g. $GPGSV,..., is of the given type
+     */
+    private static boolean isType(byte[] buffer, int start, int end, byte[] type) {
+        // '$' and the 2 letters talker
+        int offset = start + 3;
+        if (offset + type.length >= end || buffer[offset + type.length] != ',') {
+            return false;
+        }
+        for (int i = 0; i < type.length; i++) {
+            if (buffer[offset + i] != type[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
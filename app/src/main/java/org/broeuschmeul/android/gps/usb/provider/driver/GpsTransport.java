@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.IOException;
+
+/**
+ * A byte link with a GPS receiver.
+ * <p>
+ * The USB GPS is read with {@link UsbGpsTransport}. The other transports don't depend on Android,
+ * so that the read loop and the framing of the NMEA sentences ({@link NmeaReadLoop}) can also be
+ * run from a recorded file ({@link FileReplayTransport}), a named pipe ({@link NamedPipeTransport})
+ * or a TCP connection ({@link TcpGpsTransport}), for instance on a plain JVM. The parsing into
+ * locations still needs Android.
+ * <p>
+ * One thread reads the transport while other threads may write to it.
+ */
+public interface GpsTransport {
+
+    /**
+     * Opens the link, the data of the receiver can then be read.
+     *
+     * @throws IOException if the link can't be opened
+     */
+    void open() throws IOException;
+
+    /**
+     * Reads the data received, up to the given length,
+     * waiting at most the given time for some data.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @return the number of bytes read, 0 on timeout, -1 if the link is closed and all its data was read
+     */
+    int read(byte[] buffer, int offset, int length, long timeout) throws IOException;
+
+    /**
+     * Sends data to the receiver.
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Closes the link, a thread waiting in {@link #read(byte[], int, int, long)} returns.
+     */
+    void close();
+
+    /**
+     * @return the counters of the link
+     */
+    TransportStats getStats();
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads a GPS receiver from a named pipe (created with mkfifo), fed for instance by a simulator,
+ * and optionally writes to another one.
+ * <p>
+ * As for any named pipe, {@link #open()} waits for the other side to open the pipes.
+ */
+public class NamedPipeTransport extends StreamGpsTransport {
+
+    private final File inputPipe;
+    private final File outputPipe;
+
+    /**
+     * @param inputPipe  the pipe to read the receiver data from
+     * @param outputPipe the pipe to write the commands to, null to drop them
+     */
+    public NamedPipeTransport(File inputPipe, File outputPipe) {
+        super("Named pipe", DEFAULT_BUFFER_SIZE);
+        this.inputPipe = inputPipe;
+        this.outputPipe = outputPipe;
+    }
+
+    @Override
+    protected InputStream openInput() throws IOException {
+        return new FileInputStream(inputPipe);
+    }
+
+    @Override
+    protected OutputStream openOutput() throws IOException {
+        return outputPipe != null ? new FileOutputStream(outputPipe) : null;
+    }
+}
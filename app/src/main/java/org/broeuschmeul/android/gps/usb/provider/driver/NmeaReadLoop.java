@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.broeuschmeul.android.gps.nmea.util.NmeaFramer;
+
+import java.io.IOException;
+
+/**
+ * Reads a GPS through a {@link GpsTransport} and splits what it sends into NMEA sentences.
+ * <p>
+ * The loop only knows the transport and its {@link Handler}, so that the same read path runs
+ * over USB in the app, and over a recorded file, a pipe or TCP on a plain JVM, e.g. to benchmark
+ * the framing at rates no receiver produces.
+ * <p>
+ * The driver never measures a time with the system clock, which may be set from the GPS time
+ * meanwhile: the classes only running on Android use
+ * {@link android.os.SystemClock#elapsedRealtime()}, those also running on a plain JVM, like
+ * this loop, {@link System#nanoTime()}.
+ */
+public class NmeaReadLoop {
+
+    /**
+     * The loop was stopped with {@link #stop()}.
+     */
+    public static final int STOPPED = 0;
+    /**
+     * The transport was closed and all its data read.
+     */
+    public static final int LINK_CLOSED = 1;
+    /**
+     * No valid sentence was received for too long.
+     */
+    public static final int SILENT = 2;
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    /**
+     * Receives what the loop reads, on the reading thread.
+     */
+    public interface Handler {
+        /**
+         * Called with the bytes read, before they are framed.
+         */
+        void onData(byte[] buffer, int offset, int length);
+
+        /**
+         * Called for each framed sentence.
+         *
+         * @param start     index of the leading "$"
+         * @param end       index after the final "\n"
+         * @param timestamp the time the sentence was received
+         * @return true if the sentence is valid, i.e. the GPS is heard
+         */
+        boolean onSentence(byte[] buffer, int start, int end, long timestamp);
+
+        /**
+         * Called when a read ended without data, e.g. to publish an incomplete fix.
+         */
+        void onIdle();
+
+        /**
+         * @return the longest time to wait for data in the next read, in milliseconds
+         */
+        long getReadTimeout();
+    }
+
+    private final GpsTransport transport;
+    private final Handler handler;
+    private final byte[] chunk;
+    private final NmeaFramer framer;
+
+    private volatile boolean stopped = false;
+    // System.nanoTime() of the last valid sentence
+    private long lastSentence;
+
+    public NmeaReadLoop(GpsTransport transport, Handler handler) {
+        this(transport, handler, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the size of the reads from the transport
+     */
+    public NmeaReadLoop(GpsTransport transport, final Handler handler, int chunkSize) {
+        this.transport = transport;
+        this.handler = handler;
+        this.chunk = new byte[chunkSize];
+        this.framer = new NmeaFramer(new NmeaFramer.Listener() {
+            @Override
+            public void onSentence(byte[] buffer, int start, int end, long timestamp) {
+                if (handler.onSentence(buffer, start, end, timestamp)) {
+                    lastSentence = System.nanoTime();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads until the loop is stopped, the link closed, or the GPS silent.
+     *
+     * @param firstSentenceTimeout longest time to wait for the first valid sentence, in milliseconds
+     * @param silenceTimeout       longest time without a valid sentence afterwards, in milliseconds
+     * @return why the loop ended, {@link #STOPPED}, {@link #LINK_CLOSED} or {@link #SILENT}
+     * @throws IOException if the transport failed
+     */
+    public int run(long firstSentenceTimeout, long silenceTimeout) throws IOException {
+        long now = System.nanoTime();
+        // the first sentence is late by the difference of the two timeouts
+        lastSentence = now + (firstSentenceTimeout - silenceTimeout) * 1000000L;
+        long silence = silenceTimeout * 1000000L;
+
+        while (!stopped) {
+            if (now - lastSentence > silence) {
+                return SILENT;
+            }
+
+            // waits for data, the close of the link, or the time to publish an incomplete fix
+            int nb = transport.read(chunk, 0, chunk.length, handler.getReadTimeout());
+            if (nb > 0) {
+                handler.onData(chunk, 0, nb);
+                framer.feed(chunk, 0, nb, System.currentTimeMillis());
+            } else if (nb == 0) {
+                handler.onIdle();
+            } else {
+                return LINK_CLOSED;
+            }
+            now = System.nanoTime();
+        }
+        return STOPPED;
+    }
+
+    /**
+     * Ends the loop after the current read, closing the transport makes it return right away.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return the framer, for its counters
+     */
+    public NmeaFramer getFramer() {
+        return framer;
+    }
+}
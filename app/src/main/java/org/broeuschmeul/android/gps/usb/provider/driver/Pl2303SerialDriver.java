@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.IOException;
+
+/**
+ * Prolific PL2303 USB to serial bridge, as found in most USB GPS mice.
+ * <p>
+ * The line coding uses the CDC requests, the rest are vendor requests.
+ * The HX variant is told apart from the older ones by its device descriptor.
+ */
+public class Pl2303SerialDriver extends UsbSerialDriver {
+
+    private static final int VENDOR_OUT = 0x40;
+    private static final int VENDOR_IN = 0xC0;
+    private static final int VENDOR_REQUEST = 0x01;
+
+    private static final int FLOW_CONTROL = 0x0000;
+    private static final int FLOW_RTS_CTS_HX = 0x61;
+    private static final int FLOW_RTS_CTS = 0x41;
+    private static final int PURGE_RX = 0x0008;
+    private static final int PURGE_TX = 0x0009;
+
+    private boolean hx = true;
+
+    public Pl2303SerialDriver(UsbControl control, int interfaceIndex) {
+        super(control, interfaceIndex);
+    }
+
+    @Override
+    public String getName() {
+        return hx ? "PL2303HX" : "PL2303";
+    }
+
+    @Override
+    public void open() throws IOException {
+        byte[] descriptors = control.getRawDescriptors();
+        if (descriptors != null && descriptors.length >= 8) {
+            // bDeviceClass 0x02 is the type 0 chip, otherwise a 64 bytes bMaxPacketSize0 is a HX
+            hx = (descriptors[4] != 0x02) && ((descriptors[7] & 0xFF) == 64);
+        }
+
+        vendorIn(0x8484);
+        vendorOut(0x0404, 0);
+        vendorIn(0x8484);
+        vendorIn(0x8383);
+        vendorIn(0x8484);
+        vendorOut(0x0404, 1);
+        vendorIn(0x8484);
+        vendorIn(0x8383);
+        vendorOut(0, 1);
+        vendorOut(1, 0);
+        vendorOut(2, hx ? 0x44 : 0x24);
+
+        setControlLines(false, false);
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) throws IOException {
+        controlOut(CdcAcmSerialDriver.REQUEST_TYPE_OUT, CdcAcmSerialDriver.SET_LINE_CODING,
+                0, 0, CdcAcmSerialDriver.lineCoding(baudRate));
+    }
+
+    @Override
+    public int getBaudRate() throws IOException {
+        byte[] lineCoding = controlIn(CdcAcmSerialDriver.REQUEST_TYPE_IN, CdcAcmSerialDriver.GET_LINE_CODING,
+                0, 0, 7);
+        return (lineCoding[0] & 0xFF) | ((lineCoding[1] & 0xFF) << 8) |
+                ((lineCoding[2] & 0xFF) << 16) | ((lineCoding[3] & 0xFF) << 24);
+    }
+
+    @Override
+    public void setControlLines(boolean dtr, boolean rts) throws IOException {
+        int value = (dtr ? 0x01 : 0) | (rts ? 0x02 : 0);
+        controlOut(CdcAcmSerialDriver.REQUEST_TYPE_OUT, CdcAcmSerialDriver.SET_CONTROL_LINE_STATE,
+                value, 0, null);
+    }
+
+    @Override
+    public void setFlowControl(boolean rtsCts) throws IOException {
+        int index = rtsCts ? (hx ? FLOW_RTS_CTS_HX : FLOW_RTS_CTS) : 0;
+        vendorOut(FLOW_CONTROL, index);
+    }
+
+    @Override
+    public void purge() throws IOException {
+        vendorOut(PURGE_RX, 0);
+        vendorOut(PURGE_TX, 0);
+    }
+
+    private void vendorOut(int value, int index) throws IOException {
+        controlOut(VENDOR_OUT, VENDOR_REQUEST, value, index, null);
+    }
+
+    private void vendorIn(int value) throws IOException {
+        controlIn(VENDOR_IN, VENDOR_REQUEST, value, 0, 1);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.broeuschmeul.android.gps.usb.provider.util.ByteRingBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link GpsTransport} over java.io streams.
+ * <p>
+ * The input stream is read on its own thread into a {@link ByteRingBuffer}, like the USB GPS,
+ * so that reads with a timeout are possible whatever the stream.
+ * Without an output stream the data written is dropped.
+ */
+public abstract class StreamGpsTransport implements GpsTransport {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private final String name;
+    private final ByteRingBuffer readBuffer;
+    private final TransportStats stats = new TransportStats();
+
+    private InputStream input;
+    private OutputStream output;
+    private Thread reader;
+    private volatile boolean closed = false;
+    private volatile IOException readError;
+
+    /**
+     * @param name       name of the transport, used for its reading thread
+     * @param bufferSize size of the buffer between the reading thread and the reader
+     */
+    protected StreamGpsTransport(String name, int bufferSize) {
+        this.name = name;
+        this.readBuffer = new ByteRingBuffer(bufferSize);
+    }
+
+    /**
+     * @return the stream to read the data of the receiver from
+     */
+    protected abstract InputStream openInput() throws IOException;
+
+    /**
+     * Called after {@link #openInput()}.
+     *
+     * @return the stream to send data to the receiver, null if none
+     */
+    protected OutputStream openOutput() throws IOException {
+        return null;
+    }
+
+    /**
+     * Closes the streams, called once by {@link #close()}.
+     */
+    protected void closeStreams() {
+        try {
+            if (input != null) {
+                input.close();
+            }
+        } catch (IOException e) {
+            // nothing more to do
+        }
+        try {
+            if (output != null) {
+                output.close();
+            }
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (reader != null || closed) {
+            throw new IOException(name + " transport already opened");
+        }
+        input = openInput();
+        output = openOutput();
+
+        reader = new Thread(name + " reader") {
+            @Override
+            public void run() {
+                readInput();
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readInput() {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try {
+            int nb;
+            while (!closed && (nb = input.read(chunk, 0, chunk.length)) >= 0) {
+                if (nb > 0 && !readBuffer.write(chunk, 0, nb)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                readError = e;
+            }
+        } catch (InterruptedException e) {
+            // closing
+        } finally {
+            // the data left can still be read
+            readBuffer.close();
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, long timeout) throws IOException {
+        int nb;
+        try {
+            nb = readBuffer.read(buffer, offset, length, timeout);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(name + " read interrupted");
+        }
+        if (nb > 0) {
+            stats.onRead(nb, System.nanoTime() - readBuffer.getDataTime());
+        } else if (nb == 0) {
+            stats.onReadTimeout();
+        } else if (readError != null) {
+            throw new IOException(name + " read failed", readError);
+        }
+        return nb;
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException(name + " transport closed");
+        }
+        if (output != null) {
+            output.write(buffer, offset, length);
+            output.flush();
+        }
+        stats.onWrite(length);
+    }
+
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            thread = reader;
+        }
+        readBuffer.close();
+        closeStreams();
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public TransportStats getStats() {
+        stats.setBufferUsage(readBuffer.getHighWatermark(), readBuffer.getOverflowCount());
+        return stats;
+    }
+}
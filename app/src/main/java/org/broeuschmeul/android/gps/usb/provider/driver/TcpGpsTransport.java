@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Reads a GPS receiver served over TCP, e.g. by a local simulator or gpsd-like NMEA server.
+ */
+public class TcpGpsTransport extends StreamGpsTransport {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+
+    /**
+     * Connects to the given port of the loopback interface.
+     */
+    public TcpGpsTransport(int port) {
+        this("127.0.0.1", port);
+    }
+
+    public TcpGpsTransport(String host, int port) {
+        super("TCP " + host + ":" + port, DEFAULT_BUFFER_SIZE);
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    protected InputStream openInput() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        return socket.getInputStream();
+    }
+
+    @Override
+    protected OutputStream openOutput() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    protected void closeStreams() {
+        super.closeStreams();
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+}
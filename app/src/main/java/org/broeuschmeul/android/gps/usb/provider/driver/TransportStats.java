@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+/**
+ * Counters of a {@link GpsTransport}.
+ * <p>
+ * The read counters are only updated by the reading thread and the write counters by the
+ * writing threads, they can be read from any thread.
+ */
+public class TransportStats {
+
+    private volatile long bytesRead = 0;
+    private volatile long reads = 0;
+    private volatile long readTimeouts = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long writes = 0;
+    private volatile int bufferHighWatermark = 0;
+    private volatile long bufferOverflows = 0;
+    private volatile long latencySum = 0;
+    private volatile long maxLatency = 0;
+
+    /**
+     * @param latency time the data waited before being read, in nanoseconds
+     */
+    void onRead(int length, long latency) {
+        bytesRead += length;
+        reads++;
+        latencySum += latency;
+        if (latency > maxLatency) {
+            maxLatency = latency;
+        }
+    }
+
+    void onReadTimeout() {
+        readTimeouts++;
+    }
+
+    synchronized void onWrite(int length) {
+        bytesWritten += length;
+        writes++;
+    }
+
+    void setBufferUsage(int highWatermark, long overflows) {
+        bufferHighWatermark = highWatermark;
+        bufferOverflows = overflows;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the number of reads that returned some data
+     */
+    public long getReads() {
+        return reads;
+    }
+
+    public long getReadTimeouts() {
+        return readTimeouts;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return the mean time between the reception of some data and its read, in microseconds
+     */
+    public long getMeanReadLatency() {
+        long count = reads;
+        return count > 0 ? latencySum / count / 1000 : 0;
+    }
+
+    /**
+     * @return the longest time between the reception of some data and its read, in microseconds
+     */
+    public long getMaxReadLatency() {
+        return maxLatency / 1000;
+    }
+
+    /**
+     * @return the highest number of bytes received and not read yet
+     */
+    public int getBufferHighWatermark() {
+        return bufferHighWatermark;
+    }
+
+    /**
+     * @return the number of times the receive buffer was full
+     */
+    public long getBufferOverflows() {
+        return bufferOverflows;
+    }
+
+    @Override
+    public String toString() {
+        return "read " + bytesRead + " bytes in " + reads + " reads (" + readTimeouts + " timeouts), " +
+                "read latency: " + getMeanReadLatency() + " us mean, " + getMaxReadLatency() + " us max, " +
+                "written " + bytesWritten + " bytes in " + writes + " writes, " +
+                "buffer high watermark: " + bufferHighWatermark + " bytes, overflows: " + bufferOverflows;
+    }
+}
@@ -22,34 +22,34 @@
 
 package org.broeuschmeul.android.gps.usb.provider.driver;
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.broeuschmeul.android.gps.nmea.util.NmeaFramer;
 import org.broeuschmeul.android.gps.nmea.util.NmeaParser;
+import org.broeuschmeul.android.gps.nmea.util.SatelliteTable;
 import org.broeuschmeul.android.gps.sirf.util.SirfUtils;
+import org.broeuschmeul.android.gps.ubx.util.UbxUtils;
 import org.broeuschmeul.android.gps.usb.provider.BuildConfig;
 import org.broeuschmeul.android.gps.usb.provider.R;
 import org.broeuschmeul.android.gps.usb.provider.USBGpsApplication;
 import org.broeuschmeul.android.gps.usb.provider.ui.GpsInfoActivity;
+import org.broeuschmeul.android.gps.usb.provider.util.SentenceRing;
 import org.broeuschmeul.android.gps.usb.provider.util.SuperuserManager;
 
 import android.Manifest;
@@ -64,11 +64,7 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
 import android.location.LocationManager;
 import android.os.Build;
@@ -95,6 +91,68 @@ public class USBGpsManager {
      */
     private static final String LOG_TAG = USBGpsManager.class.getSimpleName();
 
+    /**
+     * Bounds of the time the read loop waits for data, adapted to the update rate of the GPS.
+     */
+    private static final int MIN_READ_TIMEOUT = 50;
+    private static final int MAX_READ_TIMEOUT = 1000;
+
+    /**
+     * Longest time to try a speed when detecting it: a bit more than the time between
+     * two bursts of data of a 1 Hz GPS.
+     */
+    private static final int BAUD_RATE_TRIAL_TIMEOUT = 1200;
+
+    /**
+     * Speeds the link is switched to after the speed was found, the fastest first.
+     * All the USB bridges and most GPS chips handle them.
+     */
+    private static final int[] LINK_SPEED_UPGRADES = {115200, 57600, 38400};
+
+    /**
+     * Size of the reads from the GPS, given to the sentence framer.
+     */
+    private static final int READ_CHUNK_SIZE = 1024;
+
+    /**
+     * Longest time to wait for the GPS to be heard after the connection, and then between two
+     * valid sentences, before the device is taken as not usable.
+     */
+    private static final long FIRST_SENTENCE_TIMEOUT = 49000;
+    private static final long SILENCE_TIMEOUT = 4000;
+
+    /**
+     * Longest time for the GPS to switch between NMEA and SiRF binary.
+     */
+    private static final long PROTOCOL_SWITCH_TIMEOUT = 3000;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Number of sentences kept for the NMEA listeners, a few seconds of a busy 10 Hz GPS.
+     */
+    private static final int NMEA_RING_CAPACITY = 512;
+    /**
+     * Longest time the reading thread waits for a NMEA listener with {@link SentenceRing#POLICY_BLOCK}.
+     */
+    private static final long NMEA_LISTENER_BLOCK_TIMEOUT = 100;
+
+    /**
+     * The preferences of the SiRF configuration.
+     */
+    private static final String[] SIRF_CONFIG_KEYS = {
+            USBGpsProviderService.PREF_SIRF_ENABLE_GGA,
+            USBGpsProviderService.PREF_SIRF_ENABLE_RMC,
+            USBGpsProviderService.PREF_SIRF_ENABLE_GLL,
+            USBGpsProviderService.PREF_SIRF_ENABLE_VTG,
+            USBGpsProviderService.PREF_SIRF_ENABLE_GSA,
+            USBGpsProviderService.PREF_SIRF_ENABLE_GSV,
+            USBGpsProviderService.PREF_SIRF_ENABLE_ZDA,
+            USBGpsProviderService.PREF_SIRF_ENABLE_SBAS,
+            USBGpsProviderService.PREF_SIRF_ENABLE_NMEA,
+            USBGpsProviderService.PREF_SIRF_ENABLE_STATIC_NAVIGATION
+    };
+
     // Has more connections logs
     private boolean debug = true;
 
@@ -109,6 +167,23 @@ public class USBGpsManager {
         void onNmeaReceived(long timestamp, String nmea);
     }
 
+    /**
+     * Hands the sentences of the ring to a {@link NmeaListener}, on the thread of its subscription.
+     */
+    private static class NmeaDispatcher implements SentenceRing.Handler {
+        private final NmeaListener listener;
+        private SentenceRing.Subscription subscription;
+
+        NmeaDispatcher(NmeaListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSentence(byte[] buffer, int length, long timestamp) {
+            listener.onNmeaReceived(timestamp, new String(buffer, 0, length, US_ASCII));
+        }
+    }
+
     private final BroadcastReceiver permissionAndDetachReceiver = new BroadcastReceiver() {
 
         public void onReceive(Context context, Intent intent) {
@@ -149,378 +224,75 @@ public class USBGpsManager {
      */
     private class ConnectedGps extends Thread {
         /**
-         * GPS bluetooth socket used for communication.
+         * Link with the USB GPS.
          */
-        private final File gpsDev;
-        private final UsbDevice gpsUsbDev;
-        private final UsbInterface intf;
-        private UsbEndpoint endpointIn;
-        private UsbEndpoint endpointOut;
-        private final UsbDeviceConnection connection;
+        private final UsbGpsTransport transport;
         private boolean closed = false;
         /**
-         * GPS InputStream from which we read data.
+         * Sends the commands (SIRF III binary or NMEA commands) once the GPS is ready.
          */
-        private final InputStream in;
+        private final CommandWriter commandWriter;
         /**
-         * GPS output stream to which we send data (SIRF III binary commands).
+         * A boolean which indicates if the GPS is ready to receive data.
+         * In fact we consider that the GPS is ready when it begins to sends data...
          */
-        private final OutputStream out;
+        private boolean ready = false;
         /**
-         * GPS output stream to which we send data (SIRF III NMEA commands).
+         * True while the speed of the link is searched or changed: the GPS is not ready meanwhile,
+         * even if it is heard.
          */
-        private final PrintStream out2;
+        private volatile boolean configuring = false;
         /**
-         * A boolean which indicates if the GPS is ready to receive data.
-         * In fact we consider that the GPS is ready when it begins to sends data...
+         * Finds the speed of the GPS from the data it sends, when the speed is "auto".
          */
-        private boolean ready = false;
+        private final BaudRateDetector baudRateDetector = new BaudRateDetector();
+        private final byte[] sirfBin2Nmea =
+                SirfUtils.genSirfCommandFromPayload(callingService.getString(R.string.sirf_bin_to_nmea));
+        /**
+         * What was learnt about the device during its last connection, null if nothing.
+         */
+        private final DeviceProfileStore.Profile profile;
+        /**
+         * Reads the transport and frames the sentences.
+         */
+        private final NmeaReadLoop readLoop;
 
         public ConnectedGps(UsbDevice device) {
             this(device, defaultDeviceSpeed);
         }
 
-        public ConnectedGps(UsbDevice device, String deviceSpeed) {
-            this.gpsDev = null;
-            this.gpsUsbDev = device;
-
-            debugLog("Searching interfaces, found " + String.valueOf(device.getInterfaceCount()));
-
-            UsbInterface foundInterface = null;
-
-            for (int j = 0; j < device.getInterfaceCount(); j++) {
-                debugLog("Checking interface number " + String.valueOf(j));
-
-                UsbInterface deviceInterface = device.getInterface(j);
-
-                debugLog("Found interface of class " + String.valueOf(deviceInterface.getInterfaceClass()));
-
-                // Finds an endpoint for the device by looking through all the device endpoints
-                // and finding which one supports,
-
-                debugLog("Searching endpoints of interface, found " + String.valueOf(deviceInterface.getEndpointCount()));
-
-                UsbEndpoint foundInEndpoint = null;
-                UsbEndpoint foundOutEndpoint = null;
-
-                for (int i = deviceInterface.getEndpointCount() - 1; i > -1; i--) {
-                    debugLog("Checking endpoint number " + String.valueOf(i));
+        public ConnectedGps(UsbDevice device, final String deviceSpeed) {
+            transport = new UsbGpsTransport(usbManager, device);
+            readLoop = new NmeaReadLoop(transport, readHandler, READ_CHUNK_SIZE);
 
-                    UsbEndpoint interfaceEndpoint = deviceInterface.getEndpoint(i);
-
-                    if (interfaceEndpoint.getDirection() == UsbConstants.USB_DIR_IN) {
-                        debugLog("Found IN Endpoint of type: " + String.valueOf(interfaceEndpoint.getType()));
-
-                        if (interfaceEndpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
-
-                            debugLog("Is correct in endpoint");
-
-                            foundInEndpoint = interfaceEndpoint;
-                        }
-                    }
-                    if (interfaceEndpoint.getDirection() == UsbConstants.USB_DIR_OUT) {
-                            debugLog("Found OUT Endpoint of type: " + String.valueOf(interfaceEndpoint.getType()));
-
-                        if (interfaceEndpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
-
-                            debugLog("Is correct out endpoint");
-
-                            foundOutEndpoint = interfaceEndpoint;
-                        }
-                    }
-
-                    if ((foundInEndpoint != null) && (foundOutEndpoint != null)) {
-                        endpointIn = foundInEndpoint;
-                        endpointOut = foundOutEndpoint;
-                        break;
-                    }
-                }
-
-                if ((endpointIn != null) && (endpointOut != null)) {
-                    foundInterface = deviceInterface;
-                    break;
-                }
-            }
-
-            intf = foundInterface;
-//            endpointIn = intf.getEndpoint(2);
-            final int TIMEOUT = 100;
-//            final int TIMEOUT = 0;
-            connection = usbManager.openDevice(device);
-
-            if (intf != null) {
-
-                debugLog("claiming interface");
-
-                boolean resclaim = connection.claimInterface(intf, true);
-
-                debugLog("data claim " + resclaim);
+            profile = deviceProfiles.load(device);
+            if (profile != null) {
+                debugLog("known device: " + profile);
+                transport.setEndpoints(profile.interfaceIndex, profile.inEndpointIndex, profile.outEndpointIndex);
+                parser.seedEpoch(profile.sentenceMask, profile.updatePeriod);
             }
 
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-            PrintStream tmpOut2 = null;
-
-            tmpIn = new InputStream() {
-                private byte[] buffer = new byte[128];
-                private byte[] usbBuffer = new byte[64];
-                private byte[] oneByteBuffer = new byte[1];
-                private ByteBuffer bufferWrite = ByteBuffer.wrap(buffer);
-                private ByteBuffer bufferRead = (ByteBuffer) ByteBuffer.wrap(buffer).limit(0);
-                private boolean closed = false;
-
-                @Override
-                public int read() throws IOException {
-                    int b = 0;
-                    //if (BuildConfig.DEBUG || debug) Log.d(LOG_TAG, "trying to read data");
-                    int nb = 0;
-                    while ((nb == 0) && (!closed)) {
-                        nb = this.read(oneByteBuffer, 0, 1);
-                    }
-                    if (nb > 0) {
-                        b = oneByteBuffer[0];
-                    } else {
-                        // TODO : if nb = 0 then we have a pb
-                        b = -1;
-                        Log.e(LOG_TAG, "data read() error code: " + nb);
-                    }
-                    if (b <= 0) {
-                        Log.e(LOG_TAG, "data read() error: char " + b);
-                    }
-                    //if (BuildConfig.DEBUG || debug) Log.d(LOG_TAG, "data: " + b + " char: " + (char)b);
-                    return b;
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#available()
-                 */
-                @Override
-                public int available() throws IOException {
-                    // TODO Auto-generated method stub
-                    //if (BuildConfig.DEBUG || debug) Log.d(LOG_TAG, "data available "+bufferRead.remaining());
-                    return bufferRead.remaining();
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#mark(int)
-                 */
-                @Override
-                public void mark(int readlimit) {
-                    // TODO Auto-generated method stub
-                    //if (BuildConfig.DEBUG || debug) Log.d(LOG_TAG, "data mark");
-                    super.mark(readlimit);
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#markSupported()
-                 */
-                @Override
-                public boolean markSupported() {
-                    // TODO Auto-generated method stub
-                    //if (BuildConfig.DEBUG || debug) Log.d(LOG_TAG, "data markSupported");
-                    return super.markSupported();
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#read(byte[], int, int)
-                 */
-                @Override
-                public int read(byte[] buffer, int offset, int length)
-                        throws IOException {
-//                    if (BuildConfig.DEBUG || debug) Log.d(LOG_TAG, "data read buffer - offset: " + offset + " length: " + length);
-
-                    int nb = 0;
-                    ByteBuffer out = ByteBuffer.wrap(buffer, offset, length);
-                    if ((!bufferRead.hasRemaining()) && (!closed)) {
-//                        if (BuildConfig.DEBUG || debug) Log.i(LOG_TAG, "data read buffer empty " + Arrays.toString(usbBuffer));
-
-                        int n = connection.bulkTransfer(endpointIn, usbBuffer, 64, 10000);
-
-//                      if (BuildConfig.DEBUG || debug) Log.w(LOG_TAG, "data read: nb: " + n + " " + Arrays.toString(usbBuffer));
-
-                        if (n > 0) {
-                            if (n > bufferWrite.remaining()) {
-                                bufferRead.rewind();
-                                bufferWrite.clear();
-                            }
-                            bufferWrite.put(usbBuffer, 0, n);
-                            bufferRead.limit(bufferWrite.position());
-//                            if (BuildConfig.DEBUG || debug) Log.d(LOG_TAG, "data read: nb: " + n + " current: " + bufferRead.position() + " limit: " + bufferRead.limit() + " " + Arrays.toString(bufferRead.array()));
-                        } else {
-                            if (BuildConfig.DEBUG || debug)
-                                Log.e(LOG_TAG, "data read(buffer...) error: " + nb );
-                        }
-                    }
-                    if (bufferRead.hasRemaining()) {
-//                      if (BuildConfig.DEBUG || debug) Log.d(LOG_TAG, "data : asked: " + length + " current: " + bufferRead.position() + " limit: " + bufferRead.limit() + " " + Arrays.toString(bufferRead.array()));
-                        nb = Math.min(bufferRead.remaining(), length);
-                        out.put(bufferRead.array(), bufferRead.position() + bufferRead.arrayOffset(), nb);
-                        bufferRead.position(bufferRead.position() + nb);
-//                      if (BuildConfig.DEBUG || debug) Log.d(LOG_TAG, "data : given: " + nb + " current: " + bufferRead.position() + " limit: " + bufferRead.limit() + " " + Arrays.toString(bufferRead.array()));
-//                      if (BuildConfig.DEBUG || debug) Log.d(LOG_TAG, "data : given: " + nb + " offset: " + offset + " " + Arrays.toString(buffer));
-                    }
-                    return nb;
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#read(byte[])
-                 */
-
-                @Override
-                public int read(byte[] buffer) throws IOException {
-                    // TODO Auto-generated method stub
-                    log("data read buffer");
-                    return super.read(buffer);
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#reset()
-                 */
-                @Override
-                public synchronized void reset() throws IOException {
-                    // TODO Auto-generated method stub
-                    log("data reset");
-                    super.reset();
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#skip(long)
-                 */
-                @Override
-                public long skip(long byteCount) throws IOException {
-                    // TODO Auto-generated method stub
-                    log("data skip");
-                    return super.skip(byteCount);
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.InputStream#close()
-                 */
-                @Override
-                public void close() throws IOException {
-                    super.close();
-                    closed = true;
-                }
-            };
-
-            tmpOut = new OutputStream() {
-                private byte[] buffer = new byte[128];
-                private byte[] usbBuffer = new byte[64];
-                private byte[] oneByteBuffer = new byte[1];
-                private ByteBuffer bufferWrite = ByteBuffer.wrap(buffer);
-                private ByteBuffer bufferRead = (ByteBuffer) ByteBuffer.wrap(buffer).limit(0);
-                private boolean closed = false;
-
-                @Override
-                public void write(int oneByte) throws IOException {
-                    //if (BuildConfig.DEBUG || debug)
-                    //    Log.d(LOG_TAG, "trying to write data (one byte): " + oneByte + " char: " + (char) oneByte);
-                    oneByteBuffer[0] = (byte) oneByte;
-                    this.write(oneByteBuffer, 0, 1);
-                    //if (BuildConfig.DEBUG || debug)
-                    //    Log.d(LOG_TAG, "writen data (one byte): " + oneByte + " char: " + (char) oneByte);
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.OutputStream#write(byte[], int, int)
-                 */
-                @Override
-                public void write(byte[] buffer, int offset, int count)
-                        throws IOException {
-                    //if (BuildConfig.DEBUG || debug)
-                    //    Log.d(LOG_TAG, "trying to write data : " + Arrays.toString(buffer) + " offset " + offset + " count: " + count);
-                    bufferWrite.clear();
-                    bufferWrite.put(buffer, offset, count);
-                    //if (BuildConfig.DEBUG || debug)
-                    //    Log.d(LOG_TAG, "trying to write data : " + Arrays.toString(this.buffer));
-                    int n = 0;
-                    if (!closed) {
-                        n = connection.bulkTransfer(endpointOut, this.buffer, count, TIMEOUT);
-                    } else {
-                        if (BuildConfig.DEBUG || debug)
-                            Log.e(LOG_TAG, "error while trying to write data: outputStream closed");
-                    }
-                    if (n != count) {
-                        if (BuildConfig.DEBUG || debug) {
-                            Log.e(LOG_TAG, "error while trying to write data: " + Arrays.toString(this.buffer));
-                            Log.e(LOG_TAG, "error while trying to write data: " + n + " bytes written when expecting " + count);
-                        }
-                        throw new IOException("error while trying to write data: " + Arrays.toString(this.buffer));
-                    }
-                    //if (BuildConfig.DEBUG || debug)
-                    //    Log.d(LOG_TAG, "writen data (one byte): " + Arrays.toString(this.buffer));
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.OutputStream#close()
-                 */
-                @Override
-                public void close() throws IOException {
-                    // TODO Auto-generated method stub
-                    super.close();
-                    closed = true;
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.OutputStream#flush()
-                 */
-                @Override
-                public void flush() throws IOException {
-                    // TODO Auto-generated method stub
-                    super.flush();
-                }
-
-                /* (non-Javadoc)
-                 * @see java.io.OutputStream#write(byte[])
-                 */
-                @Override
-                public void write(byte[] buffer) throws IOException {
-                    // TODO Auto-generated method stub
-                    super.write(buffer);
-                }
-
-            };
-
-
+            commandWriter = new CommandWriter(transport);
 
             try {
-                if (tmpOut != null) {
-                    tmpOut2 = new PrintStream(tmpOut, false, "US-ASCII");
-                }
-            } catch (UnsupportedEncodingException e) {
-                if (BuildConfig.DEBUG || debug)
-                    Log.e(LOG_TAG, "error while getting usb output streams", e);
-            }
-
-            in = tmpIn;
-            out = tmpOut;
-            out2 = tmpOut2;
-
-            // We couldn't find an endpoint
-            if (endpointIn == null || endpointOut == null) {
+                transport.open();
+            } catch (IOException e) {
                 if (BuildConfig.DEBUG || debug)
-                    Log.e(LOG_TAG, "We couldn't find an endpoint for the device, notifying");
+                    Log.e(LOG_TAG, "We couldn't open the device, notifying", e);
                 disable(R.string.msg_gps_provider_cant_connect);
                 close();
                 return;
             }
+            commandWriter.start();
 
-            final int[] speedList = {Integer.valueOf(deviceSpeed), 1200, 2400, 4800, 9600, 19200, 38400, 57600, 115200};
-//            final List<String> speedList = Arrays.asList(new String[]{"1200", "2400", "4800", "9600", "19200", "38400", "57600", "115200"});
-            final byte[] data = {(byte) 0xC0, 0x12, 0x00, 0x00, 0x00, 0x00, 0x08};
-            final ByteBuffer connectionSpeedBuffer = ByteBuffer.wrap(data, 0, 4).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-            final byte[] sirfBin2Nmea = SirfUtils.genSirfCommandFromPayload(callingService.getString(R.string.sirf_bin_to_nmea));
-            final byte[] datax = new byte[7];
-            final ByteBuffer connectionSpeedInfoBuffer = ByteBuffer.wrap(datax, 0, 7).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-            final int res1 = connection.controlTransfer(0x21, 34, 0, 0, null, 0, TIMEOUT);
-
-            if (sirfGps) {
+            // no need to switch a GPS that was already sending NMEA last time
+            if (sirfGps && (profile == null || profile.protocol != BaudRateDetector.PROTOCOL_NMEA)) {
                 debugLog("trying to switch from SiRF binaray to NMEA");
                 try {
-                    connection.bulkTransfer(endpointOut, sirfBin2Nmea, sirfBin2Nmea.length, TIMEOUT);
-                } catch (NullPointerException e) {
+                    transport.write(sirfBin2Nmea, 0, sirfBin2Nmea.length);
+                } catch (IOException e) {
                     if (BuildConfig.DEBUG || debug)
-                        Log.e(LOG_TAG, "Connection error");
+                        Log.e(LOG_TAG, "Connection error", e);
                     close();
                     return;
                 }
@@ -528,22 +300,11 @@ public class USBGpsManager {
 
             if (setDeviceSpeed) {
                 debugLog("Setting connection speed to: " + deviceSpeed);
-                try {
-                    connectionSpeedBuffer.putInt(0, Integer.valueOf(deviceSpeed)); // Put the value in
-                    connection.controlTransfer(0x21, 32, 0, 0, data, 7, TIMEOUT); // Set baudrate
-                } catch (NullPointerException e) {
+                if (!transport.setBaudRate(Integer.valueOf(deviceSpeed))) {
                     if (BuildConfig.DEBUG || debug)
                         Log.e(LOG_TAG, "Could not set speed");
                     close();
                 }
-                /*
-                connection.controlTransfer(0x40, 0, 0, 0, null, 0, 0);                //reset
-                connection.controlTransfer(0x40, 0, 1, 0, null, 0, 0);                //clear Rx
-                connection.controlTransfer(0x40, 0, 2, 0, null, 0, 0);                //clear Tx
-                connection.controlTransfer(0x40, 0x02, 0x0000, 0, null, 0, 0);    //flow control none
-                connection.controlTransfer(0x40, 0x03, Integer.valueOf(deviceSpeed), 0, null, 0, 0);    //baudrate 9600
-                connection.controlTransfer(0x40, 0x04, 0x0008, 0, null, 0, 0);    //data bit 8, parity none, stop bit 1, tx off
-                */
             } else {
                 Thread autoConf = new Thread() {
 
@@ -552,60 +313,52 @@ public class USBGpsManager {
                      */
                     @Override
                     public void run() {
-//                    final byte[] data = { (byte) 0xC0, 0x12, 0x00, 0x00, 0x00, 0x00, 0x08 };
-//                    final ByteBuffer connectionSpeedBuffer = ByteBuffer.wrap(data, 0, 4).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-//                    final byte[] sirfBin2Nmea = SirfUtils.genSirfCommandFromPayload(callingService.getString(R.string.sirf_bin_to_nmea));
-//                    final byte[] datax = new byte[7];
-//                    final ByteBuffer connectionSpeedInfoBuffer = ByteBuffer.wrap(datax,0,7).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+                        int speed = -1;
                         try {
-                            // Get the current data rate from the device and transfer it into datax
-                            int res0 = connection.controlTransfer(0xA1, 33, 0, 0, datax, 7, TIMEOUT);
-
-                            // Datax is used in a byte buffer which this now turns into an integer
-                            // and sets how preference speed to that speed
-                            USBGpsManager.this.deviceSpeed = Integer.toString(connectionSpeedInfoBuffer.getInt(0));
-
-                            // logs the bytes we got
-                            debugLog("info connection: " + Arrays.toString(datax));
-                            debugLog("info connection speed: " + USBGpsManager.this.deviceSpeed);
-
-                            Thread.sleep(4000);
-                            debugLog("trying to use speed in range: " + Arrays.toString(speedList));
-                            for (int speed: speedList) {
-                                if (!ready && !closed) {
-                                    // set a new datarate
-                                    USBGpsManager.this.deviceSpeed = Integer.toString(speed);
-                                    debugLog("trying to use speed " + speed);
-                                    debugLog("initializing connection:  " + speed + " baud and 8N1 (0 bits no parity 1 stop bit");
-
-                                    // Put that data rate into a new data byte array
-                                    connectionSpeedBuffer.putInt(0, speed);
-
-                                    // And set the device to that data rate
-                                    int res2 = connection.controlTransfer(0x21, 32, 0, 0, data, 7, TIMEOUT);
-
+                            // The speed of the last connection, the one currently set in the device
+                            // and the default one are the most likely
+                            int[] candidates = BaudRateDetector.candidates(
+                                    profile != null ? profile.baudRate : -1,
+                                    transport.getBaudRate(),
+                                    Integer.valueOf(deviceSpeed));
+                            debugLog("trying to use speed in range: " + Arrays.toString(candidates));
+
+                            long start = SystemClock.elapsedRealtime();
+                            speed = baudRateDetector.detect(new BaudRateDetector.Line() {
+                                @Override
+                                public boolean setBaudRate(int baudRate) {
+                                    if (closed) {
+                                        return false;
+                                    }
+                                    debugLog("initializing connection:  " + baudRate + " baud and 8N1 (0 bits no parity 1 stop bit");
+                                    boolean res = transport.setBaudRate(baudRate);
                                     if (sirfGps) {
-                                        debugLog("trying to switch from SiRF binaray to NMEA");
-                                        connection.bulkTransfer(endpointOut, sirfBin2Nmea, sirfBin2Nmea.length, TIMEOUT);
+                                        switchSirfToNmea();
                                     }
-                                    debugLog("data init " + res1 + " " + res2);
-                                    Thread.sleep(4000);
+                                    return res;
                                 }
-                            }
-                            // And get the current data rate again
-                            res0 = connection.controlTransfer(0xA1, 33, 0, 0, datax, 7, TIMEOUT);
-
-                            debugLog("info connection: " + Arrays.toString(datax));
-                            debugLog("info connection speed: " + connectionSpeedInfoBuffer.getInt(0));
+                            }, candidates, BAUD_RATE_TRIAL_TIMEOUT);
 
-                            if (!closed) {
-                                Thread.sleep(10000);
+                            if (speed > 0) {
+                                debugLog("found speed " + speed + " in " + (SystemClock.elapsedRealtime() - start) +
+                                        " ms, protocol: " + baudRateDetector.getProtocol());
+                                if (upgradeLinkSpeed) {
+                                    speed = upgradeLinkSpeed(speed, baudRateDetector.getProtocol());
+                                }
+                            }
+                            if (speed > 0) {
+                                USBGpsManager.this.deviceSpeed = Integer.toString(speed);
                             }
                         } catch (InterruptedException e) {
                             if (BuildConfig.DEBUG || debug)
                                 Log.e(LOG_TAG, "autoconf thread interrupted", e);
                         } finally {
-                            if ((!closed) && (!ready) || (lastRead + 4000 < SystemClock.uptimeMillis())) {
+                            // the next valid sentence makes the GPS ready
+                            configuring = false;
+                            if (!closed && speed < 0 && !ready) {
+                                if (profile != null) {
+                                    deviceProfiles.remove(transport.getDevice());
+                                }
                                 setMockLocationProviderOutOfService();
                                 if (BuildConfig.DEBUG || debug)
                                     Log.e(LOG_TAG, "Something went wrong in auto config");
@@ -619,6 +372,7 @@ public class USBGpsManager {
                 };
                 debugLog("trying to find speed");
                 ready = false;
+                configuring = true;
                 autoConf.start();
             }
         }
@@ -627,59 +381,247 @@ public class USBGpsManager {
             return ready;
         }
 
-        private long lastRead = 0;
+        /**
+         * Remembers what worked for the device, for its next connection.
+         */
+        private void saveProfile() {
+            DeviceProfileStore.Profile newProfile = new DeviceProfileStore.Profile();
+            try {
+                newProfile.baudRate = Integer.parseInt(USBGpsManager.this.deviceSpeed);
+            } catch (NumberFormatException e) {
+                newProfile.baudRate = -1;
+            }
+            newProfile.interfaceIndex = transport.getInterfaceIndex();
+            newProfile.inEndpointIndex = transport.getInEndpointIndex();
+            newProfile.outEndpointIndex = transport.getOutEndpointIndex();
+            // valid NMEA sentences were received
+            newProfile.protocol = BaudRateDetector.PROTOCOL_NMEA;
+            newProfile.sentenceMask = parser.getEpochCompletion();
+            newProfile.updatePeriod = parser.getUpdatePeriod();
+
+            debugLog("saving device profile: " + newProfile);
+            deviceProfiles.save(transport.getDevice(), newProfile);
+        }
 
-        public void run() {
+        /**
+         * Switches the GPS and the bridge to the fastest speed they both handle, so that an epoch
+         * spends less time on the wire. The new speed is checked from the data received, and the
+         * old one is set back if the GPS isn't heard at it.
+         *
+         * @param protocol the protocol the GPS sends, one of the {@link BaudRateDetector} ones
+         * @return the speed in use, -1 if the GPS was lost
+         */
+        private int upgradeLinkSpeed(int speed, int protocol) throws InterruptedException {
+            if (protocol != BaudRateDetector.PROTOCOL_NMEA && protocol != BaudRateDetector.PROTOCOL_UBX) {
+                return speed;
+            }
+            BaudRateDetector.Line line = new BaudRateDetector.Line() {
+                @Override
+                public boolean setBaudRate(int baudRate) {
+                    return !closed && transport.setBaudRate(baudRate);
+                }
+            };
+
+            if (speed >= LINK_SPEED_UPGRADES[0]) {
+                return speed;
+            }
+            long wireTimeBefore = measureEpochWireTime(speed);
+            int oldSpeed = speed;
+            for (int newSpeed : LINK_SPEED_UPGRADES) {
+                if (newSpeed <= speed || closed) {
+                    break;
+                }
+                debugLog("switching link speed from " + speed + " to " + newSpeed);
+                long commandsWireTime;
+                try {
+                    commandsWireTime = sendLinkSpeedCommands(newSpeed, protocol, speed);
+                } catch (IOException e) {
+                    debugLog("unable to send the speed commands: " + e.getMessage());
+                    return speed;
+                }
+                // the bridge only changes speed once the commands went out at the old one
+                Thread.sleep(commandsWireTime);
+
+                if (baudRateDetector.detect(line, new int[]{newSpeed}, BAUD_RATE_TRIAL_TIMEOUT) > 0) {
+                    speed = newSpeed;
+                    break;
+                }
+                debugLog("GPS not heard at " + newSpeed + ", back to " + speed);
+                if (baudRateDetector.detect(line, new int[]{speed}, BAUD_RATE_TRIAL_TIMEOUT) < 0) {
+                    // the GPS may have switched without sending before the check ended
+                    int found = baudRateDetector.detect(line,
+                            BaudRateDetector.candidates(newSpeed, speed), BAUD_RATE_TRIAL_TIMEOUT);
+                    if (found < 0) {
+                        return -1;
+                    }
+                    speed = found;
+                    break;
+                }
+            }
+
+            if (speed != oldSpeed) {
+                long wireTimeAfter = measureEpochWireTime(speed);
+                debugLog("link speed switched from " + oldSpeed + " to " + speed + ", wire time of an epoch: " +
+                        wireTimeBefore + " ms before, " + wireTimeAfter + " ms after");
+            }
+            return speed;
+        }
+
+        /**
+         * Sends the speed change commands of the SiRF, MediaTek and u-blox chips, each ignoring
+         * the others', and waits for them to be written.
+         *
+         * @return the time the commands take on the wire at the current speed, in milliseconds
+         */
+        private long sendLinkSpeedCommands(int newSpeed, int protocol, int speed)
+                throws IOException, InterruptedException {
+            List<byte[]> commands = new ArrayList<>();
+            if (protocol == BaudRateDetector.PROTOCOL_NMEA) {
+                commands.add(packageNmeaCommand(callingService.getString(R.string.sirf_nmea_set_speed, newSpeed))
+                        .getBytes(US_ASCII));
+                commands.add(packageNmeaCommand(callingService.getString(R.string.mtk_nmea_set_speed, newSpeed))
+                        .getBytes(US_ASCII));
+            }
+            commands.add(UbxUtils.genSetBaudRateCommand(newSpeed));
+
+            List<CommandWriter.Command> written = new ArrayList<>();
+            int length = 0;
+            for (byte[] command : commands) {
+                written.add(commandWriter.submitLinkCommand(command));
+                length += command.length;
+            }
+            for (CommandWriter.Command command : written) {
+                try {
+                    command.get(MAX_READ_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    throw new IOException("speed command not written", e.getCause());
+                } catch (TimeoutException e) {
+                    throw new IOException("speed command not written", e);
+                }
+            }
+            // 10 bits per byte with 8N1, plus what the bridge may still have to send
+            return length * 10000L / speed + MIN_READ_TIMEOUT;
+        }
+
+        /**
+         * Measures the time a whole epoch of data takes on the wire, from the bytes received
+         * during two epochs.
+         *
+         * @return the time in milliseconds
+         */
+        private long measureEpochWireTime(int speed) throws InterruptedException {
+            int period = parser.getUpdatePeriod();
+            if (period <= 0) {
+                period = MAX_READ_TIMEOUT;
+            }
+            long bytesBefore = transport.getStats().getBytesRead();
+            Thread.sleep(2 * period);
+            long bytesPerEpoch = (transport.getStats().getBytesRead() - bytesBefore) / 2;
+            return bytesPerEpoch * 10000L / speed;
+        }
+
+        private void switchSirfToNmea() {
+            debugLog("trying to switch from SiRF binaray to NMEA");
             try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"), 128);
+                transport.write(sirfBin2Nmea, 0, sirfBin2Nmea.length);
+            } catch (IOException e) {
+                debugLog("unable to switch from SiRF binary to NMEA: " + e.getMessage());
+            }
+        }
 
-                // Sentence to read from the device
-                String s;
+        private final NmeaReadLoop.Handler readHandler = new NmeaReadLoop.Handler() {
+            @Override
+            public void onData(byte[] buffer, int offset, int length) {
+                baudRateDetector.onData(buffer, offset, length);
+            }
 
-                long now = SystemClock.uptimeMillis();
+            @Override
+            public boolean onSentence(byte[] buffer, int start, int end, long timestamp) {
+                if (!notifyNmeaSentence(buffer, start, end, timestamp)) {
+                    return false;
+                }
+                configurator.onSentence(buffer, start, end);
+                if (!ready && !configuring) {
+                    ready = true;
+                    commandWriter.setReady(true);
+                    synchronized (readyLock) {
+                        readyLock.notifyAll();
+                    }
+                }
+
+                if (problemNotified) {
+                    problemNotified = false;
+                    // reset eventual disabling cause
+                    setDisableReason(0);
+                    // connection is good so resetting the number of connection try
+                    debugLog("connection is good so resetting the number of connection retries");
+                    nbRetriesRemaining = maxConnectionRetries;
+                    notificationManager.cancel(R.string.connection_problem_notification_title);
+                }
+                return true;
+            }
+
+            @Override
+            public void onIdle() {
+                parser.flushExpiredEpoch();
+            }
+
+            @Override
+            public long getReadTimeout() {
+                return ConnectedGps.this.getReadTimeout();
+            }
+        };
+
+        /**
+         * The read waits at most until the current fix has to be published even if incomplete,
+         * and is short enough to notice quickly that the GPS stopped sending data.
+         *
+         * @return the timeout of the next read in milliseconds
+         */
+        private long getReadTimeout() {
+            long timeout = MAX_READ_TIMEOUT;
+            int period = parser.getUpdatePeriod();
+            if (period > 0) {
+                timeout = Math.max(MIN_READ_TIMEOUT, Math.min(MAX_READ_TIMEOUT, period));
+            }
 
-                // we will wait more at the beginning of the connection
-                // but if we don't get a signal after 45 seconds we can assume the device
-                // is not usable
-                lastRead = now + 45000;
-                while ((enabled) && (now < lastRead + 4000) && (!closed)) {
+            long expiryTime = parser.getEpochExpiryTime();
+            if (expiryTime >= 0) {
+                timeout = Math.max(1, Math.min(timeout, expiryTime - SystemClock.elapsedRealtime()));
+            }
+            return timeout;
+        }
+
+        public TransportStats getTransportStats() {
+            return transport.getStats();
+        }
 
+        public void run() {
+            try {
+                int end;
+                if (closed || !enabled) {
+                    end = NmeaReadLoop.STOPPED;
+                } else {
                     try {
-                        s = reader.readLine();
+                        // we will wait more at the beginning of the connection
+                        // but if we don't get a signal after 45 seconds we can assume the device
+                        // is not usable
+                        end = readLoop.run(FIRST_SENTENCE_TIMEOUT, SILENCE_TIMEOUT);
                     } catch (IOException e) {
-                        s = null;
-                    }
-
-                    if (s != null) {
-                        //Log.v(LOG_TAG, "data: "+System.currentTimeMillis()+" "+s);
-                        if (notifyNmeaSentence(s + "\r\n")) {
-                            ready = true;
-
-                            lastRead = SystemClock.uptimeMillis();
-
-                            if (problemNotified) {
-                                problemNotified = false;
-                                // reset eventual disabling cause
-                                setDisableReason(0);
-                                // connection is good so resetting the number of connection try
-                                debugLog("connection is good so resetting the number of connection retries");
-                                nbRetriesRemaining = maxConnectionRetries;
-                                notificationManager.cancel(R.string.connection_problem_notification_title);
-                            }
-                        }
-                    } else {
-                        log("data: not ready " + System.currentTimeMillis());
-                        SystemClock.sleep(100);
+                        if (BuildConfig.DEBUG || debug)
+                            Log.e(LOG_TAG, "error while reading data", e);
+                        end = NmeaReadLoop.LINK_CLOSED;
                     }
-//                    SystemClock.sleep(10);
-                    now = SystemClock.uptimeMillis();
                 }
 
-                if (now > lastRead + 4000) {
+                if (end == NmeaReadLoop.SILENT) {
                     if (BuildConfig.DEBUG || debug)
                         Log.e(LOG_TAG, "Read timeout in read thread");
                 } else if (closed) {
                     debugLog("Device connection closing, stopping read thread");
+                } else if (end == NmeaReadLoop.LINK_CLOSED) {
+                    if (BuildConfig.DEBUG || debug)
+                        Log.e(LOG_TAG, "Device connection lost, stopping read thread");
                 } else {
                     debugLog("Provider disabled, stopping read thread");
                 }
@@ -696,87 +638,50 @@ public class USBGpsManager {
         }
 
         /**
-         * Write to the connected OutStream.
+         * Queues bytes to write to the GPS, they are written as soon as it is ready.
          *
          * @param buffer The bytes to write
+         * @return the queued command, done once written
          */
-        public void write(byte[] buffer) {
-            try {
-                do {
-                    Thread.sleep(100);
-                } while ((enabled) && (!ready) && (!closed));
-                if ((enabled) && (ready) && (!closed)) {
-                    out.write(buffer);
-                    out.flush();
-                }
-            } catch (IOException | InterruptedException e) {
+        public CommandWriter.Command write(byte[] buffer) {
+            CommandWriter.Command command = commandWriter.submit(buffer);
+            if (command.isDone() && !command.isWritten()) {
                 if (BuildConfig.DEBUG || debug)
-                    Log.e(LOG_TAG, "Exception during write", e);
+                    Log.e(LOG_TAG, "Unable to queue command: " + Arrays.toString(buffer));
             }
+            return command;
         }
 
         /**
-         * Write to the connected OutStream.
+         * Queues data to write to the GPS, it is written as soon as it is ready.
          *
          * @param buffer The data to write
+         * @return the queued command, done once written
          */
-        public void write(String buffer) {
-            try {
-                do {
-                    Thread.sleep(100);
-                } while ((enabled) && (!ready) && (!closed));
-                if ((enabled) && (ready) && (!closed)) {
-                    out2.print(buffer);
-                    out2.flush();
-                }
-            } catch (InterruptedException e) {
-                if (BuildConfig.DEBUG || debug)
-                    Log.e(LOG_TAG, "Exception during write", e);
-            }
+        public CommandWriter.Command write(String buffer) {
+            return write(buffer.getBytes(US_ASCII));
         }
 
         public void close() {
+            if (ready) {
+                saveProfile();
+            }
             ready = false;
             closed = true;
+            if (readLoop != null) {
+                readLoop.stop();
+            }
             try {
-                debugLog("closing USB GPS output stream");
-                in.close();
-
-            } catch (IOException e) {
-                if (BuildConfig.DEBUG || debug)
-                    Log.e(LOG_TAG, "error while closing GPS NMEA output stream", e);
-
+                debugLog("closing USB GPS command writer, " + commandWriter.getCommandsWritten() +
+                        " commands sent in " + commandWriter.getWrites() + " writes");
+                commandWriter.close();
             } finally {
-                try {
-                    debugLog("closing USB GPS input streams");
-                    out2.close();
-                    out.close();
-
-                } catch (IOException e) {
-                    if (BuildConfig.DEBUG || debug)
-                        Log.e(LOG_TAG, "error while closing GPS input streams", e);
-
-                } finally {
-                    debugLog("releasing usb interface for connection: " + connection);
-
-                    boolean released = false;
-                    if (intf != null) {
-                        released = connection.releaseInterface(intf);
-                    }
-
-                    if (released) {
-                        debugLog("usb interface released for connection: " + connection);
-
-                    } else if (intf != null) {
-                        debugLog("unable to release usb interface for connection: " + connection);
-                    } else {
-                        debugLog("no interface to release");
-                    }
-
-                    debugLog("closing usb connection: " + connection);
-                    connection.close();
-
-                }
+                transport.close();
+                NmeaFramer framer = readLoop.getFramer();
+                debugLog("USB GPS closed, " + transport.getStats() + ", " +
+                        framer.getSentenceCount() + " sentences framed, " +
+                        framer.getDroppedCount() + " dropped, " +
+                        framer.getGarbageCount() + " bytes of garbage");
             }
         }
     }
@@ -792,12 +697,25 @@ public class USBGpsManager {
     private ExecutorService notificationPool;
     private ScheduledExecutorService connectionAndReadingPool;
 
-    private final List<NmeaListener> nmeaListeners =
-            Collections.synchronizedList(new LinkedList<NmeaListener>());
+    /**
+     * Copied on change, so that the reading loop never waits for a listener being added or removed.
+     * The changes are made under its lock.
+     */
+    private final List<NmeaDispatcher> nmeaListeners = new CopyOnWriteArrayList<>();
+    /**
+     * The sentences waiting to be handed to the NMEA listeners.
+     */
+    private final SentenceRing nmeaRing = new SentenceRing(NMEA_RING_CAPACITY, NmeaFramer.MAX_SENTENCE_LENGTH);
 
     private LocationManager locationManager;
     private SharedPreferences sharedPreferences;
-    private ConnectedGps connectedGps;
+    private DeviceProfileStore deviceProfiles;
+    private final GpsConfigurator configurator = new GpsConfigurator();
+    /**
+     * Notified when the GPS is ready to receive commands, or the manager disabled.
+     */
+    private final Object readyLock = new Object();
+    private volatile ConnectedGps connectedGps;
     private int disableReason = 0;
 
     private NotificationCompat.Builder connectionProblemNotificationBuilder;
@@ -812,6 +730,7 @@ public class USBGpsManager {
 
     private boolean connected = false;
     private boolean setDeviceSpeed = false;
+    private boolean upgradeLinkSpeed = false;
     private boolean sirfGps = false;
     private String deviceSpeed = "auto";
     private String defaultDeviceSpeed = "4800";
@@ -837,6 +756,7 @@ public class USBGpsManager {
         locationManager = (LocationManager) callingService.getSystemService(Context.LOCATION_SERVICE);
 
         sharedPreferences = PreferenceManager.getDefaultSharedPreferences(callingService);
+        deviceProfiles = new DeviceProfileStore(appContext);
 
         deviceSpeed = sharedPreferences.getString(
                 USBGpsProviderService.PREF_GPS_DEVICE_SPEED,
@@ -848,6 +768,7 @@ public class USBGpsManager {
 
         defaultDeviceSpeed = callingService.getString(R.string.defaultGpsDeviceSpeed);
         setDeviceSpeed = !deviceSpeed.equals(callingService.getString(R.string.autoGpsDeviceSpeed));
+        upgradeLinkSpeed = sharedPreferences.getBoolean(USBGpsProviderService.PREF_UPGRADE_LINK_SPEED, false);
         sirfGps = sharedPreferences.getBoolean(USBGpsProviderService.PREF_SIRF_GPS, false);
         notificationManager = (NotificationManager) callingService.getSystemService(Context.NOTIFICATION_SERVICE);
         parser.setLocationManager(locationManager);
@@ -1258,6 +1179,14 @@ public class USBGpsManager {
 
             enabled = false;
             connectionAndReadingPool.shutdown();
+            synchronized (readyLock) {
+                readyLock.notifyAll();
+            }
+
+            // wakes up the read loop right away
+            if (connectedGps != null) {
+                connectedGps.close();
+            }
 
             Runnable closeAndShutdown = new Runnable() {
                 @Override
@@ -1279,6 +1208,7 @@ public class USBGpsManager {
             };
 
             notificationPool.execute(closeAndShutdown);
+            nmeaRing.close();
             nmeaListeners.clear();
             disableMockLocationProvider();
             notificationPool.shutdown();
@@ -1365,6 +1295,33 @@ public class USBGpsManager {
         return mockLocationProvider;
     }
 
+    /**
+     * Getter for the counters of the link with the GPS, e.g. the latency between the reception
+     * of the data and its parsing.
+     *
+     * @return the counters of the current connection, null if not connected
+     */
+    public TransportStats getTransportStats() {
+        ConnectedGps gps = connectedGps;
+        return gps != null ? gps.getTransportStats() : null;
+    }
+
+    /**
+     * Getter for the satellites in view.
+     * In fact, it delegates to the NMEA parser.
+     *
+     * @return the satellites given by the last GSV sentences, only valid until the next update
+     * and only updated while a record listener wants them
+     * @see NmeaParser#getSatelliteTable()
+     */
+    public SatelliteTable getSatelliteTable() {
+        SatelliteTable satelliteTable = null;
+        if (parser != null) {
+            satelliteTable = parser.getSatelliteTable();
+        }
+        return satelliteTable;
+    }
+
     /**
      * Indicates that the bluetooth GPS Provider is out of service.
      * In fact, it delegates to the NMEA parser.
@@ -1378,16 +1335,36 @@ public class USBGpsManager {
     }
 
     /**
-     * Adds an NMEA listener.
-     * In fact, it delegates to the NMEA parser.
+     * Adds an NMEA listener, skipping the oldest sentences if it lags too much.
      *
      * @param listener a {@link NmeaListener} object to register
      * @return true if the listener was successfully added
      */
     public boolean addNmeaListener(NmeaListener listener) {
-        if (!nmeaListeners.contains(listener)) {
-            debugLog("adding new NMEA listener");
-            nmeaListeners.add(listener);
+        return addNmeaListener(listener, SentenceRing.POLICY_DROP_OLDEST);
+    }
+
+    /**
+     * Adds an NMEA listener.
+     * <p>
+     * The policy tells what happens when the listener lags too much: a track writer that must not
+     * lose any sentence blocks the reading thread for a while, a display only wants the latest epoch.
+     * With {@link SentenceRing#POLICY_BLOCK}, the reading thread waits at most
+     * {@link #NMEA_LISTENER_BLOCK_TIMEOUT} for the listener.
+     *
+     * @param listener a {@link NmeaListener} object to register
+     * @param policy   one of the {@link SentenceRing} POLICY constants
+     * @return true if the listener was successfully added
+     */
+    public boolean addNmeaListener(NmeaListener listener, int policy) {
+        synchronized (nmeaListeners) {
+            if (findNmeaDispatcher(listener) == null) {
+                debugLog("adding new NMEA listener with policy " + policy);
+                NmeaDispatcher dispatcher = new NmeaDispatcher(listener);
+                dispatcher.subscription = nmeaRing.subscribe(dispatcher, "NMEA listener " + nmeaListeners.size(),
+                        policy, NMEA_LISTENER_BLOCK_TIMEOUT);
+                nmeaListeners.add(dispatcher);
+            }
         }
         return true;
     }
@@ -1400,7 +1377,78 @@ public class USBGpsManager {
      */
     public void removeNmeaListener(NmeaListener listener) {
         debugLog("removing NMEA listener");
-        nmeaListeners.remove(listener);
+        synchronized (nmeaListeners) {
+            NmeaDispatcher dispatcher = findNmeaDispatcher(listener);
+            if (dispatcher != null) {
+                dispatcher.subscription.close();
+                nmeaListeners.remove(dispatcher);
+                debugLog("NMEA listener removed: " + dispatcher.subscription);
+            }
+        }
+    }
+
+    /**
+     * Gives the delivery statistics of a NMEA listener: its lag, the sentences it received,
+     * the ones it dropped or conflated for being too slow, the time the reading thread waited for it...
+     *
+     * @return the subscription of the listener, null if not registered
+     */
+    public SentenceRing.Subscription getNmeaListenerSubscription(NmeaListener listener) {
+        NmeaDispatcher dispatcher = findNmeaDispatcher(listener);
+        return (dispatcher != null) ? dispatcher.subscription : null;
+    }
+
+    private NmeaDispatcher findNmeaDispatcher(NmeaListener listener) {
+        for (NmeaDispatcher dispatcher : nmeaListeners) {
+            if (dispatcher.listener == listener) {
+                return dispatcher;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers a decoder for a NMEA sentence type, e.g. for proprietary sentences.
+     * In fact, it delegates to the NMEA parser.
+     *
+     * @see NmeaParser#registerSentenceHandler(String, String, NmeaParser.SentenceHandler)
+     */
+    public void registerSentenceHandler(String talker, String type, NmeaParser.SentenceHandler handler) {
+        debugLog("registering NMEA sentence handler: " + talker + " " + type);
+        parser.registerSentenceHandler(talker, type, handler);
+    }
+
+    /**
+     * Removes a decoder for a NMEA sentence type.
+     * In fact, it delegates to the NMEA parser.
+     *
+     * @see NmeaParser#unregisterSentenceHandler(String, String)
+     */
+    public void unregisterSentenceHandler(String talker, String type) {
+        debugLog("removing NMEA sentence handler: " + talker + " " + type);
+        parser.unregisterSentenceHandler(talker, type);
+    }
+
+    /**
+     * Adds a listener of the decoded fixes and satellites, so that it doesn't parse the NMEA again.
+     * In fact, it delegates to the NMEA parser.
+     *
+     * @param recordMask the record types wanted, e.g.
+     *                   {@link NmeaParser.RecordListener#RECORD_FIX}
+     * @see NmeaParser#addRecordListener(NmeaParser.RecordListener, int)
+     */
+    public void addRecordListener(NmeaParser.RecordListener listener, int recordMask) {
+        debugLog("adding record listener: " + recordMask);
+        parser.addRecordListener(listener, recordMask);
+    }
+
+    /**
+     * Removes a listener of the decoded fixes and satellites.
+     * In fact, it delegates to the NMEA parser.
+     */
+    public void removeRecordListener(NmeaParser.RecordListener listener) {
+        debugLog("removing record listener");
+        parser.removeRecordListener(listener);
     }
 
     /**
@@ -1438,21 +1486,26 @@ public class USBGpsManager {
 
     /**
      * Notifies the reception of a NMEA sentence from the USB GPS to registered NMEA listeners.
+     * <p>
+     * The sentence is parsed straight from the bytes received, and handed to the application
+     * as bytes too: it is only turned into a String when the UI shows it.
      *
-     * @param nmeaSentence the complete NMEA sentence received from the USB GPS (i.e. $....*XY where XY is the checksum)
-     * @return true if the input string is a valid NMEA sentence, false otherwise.
+     * @param buffer    the bytes received from the USB GPS
+     * @param start     index of the first character of the sentence
+     * @param end       index after the "\r\n" ending the sentence
+     * @param timestamp the time the sentence was received
+     * @return true if the sentence is a valid NMEA sentence, false otherwise.
      */
-    private boolean notifyNmeaSentence(final String nmeaSentence) {
+    private boolean notifyNmeaSentence(byte[] buffer, int start, int end, final long timestamp) {
         boolean res = false;
         if (enabled) {
-            log("parsing and notifying NMEA sentence: " + nmeaSentence);
-            String sentence = null;
+            boolean valid = false;
             try {
                 if (shouldSetTime && !timeSetAlready) {
                     parser.clearLastSentenceTime();
                 }
 
-                sentence = parser.parseNmeaSentence(nmeaSentence);
+                valid = parser.parseNmeaSentence(buffer, start, end - start);
 
                 if (shouldSetTime && !timeSetAlready) {
                     if (!parser.getLastSentenceTime().isEmpty()) {
@@ -1463,36 +1516,30 @@ public class USBGpsManager {
 
             } catch (SecurityException e) {
                 if (BuildConfig.DEBUG || debug)
-                    Log.e(LOG_TAG, "error while parsing NMEA sentence: " + nmeaSentence, e);
+                    Log.e(LOG_TAG, "error while parsing NMEA sentence: " + new String(buffer, start, end - start, US_ASCII), e);
                 // a priori Mock Location is disabled
-                sentence = null;
+                valid = false;
                 disable(R.string.msg_mock_location_disabled);
             } catch (Exception e) {
                 if (BuildConfig.DEBUG || debug) {
                     Log.e(LOG_TAG, "Sentence not parsable");
-                    Log.e(LOG_TAG, nmeaSentence);
+                    Log.e(LOG_TAG, new String(buffer, start, end - start, US_ASCII));
                 }
                 e.printStackTrace();
             }
-            final String recognizedSentence = sentence;
-            final long timestamp = System.currentTimeMillis();
-            if (recognizedSentence != null) {
+
+            if (valid) {
                 res = true;
-                log("notifying NMEA sentence: " + recognizedSentence);
+                if (BuildConfig.DEBUG) {
+                    log("notifying NMEA sentence: " + new String(buffer, start, end - start - 2, US_ASCII));
+                }
 
-                ((USBGpsApplication) appContext).notifyNewSentence(
-                        recognizedSentence.replaceAll("(\\r|\\n)", "")
-                );
+                // without the "\r\n"
+                ((USBGpsApplication) appContext).notifyNewSentence(buffer, start, end - start - 2);
 
-                synchronized (nmeaListeners) {
-                    for (final NmeaListener listener : nmeaListeners) {
-                        notificationPool.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                listener.onNmeaReceived(timestamp, recognizedSentence);
-                            }
-                        });
-                    }
+                // copied with its "\r\n" for the listeners, each on its own thread
+                if (!nmeaListeners.isEmpty()) {
+                    nmeaRing.publish(buffer, start, end, timestamp, parser.hasStartedEpoch());
                 }
             }
         }
@@ -1503,11 +1550,11 @@ public class USBGpsManager {
      * Sends a NMEA sentence to the bluetooth GPS.
      *
      * @param command the complete NMEA sentence (i.e. $....*XY where XY is the checksum).
+     * @return the queued command, done once written to the GPS
      */
-    public void sendPackagedNmeaCommand(final String command) {
-        log("sending NMEA sentence: " + command);
-        connectedGps.write(command);
-        log("sent NMEA sentence: " + command);
+    public Future<Void> sendPackagedNmeaCommand(final String command) {
+        log("queuing NMEA sentence: " + command);
+        return connectedGps.write(command);
     }
 
     /**
@@ -1515,22 +1562,30 @@ public class USBGpsManager {
      *
      * @param commandHexa an hexadecimal string representing a complete binary command
      *                    (i.e. with the <em>Start Sequence</em>, <em>Payload Length</em>, <em>Payload</em>, <em>Message Checksum</em> and <em>End Sequence</em>).
+     * @return the queued command, done once written to the GPS
      */
-    public void sendPackagedSirfCommand(final String commandHexa) {
+    public Future<Void> sendPackagedSirfCommand(final String commandHexa) {
         final byte[] command = SirfUtils.genSirfCommand(commandHexa);
-        log("sendind SIRF sentence: " + commandHexa);
-        connectedGps.write(command);
-        log("sent SIRF sentence: " + commandHexa);
+        log("queuing SIRF sentence: " + commandHexa);
+        return connectedGps.write(command);
     }
 
     /**
      * Sends a NMEA sentence to the bluetooth GPS.
      *
      * @param sentence the NMEA sentence without the first "$", the last "*" and the checksum.
+     * @return the queued command, done once written to the GPS
      */
-    public void sendNmeaCommand(String sentence) {
-        String command = String.format((Locale) null, "$%s*%02X\r\n", sentence, parser.computeChecksum(sentence));
-        sendPackagedNmeaCommand(command);
+    public Future<Void> sendNmeaCommand(String sentence) {
+        return sendPackagedNmeaCommand(packageNmeaCommand(sentence));
+    }
+
+    /**
+     * @param sentence the NMEA sentence without the first "$", the last "*" and the checksum.
+     * @return the complete NMEA sentence
+     */
+    private String packageNmeaCommand(String sentence) {
+        return String.format((Locale) null, "$%s*%02X\r\n", sentence, parser.computeChecksum(sentence));
     }
 
     /**
@@ -1538,101 +1593,130 @@ public class USBGpsManager {
      *
      * @param payload an hexadecimal string representing the payload of the binary command
      *                (i.e. without <em>Start Sequence</em>, <em>Payload Length</em>, <em>Message Checksum</em> and <em>End Sequence</em>).
+     * @return the queued command, done once written to the GPS
      */
-    public void sendSirfCommand(String payload) {
+    public Future<Void> sendSirfCommand(String payload) {
         String command = SirfUtils.createSirfCommandFromPayload(payload);
-        sendPackagedSirfCommand(command);
+        return sendPackagedSirfCommand(command);
     }
 
-    private void enableNMEA(boolean enable) {
-//            SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(callingService);
-//            String deviceSpeed = sharedPreferences.getString(USBGpsProviderService.PREF_GPS_DEVICE_SPEED, callingService.getString(R.string.defaultGpsDeviceSpeed));
+    /**
+     * Switches the GPS between NMEA and SiRF binary, and waits for the switch to show in the data.
+     */
+    private void enableNMEA(boolean enable) throws InterruptedException {
         if (deviceSpeed.equals(callingService.getString(R.string.autoGpsDeviceSpeed))) {
             deviceSpeed = callingService.getString(R.string.defaultGpsDeviceSpeed);
         }
-        SystemClock.sleep(400);
+        long start = SystemClock.elapsedRealtime();
+        boolean switched;
         if (enable) {
-//                int gll = (sharedPreferences.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GLL, false)) ? 1 : 0 ;
-//                int vtg = (sharedPreferences.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_VTG, false)) ? 1 : 0 ;
-//                int gsa = (sharedPreferences.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GSA, false)) ? 5 : 0 ;
-//                int gsv = (sharedPreferences.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GSV, false)) ? 5 : 0 ;
-//                int zda = (sharedPreferences.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_ZDA, false)) ? 1 : 0 ;
-//                int mss = 0;
-//                int epe = 0;
-//                int gga = 1;
-//                int rmc = 1;
-//                String command = getString(R.string.sirf_bin_to_nmea_38400_alt, gga, gll, gsa, gsv, rmc, vtg, mss, epe, zda);
-//                String command = getString(R.string.sirf_bin_to_nmea_alt, gga, gll, gsa, gsv, rmc, vtg, mss, epe, zda, Integer.parseInt(deviceSpeed));
-            String command = callingService.getString(R.string.sirf_bin_to_nmea);
-            this.sendSirfCommand(command);
+            this.sendSirfCommand(callingService.getString(R.string.sirf_bin_to_nmea));
+            switched = configurator.awaitSentence(PROTOCOL_SWITCH_TIMEOUT);
         } else {
-//                this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_to_binary));
             this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_to_binary_alt, Integer.parseInt(deviceSpeed)));
+            // the GPS switched once a whole epoch went by without NMEA
+            int period = parser.getUpdatePeriod();
+            long quietTime = (period > 0) ? period * 3 / 2 : 1500;
+            switched = configurator.awaitQuiet(quietTime, PROTOCOL_SWITCH_TIMEOUT);
         }
-        SystemClock.sleep(400);
+        debugLog("switch to " + (enable ? "NMEA" : "SiRF binary") + (switched ? " done in " : " not seen after ") +
+                (SystemClock.elapsedRealtime() - start) + " ms");
     }
 
-    private void enableNmeaGGA(boolean enable) {
-        if (enable) {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_gga_on));
-        } else {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_gga_off));
-        }
-    }
-
-    private void enableNmeaGLL(boolean enable) {
-        if (enable) {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_gll_on));
-        } else {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_gll_off));
-        }
-    }
-
-    private void enableNmeaGSA(boolean enable) {
-        if (enable) {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_gsa_on));
-        } else {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_gsa_off));
-        }
-    }
-
-    private void enableNmeaGSV(boolean enable) {
-        if (enable) {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_gsv_on));
-        } else {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_gsv_off));
-        }
-    }
-
-    private void enableNmeaRMC(boolean enable) {
-        if (enable) {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_rmc_on));
-        } else {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_rmc_off));
+    /**
+     * Adds the setting of a NMEA sentence, if in the configuration.
+     *
+     * @param type the 3 letters type of the sentence
+     */
+    private void addSentenceSetting(List<GpsConfigurator.Setting> settings, Bundle config, String key,
+                                    boolean defaultValue, String type, int onCommand, int offCommand) {
+        if (!config.containsKey(key)) {
+            return;
         }
+        String command = callingService.getString(config.getBoolean(key, defaultValue) ? onCommand : offCommand);
+        // PSRF103,<message>,<mode>,<rate>,<checksum>: the rate is in seconds, 0 for off
+        int rate = Integer.parseInt(command.split(",")[3]);
+        settings.add(GpsConfigurator.Setting.sentenceRate(
+                type + (rate > 0 ? " on" : " off"),
+                packageNmeaCommand(command).getBytes(US_ASCII),
+                type, rate));
     }
 
-    private void enableNmeaVTG(boolean enable) {
-        if (enable) {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_vtg_on));
-        } else {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_vtg_off));
+    /**
+     * Waits for the GPS to be ready to receive commands.
+     *
+     * @return the ready GPS, null if the manager was disabled meanwhile
+     */
+    private ConnectedGps awaitReadyGps() throws InterruptedException {
+        synchronized (readyLock) {
+            // not isEnabled(): disable() takes the manager lock before this one
+            while (enabled) {
+                ConnectedGps gps = connectedGps;
+                if (connected && gps != null && gps.isReady()) {
+                    return gps;
+                }
+                debugLog("writing thread is not ready");
+                readyLock.wait(MAX_READ_TIMEOUT);
+            }
         }
+        return null;
     }
 
-    private void enableNmeaZDA(boolean enable) {
-        if (enable) {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_zda_on));
-        } else {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_zda_off));
-        }
-    }
+    /**
+     * Sends the whole configuration at once and checks it took from the sentences received,
+     * sending again only what didn't.
+     */
+    private void applySirfConfig(Bundle extra) {
+        try {
+            final ConnectedGps gps = awaitReadyGps();
+            if (gps == null) {
+                return;
+            }
+            debugLog("init SiRF config: " + extra);
+            long start = SystemClock.elapsedRealtime();
+
+            List<GpsConfigurator.Setting> settings = new ArrayList<>();
+            addSentenceSetting(settings, extra, USBGpsProviderService.PREF_SIRF_ENABLE_GGA, true, "GGA",
+                    R.string.sirf_nmea_gga_on, R.string.sirf_nmea_gga_off);
+            addSentenceSetting(settings, extra, USBGpsProviderService.PREF_SIRF_ENABLE_RMC, true, "RMC",
+                    R.string.sirf_nmea_rmc_on, R.string.sirf_nmea_rmc_off);
+            addSentenceSetting(settings, extra, USBGpsProviderService.PREF_SIRF_ENABLE_GLL, false, "GLL",
+                    R.string.sirf_nmea_gll_on, R.string.sirf_nmea_gll_off);
+            addSentenceSetting(settings, extra, USBGpsProviderService.PREF_SIRF_ENABLE_VTG, false, "VTG",
+                    R.string.sirf_nmea_vtg_on, R.string.sirf_nmea_vtg_off);
+            addSentenceSetting(settings, extra, USBGpsProviderService.PREF_SIRF_ENABLE_GSA, false, "GSA",
+                    R.string.sirf_nmea_gsa_on, R.string.sirf_nmea_gsa_off);
+            addSentenceSetting(settings, extra, USBGpsProviderService.PREF_SIRF_ENABLE_GSV, false, "GSV",
+                    R.string.sirf_nmea_gsv_on, R.string.sirf_nmea_gsv_off);
+            addSentenceSetting(settings, extra, USBGpsProviderService.PREF_SIRF_ENABLE_ZDA, false, "ZDA",
+                    R.string.sirf_nmea_zda_on, R.string.sirf_nmea_zda_off);
+            if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_SBAS)) {
+                boolean sbas = extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_SBAS, true);
+                String command = callingService.getString(sbas ? R.string.sirf_nmea_sbas_on : R.string.sirf_nmea_sbas_off);
+                settings.add(GpsConfigurator.Setting.unchecked(
+                        "SBAS " + (sbas ? "on" : "off"), packageNmeaCommand(command).getBytes(US_ASCII)));
+            }
 
-    private void enableSBAS(boolean enable) {
-        if (enable) {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_sbas_on));
-        } else {
-            this.sendNmeaCommand(callingService.getString(R.string.sirf_nmea_sbas_off));
+            List<GpsConfigurator.Setting> failed = configurator.apply(new GpsConfigurator.Sender() {
+                @Override
+                public Future<Void> send(byte[] command) {
+                    return gps.write(command);
+                }
+            }, settings, parser.getUpdatePeriod());
+            debugLog("applied " + (settings.size() - failed.size()) + " of " + settings.size() +
+                    " SiRF settings in " + (SystemClock.elapsedRealtime() - start) + " ms" +
+                    (failed.isEmpty() ? "" : ", not taken: " + failed));
+
+            // switching protocols stops the NMEA data, so it comes last
+            if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_STATIC_NAVIGATION)) {
+                enableStaticNavigation(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_STATIC_NAVIGATION, false));
+            } else if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_NMEA)) {
+                enableNMEA(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_NMEA, true));
+            }
+            debugLog("initialized SiRF config: " + extra);
+        } catch (InterruptedException e) {
+            if (BuildConfig.DEBUG || debug)
+                Log.e(LOG_TAG, "SiRF config interrupted", e);
         }
     }
 
@@ -1642,98 +1726,30 @@ public class USBGpsManager {
             notificationPool.execute(new Runnable() {
                 @Override
                 public void run() {
-                    while ((enabled) && ((!connected) || (connectedGps == null) || (!connectedGps.isReady()))) {
-                        debugLog("writing thread is not ready");
-                        SystemClock.sleep(500);
-                    }
-                    if (isEnabled() && (connected) && (connectedGps != null) && (connectedGps.isReady())) {
-                        debugLog("init SiRF config: " + extra);
-                        if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_GGA)) {
-                            enableNmeaGGA(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GGA, true));
-                        }
-                        if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_RMC)) {
-                            enableNmeaRMC(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_RMC, true));
-                        }
-                        if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_GLL)) {
-                            enableNmeaGLL(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GLL, false));
-                        }
-                        if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_VTG)) {
-                            enableNmeaVTG(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_VTG, false));
-                        }
-                        if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_GSA)) {
-                            enableNmeaGSA(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GSA, false));
-                        }
-                        if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_GSV)) {
-                            enableNmeaGSV(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GSV, false));
-                        }
-                        if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_ZDA)) {
-                            enableNmeaZDA(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_ZDA, false));
-                        }
-                        if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_STATIC_NAVIGATION)) {
-                            enableStaticNavigation(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_STATIC_NAVIGATION, false));
-                        } else if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_NMEA)) {
-                            enableNMEA(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_NMEA, true));
-                        }
-                        if (extra.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_SBAS)) {
-                            enableSBAS(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_SBAS, true));
-                        }
-                        debugLog("initialized SiRF config: " + extra);
-                    }
+                    applySirfConfig(extra);
                 }
             });
         }
     }
 
     public void enableSirfConfig(final SharedPreferences extra) {
-        debugLog("spooling SiRF config: " + extra);
-        if (isEnabled()) {
-            notificationPool.execute(new Runnable() {
-                @Override
-                public void run() {
-                    while ((enabled) && ((!connected) || (connectedGps == null) || (!connectedGps.isReady()))) {
-                        debugLog("writing thread is not ready");
-                        SystemClock.sleep(500);
-                    }
-                    if (isEnabled() && (connected) && (connectedGps != null) && (connectedGps.isReady())) {
-                        debugLog("init SiRF config: " + extra);
-                        if (extra.contains(USBGpsProviderService.PREF_SIRF_ENABLE_GLL)) {
-                            enableNmeaGLL(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GLL, false));
-                        }
-                        if (extra.contains(USBGpsProviderService.PREF_SIRF_ENABLE_VTG)) {
-                            enableNmeaVTG(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_VTG, false));
-                        }
-                        if (extra.contains(USBGpsProviderService.PREF_SIRF_ENABLE_GSA)) {
-                            enableNmeaGSA(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GSA, false));
-                        }
-                        if (extra.contains(USBGpsProviderService.PREF_SIRF_ENABLE_GSV)) {
-                            enableNmeaGSV(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GSV, false));
-                        }
-                        if (extra.contains(USBGpsProviderService.PREF_SIRF_ENABLE_ZDA)) {
-                            enableNmeaZDA(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_ZDA, false));
-                        }
-                        if (extra.contains(USBGpsProviderService.PREF_SIRF_ENABLE_STATIC_NAVIGATION)) {
-                            enableStaticNavigation(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_STATIC_NAVIGATION, false));
-                        } else if (extra.contains(USBGpsProviderService.PREF_SIRF_ENABLE_NMEA)) {
-                            enableNMEA(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_NMEA, true));
-                        }
-                        if (extra.contains(USBGpsProviderService.PREF_SIRF_ENABLE_SBAS)) {
-                            enableSBAS(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_SBAS, true));
-                        }
-                        sendNmeaCommand(callingService.getString(R.string.sirf_nmea_gga_on));
-                        sendNmeaCommand(callingService.getString(R.string.sirf_nmea_rmc_on));
-                        if (extra.contains(USBGpsProviderService.PREF_SIRF_ENABLE_GGA)) {
-                            enableNmeaGGA(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GGA, true));
-                        }
-                        if (extra.contains(USBGpsProviderService.PREF_SIRF_ENABLE_RMC)) {
-                            enableNmeaRMC(extra.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_RMC, true));
-                        }
-                    }
-                }
-            });
+        Bundle config = new Bundle();
+        for (String key : SIRF_CONFIG_KEYS) {
+            if (extra.contains(key)) {
+                config.putBoolean(key, extra.getBoolean(key, false));
+            }
+        }
+        // GGA and RMC are always turned on, unless told otherwise
+        if (!config.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_GGA)) {
+            config.putBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_GGA, true);
+        }
+        if (!config.containsKey(USBGpsProviderService.PREF_SIRF_ENABLE_RMC)) {
+            config.putBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_RMC, true);
         }
+        enableSirfConfig(config);
     }
 
-    private void enableStaticNavigation(boolean enable) {
+    private void enableStaticNavigation(boolean enable) throws InterruptedException {
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(callingService);
         boolean isInNmeaMode = sharedPreferences.getBoolean(USBGpsProviderService.PREF_SIRF_ENABLE_NMEA, true);
         if (isInNmeaMode) {
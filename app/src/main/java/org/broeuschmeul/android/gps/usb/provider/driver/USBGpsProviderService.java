@@ -60,6 +60,7 @@ import org.broeuschmeul.android.gps.usb.provider.BuildConfig;
 import org.broeuschmeul.android.gps.usb.provider.R;
 import org.broeuschmeul.android.gps.usb.provider.ui.GpsInfoActivity;
 import org.broeuschmeul.android.gps.usb.provider.ui.USBGpsSettingsFragment;
+import org.broeuschmeul.android.gps.usb.provider.util.SentenceRing;
 
 /**
  * A Service used to replace Android internal GPS with a USB GPS and/or write GPS NMEA data in a File.
@@ -96,6 +97,7 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
     public static final String PREF_GPS_DEVICE_VENDOR_ID = "usbDeviceVendorId";
     public static final String PREF_GPS_DEVICE_PRODUCT_ID = "usbDeviceProductId";
     public static final String PREF_GPS_DEVICE_SPEED = "gpsDeviceSpeed";
+    public static final String PREF_UPGRADE_LINK_SPEED = "upgradeLinkSpeed";
     public static final String PREF_TOAST_LOGGING = "showToasts";
     public static final String PREF_SET_TIME = "setTime";
     public static final String PREF_ABOUT = "about";
@@ -332,7 +334,8 @@ public class USBGpsProviderService extends Service implements USBGpsManager.Nmea
             if (gpsManager != null) {
                 if (hasPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)) {
                     beginTrack();
-                    gpsManager.addNmeaListener(this);
+                    // the track must not miss any sentence, even on a slow storage
+                    gpsManager.addNmeaListener(this, SentenceRing.POLICY_BLOCK);
                     if (!sharedPreferences.getBoolean(PREF_TRACK_RECORDING, false)) {
                         edit.putBoolean(PREF_TRACK_RECORDING, true);
                         edit.apply();
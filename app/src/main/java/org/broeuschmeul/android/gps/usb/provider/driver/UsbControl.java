@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+/**
+ * The control endpoint of a USB device, as used by the {@link UsbSerialDriver}s.
+ * <p>
+ * {@link Connection} gives access to a real device, a fake recording the transfers
+ * can be used to check what a driver sends.
+ */
+public interface UsbControl {
+
+    /**
+     * @return the length of the data transferred, a negative value on failure
+     * @see UsbDeviceConnection#controlTransfer(int, int, int, int, byte[], int, int)
+     */
+    int controlTransfer(int requestType, int request, int value, int index,
+                        byte[] buffer, int length, int timeout);
+
+    /**
+     * @return the raw USB descriptors of the device, null if not available
+     */
+    byte[] getRawDescriptors();
+
+    /**
+     * The control endpoint of an opened USB device.
+     */
+    class Connection implements UsbControl {
+        private final UsbDeviceConnection connection;
+
+        public Connection(UsbDeviceConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public int controlTransfer(int requestType, int request, int value, int index,
+                                   byte[] buffer, int length, int timeout) {
+            return connection.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+        }
+
+        @Override
+        public byte[] getRawDescriptors() {
+            return connection.getRawDescriptors();
+        }
+    }
+}
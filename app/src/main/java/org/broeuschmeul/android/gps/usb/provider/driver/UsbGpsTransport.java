@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+import org.broeuschmeul.android.gps.usb.provider.BuildConfig;
+import org.broeuschmeul.android.gps.usb.provider.util.ByteRingBuffer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+/**
+ * The link with a USB GPS: a bulk IN and a bulk OUT endpoint of one of its interfaces.
+ * <p>
+ * The IN endpoint is read by an {@link AsyncBulkReader} on its own thread, into a ring buffer.
+ * The serial line is controlled through the {@link UsbSerialDriver} of the device's bridge chip.
+ */
+public class UsbGpsTransport implements GpsTransport {
+
+    /**
+     * Tag used for log messages
+     */
+    private static final String LOG_TAG = UsbGpsTransport.class.getSimpleName();
+
+    /**
+     * Size of the buffer between the USB transfers and the NMEA parsing.
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int TIMEOUT = 100;
+
+    private final UsbManager usbManager;
+    private final UsbDevice device;
+    private UsbInterface intf;
+    private UsbEndpoint endpointIn;
+    private UsbEndpoint endpointOut;
+    private int interfaceIndex = -1;
+    private int inEndpointIndex = -1;
+    private int outEndpointIndex = -1;
+    private UsbDeviceConnection connection;
+    private UsbSerialDriver driver;
+
+    private final ByteRingBuffer readBuffer = new ByteRingBuffer(READ_BUFFER_SIZE);
+    private final TransportStats stats = new TransportStats();
+    private AsyncBulkReader bulkReader;
+    private volatile boolean closed = false;
+
+    public UsbGpsTransport(UsbManager usbManager, UsbDevice device) {
+        this.usbManager = usbManager;
+        this.device = device;
+    }
+
+    public UsbDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * Gives the interface and endpoints to use, as found during a previous connection,
+     * to be called before {@link #open()}. They are searched again if they don't fit.
+     */
+    public void setEndpoints(int interfaceIndex, int inEndpointIndex, int outEndpointIndex) {
+        this.interfaceIndex = interfaceIndex;
+        this.inEndpointIndex = inEndpointIndex;
+        this.outEndpointIndex = outEndpointIndex;
+    }
+
+    /**
+     * @return the index of the interface used, -1 if not open
+     */
+    public int getInterfaceIndex() {
+        return interfaceIndex;
+    }
+
+    public int getInEndpointIndex() {
+        return inEndpointIndex;
+    }
+
+    public int getOutEndpointIndex() {
+        return outEndpointIndex;
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (!useGivenEndpoints()) {
+            findEndpoints();
+        }
+
+        // We couldn't find an endpoint
+        if (endpointIn == null || endpointOut == null) {
+            throw new IOException("No bulk endpoints found for the device");
+        }
+
+        connection = usbManager.openDevice(device);
+        if (connection == null) {
+            throw new IOException("Unable to open the device");
+        }
+
+        debugLog("claiming interface");
+        boolean resclaim = connection.claimInterface(intf, true);
+        debugLog("data claim " + resclaim);
+
+        driver = UsbSerialDriver.forDevice(device.getVendorId(), device.getProductId(),
+                new UsbControl.Connection(connection), interfaceIndex);
+        try {
+            driver.open();
+            if (!(driver instanceof CdcAcmSerialDriver || driver instanceof Pl2303SerialDriver)) {
+                // the bridges without modem lines of their own only send when DTR and RTS are set
+                driver.setControlLines(true, true);
+            }
+            driver.purge();
+        } catch (IOException e) {
+            // most GPS still work with the bridge as it was left
+            Log.e(LOG_TAG, "error while initialising the " + driver.getName() + " bridge", e);
+        }
+        debugLog("using the " + driver.getName() + " driver");
+
+        startBulkReader();
+    }
+
+    private boolean useGivenEndpoints() {
+        if (interfaceIndex < 0 || interfaceIndex >= device.getInterfaceCount()) {
+            return false;
+        }
+        UsbInterface deviceInterface = device.getInterface(interfaceIndex);
+        int endpointCount = deviceInterface.getEndpointCount();
+        if (inEndpointIndex < 0 || inEndpointIndex >= endpointCount ||
+                outEndpointIndex < 0 || outEndpointIndex >= endpointCount) {
+            return false;
+        }
+
+        UsbEndpoint in = deviceInterface.getEndpoint(inEndpointIndex);
+        UsbEndpoint out = deviceInterface.getEndpoint(outEndpointIndex);
+        if (in.getDirection() != UsbConstants.USB_DIR_IN || in.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK ||
+                out.getDirection() != UsbConstants.USB_DIR_OUT || out.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) {
+            return false;
+        }
+
+        debugLog("using known interface " + interfaceIndex + " and endpoints " + inEndpointIndex + "/" + outEndpointIndex);
+        intf = deviceInterface;
+        endpointIn = in;
+        endpointOut = out;
+        return true;
+    }
+
+    private void findEndpoints() {
+        interfaceIndex = -1;
+        inEndpointIndex = -1;
+        outEndpointIndex = -1;
+
+        debugLog("Searching interfaces, found " + String.valueOf(device.getInterfaceCount()));
+
+        for (int j = 0; j < device.getInterfaceCount(); j++) {
+            debugLog("Checking interface number " + String.valueOf(j));
+
+            UsbInterface deviceInterface = device.getInterface(j);
+
+            debugLog("Found interface of class " + String.valueOf(deviceInterface.getInterfaceClass()));
+
+            // Finds an endpoint for the device by looking through all the device endpoints
+            // and finding which one supports,
+
+            debugLog("Searching endpoints of interface, found " + String.valueOf(deviceInterface.getEndpointCount()));
+
+            UsbEndpoint foundInEndpoint = null;
+            UsbEndpoint foundOutEndpoint = null;
+            int foundIn = -1;
+            int foundOut = -1;
+
+            for (int i = deviceInterface.getEndpointCount() - 1; i > -1; i--) {
+                debugLog("Checking endpoint number " + String.valueOf(i));
+
+                UsbEndpoint interfaceEndpoint = deviceInterface.getEndpoint(i);
+
+                if (interfaceEndpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+                    debugLog("Found IN Endpoint of type: " + String.valueOf(interfaceEndpoint.getType()));
+
+                    if (interfaceEndpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                        debugLog("Is correct in endpoint");
+                        foundInEndpoint = interfaceEndpoint;
+                        foundIn = i;
+                    }
+                }
+                if (interfaceEndpoint.getDirection() == UsbConstants.USB_DIR_OUT) {
+                    debugLog("Found OUT Endpoint of type: " + String.valueOf(interfaceEndpoint.getType()));
+
+                    if (interfaceEndpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                        debugLog("Is correct out endpoint");
+                        foundOutEndpoint = interfaceEndpoint;
+                        foundOut = i;
+                    }
+                }
+
+                if ((foundInEndpoint != null) && (foundOutEndpoint != null)) {
+                    endpointIn = foundInEndpoint;
+                    endpointOut = foundOutEndpoint;
+                    inEndpointIndex = foundIn;
+                    outEndpointIndex = foundOut;
+                    break;
+                }
+            }
+
+            if ((endpointIn != null) && (endpointOut != null)) {
+                intf = deviceInterface;
+                interfaceIndex = j;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads the USB GPS into the ring buffer, on its own thread, with several USB requests
+     * queued so that a burst of data never has to wait for the parsing.
+     */
+    private void startBulkReader() {
+        bulkReader = new AsyncBulkReader(new UsbRequestEndpoint(connection, endpointIn), readBuffer,
+                driver.getReadHeaderLength());
+        new Thread("USB GPS reader") {
+            @Override
+            public void run() {
+                bulkReader.run();
+                debugLog("USB reader thread stopped, " + bulkReader.getBytesRead() + " bytes in " +
+                        bulkReader.getTransfersCompleted() + " transfers, read buffer high watermark: " +
+                        readBuffer.getHighWatermark() + " bytes, overflows: " + readBuffer.getOverflowCount());
+            }
+        }.start();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, long timeout) throws IOException {
+        try {
+            int nb = readBuffer.read(buffer, offset, length, timeout);
+            if (nb > 0) {
+                stats.onRead(nb, System.nanoTime() - readBuffer.getDataTime());
+            } else if (nb == 0) {
+                stats.onReadTimeout();
+            }
+            return nb;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("data read interrupted");
+        }
+    }
+
+    /**
+     * @return the number of bytes received and not read yet
+     */
+    public int available() {
+        return readBuffer.available();
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (closed || connection == null) {
+            throw new IOException("error while trying to write data: USB GPS closed");
+        }
+        byte[] data = (offset == 0) ? buffer : Arrays.copyOfRange(buffer, offset, offset + length);
+        int n = connection.bulkTransfer(endpointOut, data, length, TIMEOUT);
+        if (n != length) {
+            throw new IOException("error while trying to write data: " + n +
+                    " bytes written when expecting " + length);
+        }
+        stats.onWrite(length);
+    }
+
+    /**
+     * Sets the baud rate of the serial line, with 8 data bits, no parity and 1 stop bit (8N1).
+     *
+     * @return true if the device accepted the request
+     */
+    public boolean setBaudRate(int baudRate) {
+        if (closed || driver == null) {
+            return false;
+        }
+        try {
+            driver.setBaudRate(baudRate);
+            debugLog("baud rate set to " + baudRate);
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "error while setting the baud rate to " + baudRate, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the baud rate of the serial line, -1 if the device doesn't tell
+     */
+    public int getBaudRate() {
+        if (closed || driver == null) {
+            return -1;
+        }
+        try {
+            int baudRate = driver.getBaudRate();
+            debugLog("baud rate of the device: " + baudRate);
+            return baudRate;
+        } catch (IOException e) {
+            debugLog("unable to read the baud rate: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * @return the driver of the device's serial bridge, null if not open
+     */
+    public UsbSerialDriver getDriver() {
+        return driver;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (bulkReader != null) {
+            bulkReader.close();
+        }
+        readBuffer.close();
+
+        if (connection != null) {
+            debugLog("releasing usb interface for connection: " + connection);
+
+            boolean released = false;
+            if (intf != null) {
+                released = connection.releaseInterface(intf);
+            }
+
+            if (released) {
+                debugLog("usb interface released for connection: " + connection);
+            } else if (intf != null) {
+                debugLog("unable to release usb interface for connection: " + connection);
+            } else {
+                debugLog("no interface to release");
+            }
+
+            debugLog("closing usb connection: " + connection);
+            connection.close();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public TransportStats getStats() {
+        stats.setBufferUsage(readBuffer.getHighWatermark(), readBuffer.getOverflowCount());
+        return stats;
+    }
+
+    private void debugLog(String message) {
+        if (BuildConfig.DEBUG) Log.d(LOG_TAG, message);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link BulkInEndpoint} of a USB device, read with asynchronous {@link UsbRequest}s.
+ */
+public class UsbRequestEndpoint implements BulkInEndpoint {
+
+    private final UsbDeviceConnection connection;
+    private final UsbEndpoint endpoint;
+    private UsbRequest[] requests;
+    private volatile boolean closed = false;
+
+    public UsbRequestEndpoint(UsbDeviceConnection connection, UsbEndpoint endpoint) {
+        this.connection = connection;
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return endpoint.getMaxPacketSize();
+    }
+
+    @Override
+    public synchronized void open(int slots) throws IOException {
+        requests = new UsbRequest[slots];
+        for (int slot = 0; slot < slots; slot++) {
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(connection, endpoint)) {
+                throw new IOException("Unable to initialize USB request");
+            }
+            request.setClientData(slot);
+            requests[slot] = request;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void queue(int slot, ByteBuffer buffer) throws IOException {
+        if (closed) {
+            throw new IOException("USB endpoint closed");
+        }
+        // queue(ByteBuffer) is only available from API 26
+        if (!requests[slot].queue(buffer, buffer.remaining())) {
+            throw new IOException("Unable to queue USB request");
+        }
+    }
+
+    @Override
+    public int waitCompleted() throws IOException {
+        UsbRequest request = connection.requestWait();
+        if (request == null) {
+            if (closed) {
+                return -1;
+            }
+            throw new IOException("USB request failed");
+        }
+        Object slot = request.getClientData();
+        return slot instanceof Integer ? (Integer) slot : -1;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (requests != null) {
+            for (UsbRequest request : requests) {
+                if (request != null) {
+                    request.cancel();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        if (requests != null) {
+            for (UsbRequest request : requests) {
+                if (request != null) {
+                    request.close();
+                }
+            }
+            requests = null;
+        }
+    }
+
+}
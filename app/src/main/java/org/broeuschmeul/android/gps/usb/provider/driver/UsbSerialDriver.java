@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.io.IOException;
+
+/**
+ * Controls the serial line of a USB GPS: most of them are a GPS chip behind a USB to serial
+ * bridge, each bridge having its own requests to set the speed, the control lines, the flow
+ * control or to purge its buffers. GPS chips with native USB are CDC ACM devices.
+ * <p>
+ * The driver is chosen with {@link #forDevice(int, int, UsbControl, int)}.
+ * The line is always 8 data bits, no parity and 1 stop bit (8N1).
+ */
+public abstract class UsbSerialDriver {
+
+    public static final int VENDOR_FTDI = 0x0403;
+    public static final int VENDOR_PROLIFIC = 0x067B;
+    public static final int VENDOR_SILABS = 0x10C4;
+    public static final int VENDOR_QINHENG = 0x1A86;
+
+    // products of each vendor driven by its driver, the others are taken as CDC ACM
+    private static final int[] FTDI_PRODUCTS = {
+            0x6001, // FT232AM, FT232BM, FT232R
+            0x6010, // FT2232C, FT2232H
+            0x6011, // FT4232H
+            0x6014, // FT232H
+            0x6015  // FT-X
+    };
+    private static final int[] PROLIFIC_PRODUCTS = {
+            0x2303  // PL2303, PL2303HX
+    };
+    private static final int[] SILABS_PRODUCTS = {
+            0xEA60, // CP2102, CP2104, CP2109
+            0xEA70, // CP2105
+            0xEA71  // CP2108
+    };
+    private static final int[] QINHENG_PRODUCTS = {
+            0x7523, // CH340
+            0x5523  // CH341
+    };
+
+    protected static final int TIMEOUT = 100;
+
+    protected final UsbControl control;
+    protected final int interfaceIndex;
+
+    protected UsbSerialDriver(UsbControl control, int interfaceIndex) {
+        this.control = control;
+        this.interfaceIndex = interfaceIndex;
+    }
+
+    /**
+     * Chooses the driver of a device from its vendor and product ids, CDC ACM for the unknown ones:
+     * some vendors also make CDC class devices.
+     *
+     * @param control        the control endpoint of the device
+     * @param interfaceIndex the index of the interface used to read the GPS
+     */
+    public static UsbSerialDriver forDevice(int vendorId, int productId, UsbControl control, int interfaceIndex) {
+        if (vendorId == VENDOR_FTDI && contains(FTDI_PRODUCTS, productId)) {
+            return new FtdiSerialDriver(control, interfaceIndex);
+        } else if (vendorId == VENDOR_PROLIFIC && contains(PROLIFIC_PRODUCTS, productId)) {
+            return new Pl2303SerialDriver(control, interfaceIndex);
+        } else if (vendorId == VENDOR_SILABS && contains(SILABS_PRODUCTS, productId)) {
+            return new Cp210xSerialDriver(control, interfaceIndex);
+        } else if (vendorId == VENDOR_QINHENG && contains(QINHENG_PRODUCTS, productId)) {
+            return new Ch34xSerialDriver(control, interfaceIndex);
+        }
+        return new CdcAcmSerialDriver(control, interfaceIndex);
+    }
+
+    private static boolean contains(int[] productIds, int productId) {
+        for (int id : productIds) {
+            if (id == productId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the name of the USB to serial bridge
+     */
+    public abstract String getName();
+
+    /**
+     * Initialises the bridge, once the interface is claimed.
+     */
+    public abstract void open() throws IOException;
+
+    public abstract void setBaudRate(int baudRate) throws IOException;
+
+    /**
+     * @return the speed set in the bridge, -1 if it can't tell
+     */
+    public int getBaudRate() throws IOException {
+        return -1;
+    }
+
+    public abstract void setControlLines(boolean dtr, boolean rts) throws IOException;
+
+    /**
+     * @param rtsCts true for RTS/CTS hardware flow control, false for none
+     */
+    public abstract void setFlowControl(boolean rtsCts) throws IOException;
+
+    /**
+     * Drops the data waiting in the buffers of the bridge, e.g. after a speed change.
+     */
+    public void purge() throws IOException {
+    }
+
+    /**
+     * @return the number of status bytes the bridge puts at the start of each packet it sends
+     */
+    public int getReadHeaderLength() {
+        return 0;
+    }
+
+    protected void controlOut(int requestType, int request, int value, int index, byte[] data)
+            throws IOException {
+        int length = (data != null) ? data.length : 0;
+        int res = control.controlTransfer(requestType, request, value, index, data, length, TIMEOUT);
+        if (res < 0) {
+            throw new IOException(getName() + " control request " + request + " failed: " + res);
+        }
+    }
+
+    protected byte[] controlIn(int requestType, int request, int value, int index, int length)
+            throws IOException {
+        byte[] data = new byte[length];
+        int res = control.controlTransfer(requestType, request, value, index, data, length, TIMEOUT);
+        if (res < 0) {
+            throw new IOException(getName() + " control request " + request + " failed: " + res);
+        }
+        return data;
+    }
+}
@@ -5,6 +5,7 @@ import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.location.Location;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v7.widget.SwitchCompat;
 import android.text.TextUtils;
@@ -50,6 +51,25 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
     private TextView timeText;
     private ScrollView logTextScroller;
 
+    // rebuilding the whole log is too costly to follow the sentences frame by frame
+    private static final long LOG_UPDATE_INTERVAL = 250;
+
+    // SystemClock.uptimeMillis() of the last log update
+    private long lastLogUpdate = 0;
+    private boolean logUpdatePending = false;
+
+    private final Runnable logUpdater = new Runnable() {
+        @Override
+        public void run() {
+            logUpdatePending = false;
+            updateLog();
+        }
+    };
+
+    private final DecimalFormat coordinateFormat = new DecimalFormat("#.#####");
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+    private final Date date = new Date();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         if (isDoublePanel()) {
@@ -107,6 +127,11 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
     }
 
     private void updateData() {
+        updateInfo();
+        updateLog();
+    }
+
+    private void updateInfo() {
         boolean running =
                 sharedPreferences.getBoolean(USBGpsProviderService.PREF_START_GPS_PROVIDER, false);
 
@@ -134,16 +159,15 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
             if (location.getExtras() != null) {
                 numSatellitesValue = String.valueOf(location.getExtras().getInt(NmeaParser.SATELLITE_KEY));
             }
-            DecimalFormat df = new DecimalFormat("#.#####");
-            lat = df.format(location.getLatitude());
-            lon = df.format(location.getLongitude());
+            lat = coordinateFormat.format(location.getLatitude());
+            lon = coordinateFormat.format(location.getLongitude());
             elevation = String.valueOf(location.getAltitude());
 
-            gpsTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US)
-                    .format(new Date(location.getTime()));
+            date.setTime(location.getTime());
+            gpsTime = timeFormat.format(date);
 
-            systemTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US)
-                    .format(new Date(location.getExtras().getLong(NmeaParser.SYSTEM_TIME_FIX)));
+            date.setTime(location.getExtras().getLong(NmeaParser.SYSTEM_TIME_FIX));
+            systemTime = timeFormat.format(date);
         }
 
         numSatellites.setText(
@@ -153,10 +177,10 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
         locationText.setText(getString(R.string.location_placeholder, lat, lon));
         elevationText.setText(getString(R.string.elevation_placeholder, elevation));
         timeText.setText(getString(R.string.gps_time_placeholder, gpsTime, systemTime));
-        updateLog();
     }
 
     public void updateLog() {
+        lastLogUpdate = SystemClock.uptimeMillis();
 
         boolean atBottom = (
                 logText.getBottom() - (
@@ -187,6 +211,8 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
 
     @Override
     public void onPause() {
+        logText.removeCallbacks(logUpdater);
+        logUpdatePending = false;
         sharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
         ((USBGpsApplication) getApplication()).unregisterServiceDataListener(this);
         super.onPause();
@@ -211,20 +237,33 @@ public class GpsInfoActivity extends USBGpsBaseActivity implements
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Called at most once per frame, however many sentences were received meanwhile.
+     * The log itself is only rebuilt every {@link #LOG_UPDATE_INTERVAL}.
+     */
     @Override
     public void onNewSentence(String sentence) {
-        updateLog();
+        if (logUpdatePending) {
+            return;
+        }
+        long wait = lastLogUpdate + LOG_UPDATE_INTERVAL - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+            updateLog();
+        } else {
+            logUpdatePending = true;
+            logText.postDelayed(logUpdater, wait);
+        }
     }
 
     @Override
     public void onLocationNotified(Location location) {
-        updateData();
+        updateInfo();
     }
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         if (key.equals(USBGpsProviderService.PREF_START_GPS_PROVIDER)) {
-            updateData();
+            updateInfo();
         }
 
         super.onSharedPreferenceChanged(sharedPreferences, key);
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.util;
+
+/**
+ * A single producer / single consumer ring buffer of bytes.
+ * <p>
+ * The producer (the USB reading thread) and the consumer (the NMEA reading loop) each own
+ * one of the positions, so copying data in and out doesn't take any lock. A lock is only used
+ * to sleep when the buffer is empty (consumer) or full (producer): nothing is ever overwritten,
+ * the producer waits for the consumer instead, and this is counted as an overflow.
+ * <p>
+ * The capacity is rounded up to a power of two so that positions are wrapped with a mask.
+ */
+public class ByteRingBuffer {
+
+    private final byte[] buffer;
+    private final int mask;
+
+    // total number of bytes written and read, only incremented by their own thread
+    private volatile long writePosition = 0;
+    private volatile long readPosition = 0;
+
+    private final Object lock = new Object();
+    private volatile boolean consumerWaiting = false;
+    private volatile boolean producerWaiting = false;
+    private volatile boolean closed = false;
+
+    private volatile int highWatermark = 0;
+    private volatile long overflowCount = 0;
+    // System.nanoTime() of the write that found the buffer empty
+    private volatile long dataTime = 0;
+
+    /**
+     * @param capacity the minimum capacity in bytes, rounded up to a power of two
+     */
+    public ByteRingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid ring buffer capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return the number of bytes that can be read
+     */
+    public int available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * @return the highest number of bytes that were waiting in the buffer
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * @return the number of times the buffer was full and the producer had to wait for the consumer
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Consumer side: tells how long the data has been waiting, e.g. to measure the latency
+     * between the reception of some data and the wake up of the consumer.
+     *
+     * @return the {@link System#nanoTime()} at which the buffer last went from empty to not empty
+     */
+    public long getDataTime() {
+        return dataTime;
+    }
+
+    /**
+     * Producer side: copies all the given bytes into the buffer,
+     * waiting for the consumer to make room if needed.
+     *
+     * @return false if the buffer was closed before all the bytes could be written
+     */
+    public boolean write(byte[] data, int offset, int length) throws InterruptedException {
+        boolean overflow = false;
+        while (length > 0) {
+            if (closed) {
+                return false;
+            }
+
+            long write = writePosition;
+            int used = (int) (write - readPosition);
+            int free = buffer.length - used;
+            if (free == 0) {
+                if (!overflow) {
+                    overflow = true;
+                    overflowCount++;
+                }
+                awaitSpace();
+                continue;
+            }
+
+            if (used == 0) {
+                dataTime = System.nanoTime();
+            }
+
+            int count = Math.min(length, free);
+            int index = (int) (write & mask);
+            int first = Math.min(count, buffer.length - index);
+            System.arraycopy(data, offset, buffer, index, first);
+            if (first < count) {
+                System.arraycopy(data, offset + first, buffer, 0, count - first);
+            }
+            writePosition = write + count;
+            offset += count;
+            length -= count;
+
+            used = (int) (write + count - readPosition);
+            if (used > highWatermark) {
+                highWatermark = used;
+            }
+            if (consumerWaiting) {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Consumer side: copies the available bytes, up to the given length, without waiting.
+     *
+     * @return the number of bytes read, 0 if the buffer is empty
+     */
+    public int read(byte[] data, int offset, int length) {
+        long read = readPosition;
+        int count = Math.min(length, (int) (writePosition - read));
+        if (count <= 0) {
+            return 0;
+        }
+
+        int index = (int) (read & mask);
+        int first = Math.min(count, buffer.length - index);
+        System.arraycopy(buffer, index, data, offset, first);
+        if (first < count) {
+            System.arraycopy(buffer, 0, data, offset + first, count - first);
+        }
+        readPosition = read + count;
+
+        if (producerWaiting) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Consumer side: copies the available bytes, up to the given length,
+     * waiting at most the given time for some data.
+     *
+     * @return the number of bytes read, 0 on timeout, -1 if the buffer is closed and empty
+     */
+    public int read(byte[] data, int offset, int length, long timeout) throws InterruptedException {
+        if (available() == 0 && !awaitData(timeout)) {
+            return closed && available() == 0 ? -1 : 0;
+        }
+        return read(data, offset, length);
+    }
+
+    /**
+     * Consumer side: waits for some data.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @return true if some data is available
+     */
+    public boolean awaitData(long timeout) throws InterruptedException {
+        if (available() > 0) {
+            return true;
+        }
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        synchronized (lock) {
+            consumerWaiting = true;
+            try {
+                long remaining = timeout;
+                while (available() == 0 && !closed && remaining > 0) {
+                    lock.wait(remaining);
+                    remaining = (deadline - System.nanoTime()) / 1000000L;
+                }
+            } finally {
+                consumerWaiting = false;
+            }
+        }
+        return available() > 0;
+    }
+
+    private void awaitSpace() throws InterruptedException {
+        synchronized (lock) {
+            producerWaiting = true;
+            try {
+                while (available() == buffer.length && !closed) {
+                    lock.wait();
+                }
+            } finally {
+                producerWaiting = false;
+            }
+        }
+    }
+
+    /**
+     * Wakes up both sides: the producer can't write anymore,
+     * the consumer can still read what is left.
+     */
+    public void close() {
+        closed = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A single producer / multiple consumers ring of sentences, each consumer on its own thread.
+ * <p>
+ * The slots are allocated once: the producer (the NMEA reading loop) copies each sentence into
+ * the next slot and publishes it by moving its position forward, without any allocation.
+ * Each slot has its own lock, held to write it and to read it, so that a consumer lagging behind
+ * never copies a sentence being overwritten. The producer takes the lock of every slot it writes,
+ * but it is only contended by a consumer reading that very slot, i.e. a whole ring behind and
+ * about to lose sentences, and it is only held for the copy of a sentence.
+ * Each {@link Subscription} has its own position and thread, and handles all the sentences
+ * published since its last pass in one batch, so a slow listener never delays the reading loop
+ * nor the other listeners.
+ * <p>
+ * Each subscription has its policy for when it lags more than the capacity of the ring:
+ * <ul>
+ * <li>{@link #POLICY_DROP_OLDEST}: the sentences overwritten meanwhile are skipped and counted
+ * as dropped, the producer never waits.</li>
+ * <li>{@link #POLICY_CONFLATE_LATEST}: a subscription finding several groups of sentences
+ * (e.g. epochs) waiting only handles the latest one, the older ones are counted as conflated.
+ * A subscription in the middle of a group finishes it first, so that its handler only gets
+ * whole groups, unless sentences were dropped.</li>
+ * <li>{@link #POLICY_BLOCK}: the producer waits for the subscription, up to its block timeout.
+ * After a timeout it doesn't wait again for it until it caught up with half of the ring, so that
+ * a stuck subscription doesn't slow down the producer for good.</li>
+ * <li>{@link #POLICY_FAIL}: the subscription is closed and marked failed instead of missing
+ * a sentence, the producer never waits.</li>
+ * </ul>
+ * <p>
+ * The capacity is rounded up to a power of two so that positions are wrapped with a mask.
+ */
+public class SentenceRing {
+
+    /**
+     * Skips the oldest sentences when the subscription lags too much.
+     */
+    public static final int POLICY_DROP_OLDEST = 0;
+    /**
+     * Skips to the latest group of sentences when the subscription lags.
+     */
+    public static final int POLICY_CONFLATE_LATEST = 1;
+    /**
+     * Makes the producer wait, up to a timeout, when the subscription lags too much.
+     */
+    public static final int POLICY_BLOCK = 2;
+    /**
+     * Fails the subscription when it lags too much.
+     */
+    public static final int POLICY_FAIL = 3;
+
+    /**
+     * Handles the sentences of a subscription, on its thread.
+     */
+    public interface Handler {
+        /**
+         * @param buffer    a copy of the sentence, only valid during the call
+         * @param length    length of the sentence, starting at index 0
+         * @param timestamp time of reception of the sentence
+         */
+        void onSentence(byte[] buffer, int length, long timestamp);
+    }
+
+    private final int slotSize;
+    private final int mask;
+    private final byte[] data;
+    private final int[] lengths;
+    private final long[] timestamps;
+    // System.nanoTime() of the publication, to measure the lag of the subscriptions
+    private final long[] publishTimes;
+    // sentences starting a group, for the conflating subscriptions
+    private final boolean[] groupStarts;
+    // position of the sentence in each slot, to tell an overwritten slot
+    private final long[] sequences;
+    // one lock per slot
+    private final Object[] slotLocks;
+
+    // number of sentences published, only incremented by the producer
+    private volatile long publishPosition = 0;
+
+    private final Object lock = new Object();
+    private volatile int waitingConsumers = 0;
+    private volatile boolean waitingProducer = false;
+    // the subscriptions with POLICY_BLOCK, replaced as a whole when it changes
+    private volatile Subscription[] blockingSubscriptions = new Subscription[0];
+    private volatile boolean closed = false;
+    private final List<Subscription> subscriptions = new ArrayList<>();
+
+    /**
+     * @param capacity the minimum number of sentences kept, rounded up to a power of two
+     * @param slotSize the maximum length of a sentence
+     */
+    public SentenceRing(int capacity, int slotSize) {
+        if (capacity <= 0 || capacity > (1 << 16)) {
+            throw new IllegalArgumentException("Invalid sentence ring capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slotSize = slotSize;
+        mask = size - 1;
+        data = new byte[size * slotSize];
+        lengths = new int[size];
+        timestamps = new long[size];
+        publishTimes = new long[size];
+        groupStarts = new boolean[size];
+        sequences = new long[size];
+        Arrays.fill(sequences, -1);
+        slotLocks = new Object[size];
+        for (int i = 0; i < slotLocks.length; i++) {
+            slotLocks[i] = new Object();
+        }
+    }
+
+    public int capacity() {
+        return lengths.length;
+    }
+
+    /**
+     * @return the number of sentences published so far
+     */
+    public long getPublished() {
+        return publishPosition;
+    }
+
+    /**
+     * Copies a sentence into the ring and wakes up the subscriptions waiting for it.
+     * Only to be called by the producer thread.
+     *
+     * @return false if the sentence is longer than a slot or the ring closed
+     */
+    public boolean publish(byte[] buffer, int start, int end, long timestamp) {
+        return publish(buffer, start, end, timestamp, false);
+    }
+
+    /**
+     * Copies a sentence into the ring and wakes up the subscriptions waiting for it.
+     * Only to be called by the producer thread.
+     *
+     * @param groupStart true if the sentence starts a group, e.g. the first sentence of an epoch
+     * @return false if the sentence is longer than a slot or the ring closed
+     */
+    public boolean publish(byte[] buffer, int start, int end, long timestamp, boolean groupStart) {
+        int length = end - start;
+        if (closed || length > slotSize) {
+            return false;
+        }
+        long position = publishPosition;
+        Subscription[] blocking = blockingSubscriptions;
+        for (Subscription subscription : blocking) {
+            awaitSpace(subscription, position);
+        }
+
+        int slot = (int) (position & mask);
+        synchronized (slotLocks[slot]) {
+            System.arraycopy(buffer, start, data, slot * slotSize, length);
+            lengths[slot] = length;
+            timestamps[slot] = timestamp;
+            groupStarts[slot] = groupStart;
+            publishTimes[slot] = System.nanoTime();
+            sequences[slot] = position;
+        }
+        publishPosition = position + 1;
+
+        if (waitingConsumers > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until a blocking subscription has read the slot about to be overwritten,
+     * or until its block timeout.
+     */
+    private void awaitSpace(Subscription subscription, long position) {
+        // one slot left free, as the slot being read counts as overwritten once the next is published
+        int capacity = lengths.length - 1;
+        long lag = position - subscription.position;
+        if (lag < capacity) {
+            if (subscription.overflowing && lag <= capacity / 2) {
+                subscription.overflowing = false;
+            }
+            return;
+        }
+        if (subscription.overflowing) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + subscription.blockTimeout * 1000000L;
+        synchronized (lock) {
+            waitingProducer = true;
+            try {
+                long remaining = deadline - start;
+                while (!subscription.closed && position - subscription.position >= capacity && remaining > 0) {
+                    lock.wait(remaining / 1000000L, (int) (remaining % 1000000L));
+                    remaining = deadline - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waitingProducer = false;
+            }
+        }
+        subscription.blocks++;
+        subscription.blockedTime += System.nanoTime() - start;
+        if (position - subscription.position >= capacity) {
+            subscription.overflowing = true;
+        }
+    }
+
+    /**
+     * Starts a thread handing the sentences published from now on to the handler,
+     * dropping the oldest ones if it lags too much.
+     *
+     * @param name name of the thread
+     */
+    public Subscription subscribe(Handler handler, String name) {
+        return subscribe(handler, name, POLICY_DROP_OLDEST, 0);
+    }
+
+    /**
+     * Starts a thread handing the sentences published from now on to the handler.
+     *
+     * @param name         name of the thread
+     * @param policy       one of the POLICY constants, what to do when the subscription lags too much
+     * @param blockTimeout for {@link #POLICY_BLOCK}, the longest time in milliseconds the producer
+     *                     waits for the subscription
+     */
+    public Subscription subscribe(Handler handler, String name, int policy, long blockTimeout) {
+        if (policy < POLICY_DROP_OLDEST || policy > POLICY_FAIL) {
+            throw new IllegalArgumentException("Invalid sentence ring policy: " + policy);
+        }
+        Subscription subscription = new Subscription(handler, name, policy, blockTimeout);
+        synchronized (lock) {
+            if (closed) {
+                subscription.closed = true;
+                return subscription;
+            }
+            subscriptions.add(subscription);
+            if (policy == POLICY_BLOCK) {
+                updateBlockingSubscriptions();
+            }
+        }
+        subscription.thread.start();
+        return subscription;
+    }
+
+    /**
+     * Stops all the subscriptions.
+     */
+    public void close() {
+        List<Subscription> all;
+        synchronized (lock) {
+            closed = true;
+            all = new ArrayList<>(subscriptions);
+        }
+        for (Subscription subscription : all) {
+            subscription.close();
+        }
+    }
+
+    private void updateBlockingSubscriptions() {
+        List<Subscription> blocking = new ArrayList<>();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.policy == POLICY_BLOCK) {
+                blocking.add(subscription);
+            }
+        }
+        blockingSubscriptions = blocking.toArray(new Subscription[blocking.size()]);
+    }
+
+    /**
+     * A consumer of the ring, with its own position and thread.
+     */
+    public class Subscription {
+        private final Handler handler;
+        private final int policy;
+        private final long blockTimeout;
+        private final Thread thread;
+        private final byte[] copy = new byte[slotSize];
+
+        private volatile long position;
+        private volatile boolean closed = false;
+        private volatile boolean failed = false;
+        // only used by the producer: gave up waiting for the subscription
+        private boolean overflowing = false;
+
+        private volatile long delivered = 0;
+        private volatile long dropped = 0;
+        private volatile long conflated = 0;
+        private volatile long blocks = 0;
+        private volatile long blockedTime = 0;
+        private volatile long batches = 0;
+        private volatile long maxLag = 0;
+        private volatile long lagSum = 0;
+
+        private Subscription(Handler handler, String name, int policy, long blockTimeout) {
+            this.handler = handler;
+            this.policy = policy;
+            this.blockTimeout = blockTimeout;
+            this.position = publishPosition;
+            thread = new Thread(name) {
+                @Override
+                public void run() {
+                    consume();
+                }
+            };
+            thread.setDaemon(true);
+        }
+
+        private void consume() {
+            try {
+                while (!closed) {
+                    long published = publishPosition;
+                    if (published == position) {
+                        await();
+                        continue;
+                    }
+                    drain(published);
+                }
+            } catch (InterruptedException e) {
+                // closing
+            }
+        }
+
+        private void await() throws InterruptedException {
+            synchronized (lock) {
+                waitingConsumers++;
+                try {
+                    while (!closed && publishPosition == position) {
+                        lock.wait();
+                    }
+                } finally {
+                    waitingConsumers--;
+                }
+            }
+        }
+
+        /**
+         * Handles all the sentences published up to the given position.
+         */
+        private void drain(long published) {
+            long next = position;
+            long end = published;
+            int capacity = lengths.length;
+            boolean skipped = false;
+            if (published - next > capacity) {
+                // overwritten before being read
+                if (policy == POLICY_FAIL) {
+                    fail();
+                    return;
+                }
+                dropped += published - next - capacity;
+                next = published - capacity;
+                skipped = true;
+            }
+            if (policy == POLICY_CONFLATE_LATEST && published - next > 1) {
+                if (skipped || isGroupStart(next)) {
+                    long latest = latestGroupStart(next, published);
+                    conflated += latest - next;
+                    next = latest;
+                } else {
+                    // in the middle of a group: finish it first, the next pass skips from its end
+                    end = nextGroupStart(next, published);
+                }
+            }
+            batches++;
+
+            for (; next < end && !closed; next++) {
+                int slot = (int) (next & mask);
+                int length;
+                long timestamp;
+                long publishTime;
+                boolean overwritten;
+                synchronized (slotLocks[slot]) {
+                    overwritten = sequences[slot] != next;
+                    length = lengths[slot];
+                    timestamp = timestamps[slot];
+                    publishTime = publishTimes[slot];
+                    if (!overwritten) {
+                        System.arraycopy(data, slot * slotSize, copy, 0, length);
+                    }
+                }
+                if (overwritten) {
+                    // overwritten since the position was read
+                    if (policy == POLICY_FAIL) {
+                        fail();
+                        return;
+                    }
+                    dropped++;
+                    continue;
+                }
+
+                long lag = System.nanoTime() - publishTime;
+                lagSum += lag;
+                if (lag > maxLag) {
+                    maxLag = lag;
+                }
+                handler.onSentence(copy, length, timestamp);
+                delivered++;
+                position = next + 1;
+                if (waitingProducer) {
+                    synchronized (lock) {
+                        lock.notifyAll();
+                    }
+                }
+            }
+            position = next;
+        }
+
+        /**
+         * @return the position of the last group start published between the given positions,
+         * from if there is none
+         */
+        private long latestGroupStart(long from, long published) {
+            for (long p = published - 1; p > from; p--) {
+                if (isGroupStart(p)) {
+                    return p;
+                }
+            }
+            return from;
+        }
+
+        /**
+         * @return the position of the first group start published after from, published if
+         * there is none
+         */
+        private long nextGroupStart(long from, long published) {
+            for (long p = from + 1; p < published; p++) {
+                if (isGroupStart(p)) {
+                    return p;
+                }
+            }
+            return published;
+        }
+
+        /**
+         * @return true if the sentence at the given position starts a group, false if it doesn't
+         * or was overwritten since
+         */
+        private boolean isGroupStart(long p) {
+            int slot = (int) (p & mask);
+            synchronized (slotLocks[slot]) {
+                return sequences[slot] == p && groupStarts[slot];
+            }
+        }
+
+        private void fail() {
+            failed = true;
+            close();
+        }
+
+        /**
+         * @return one of the POLICY constants
+         */
+        public int getPolicy() {
+            return policy;
+        }
+
+        /**
+         * @return true if the subscription was closed for lagging too much, with {@link #POLICY_FAIL}
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * @return the number of sentences published and not handled yet
+         */
+        public long getLag() {
+            return Math.min(publishPosition - position, lengths.length);
+        }
+
+        public long getDelivered() {
+            return delivered;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return the number of sentences skipped for a later group, with {@link #POLICY_CONFLATE_LATEST}
+         */
+        public long getConflated() {
+            return conflated;
+        }
+
+        /**
+         * @return the number of times the producer waited for the subscription, with {@link #POLICY_BLOCK}
+         */
+        public long getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * @return the total time the producer waited for the subscription in microseconds
+         */
+        public long getBlockedTime() {
+            return blockedTime / 1000;
+        }
+
+        /**
+         * @return the mean number of sentences handled per batch
+         */
+        public long getMeanBatchSize() {
+            long count = batches;
+            return (count > 0) ? delivered / count : 0;
+        }
+
+        /**
+         * @return the mean time between the publication and the handling of a sentence in microseconds
+         */
+        public long getMeanLatency() {
+            long count = delivered;
+            return (count > 0) ? lagSum / count / 1000 : 0;
+        }
+
+        /**
+         * @return the longest time between the publication and the handling of a sentence in microseconds
+         */
+        public long getMaxLatency() {
+            return maxLag / 1000;
+        }
+
+        /**
+         * Stops the thread of the subscription, the sentences not handled yet are lost.
+         */
+        public void close() {
+            synchronized (lock) {
+                closed = true;
+                subscriptions.remove(this);
+                if (policy == POLICY_BLOCK) {
+                    updateBlockingSubscriptions();
+                }
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return thread.getName() + "[policy=" + policy +
+                    (failed ? " failed" : "") +
+                    " delivered=" + delivered +
+                    " dropped=" + dropped +
+                    " conflated=" + conflated +
+                    " blocks=" + blocks +
+                    " blockedTime=" + getBlockedTime() + "us" +
+                    " lag=" + getLag() +
+                    " meanBatch=" + getMeanBatchSize() +
+                    " meanLatency=" + getMeanLatency() + "us" +
+                    " maxLatency=" + getMaxLatency() + "us]";
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.broeuschmeul.android.gps.usb.provider.util.ByteRingBuffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncBulkReaderTest {
+
+    /**
+     * Completes the queued transfers in their queuing order, each with the next scripted packet.
+     * Once the packets are exhausted the endpoint fails, as a null requestWait() does.
+     */
+    private static class FakeEndpoint implements BulkInEndpoint {
+        private final int maxPacketSize;
+        private final ArrayDeque<byte[]> packets = new ArrayDeque<>();
+        private final ArrayDeque<Integer> queuedSlots = new ArrayDeque<>();
+        private ByteBuffer[] buffers;
+        int[] queueCounts;
+        boolean closed = false;
+        boolean released = false;
+
+        FakeEndpoint(int maxPacketSize, String... packets) {
+            this.maxPacketSize = maxPacketSize;
+            for (String packet : packets) {
+                this.packets.add(bytes(packet));
+            }
+        }
+
+        @Override
+        public int getMaxPacketSize() {
+            return maxPacketSize;
+        }
+
+        @Override
+        public void open(int slots) {
+            buffers = new ByteBuffer[slots];
+            queueCounts = new int[slots];
+        }
+
+        @Override
+        public void queue(int slot, ByteBuffer buffer) throws IOException {
+            if (buffers[slot] != null) {
+                throw new IOException("slot " + slot + " queued twice");
+            }
+            buffers[slot] = buffer;
+            queueCounts[slot]++;
+            queuedSlots.add(slot);
+        }
+
+        @Override
+        public int waitCompleted() throws IOException {
+            if (closed) {
+                return -1;
+            }
+            byte[] packet = packets.poll();
+            if (packet == null) {
+                throw new IOException("USB request failed");
+            }
+            int slot = queuedSlots.poll();
+            ByteBuffer buffer = buffers[slot];
+            buffers[slot] = null;
+            buffer.put(packet);
+            return slot;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void release() {
+            assertTrue("released before being closed", closed);
+            released = true;
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static String content(ByteRingBuffer ring) {
+        byte[] data = new byte[ring.available()];
+        int length = ring.read(data, 0, data.length);
+        return new String(data, 0, length);
+    }
+
+    @Test
+    public void statusBytesAreSkipped() {
+        // FTDI like, 2 status bytes in every packet, even those without data
+        FakeEndpoint endpoint = new FakeEndpoint(16, "\u0001`$GPG", "\u0001`", "\u0001`GA,1");
+        ByteRingBuffer ring = new ByteRingBuffer(1024);
+        AsyncBulkReader reader = new AsyncBulkReader(endpoint, ring, 2, 2);
+        reader.run();
+
+        assertEquals("$GPGGA,1", content(ring));
+        assertEquals(8, reader.getBytesRead());
+        assertEquals(3, reader.getTransfersCompleted());
+    }
+
+    @Test
+    public void bytesKeepTheirOrderAcrossSlots() {
+        FakeEndpoint endpoint = new FakeEndpoint(8, "0123", "4567", "89ab", "cdef", "ghij", "klmn", "opqr");
+        ByteRingBuffer ring = new ByteRingBuffer(1024);
+        new AsyncBulkReader(endpoint, ring, 0, 3).run();
+
+        assertEquals("0123456789abcdefghijklmnopqr", content(ring));
+    }
+
+    @Test
+    public void eachSlotIsQueuedAgain() {
+        FakeEndpoint endpoint = new FakeEndpoint(8, "a", "b", "c", "d", "e", "f", "g", "h", "i");
+        new AsyncBulkReader(endpoint, new ByteRingBuffer(1024), 0, 3).run();
+
+        // queued once at the start, then again after each of its 3 completions
+        for (int count : endpoint.queueCounts) {
+            assertEquals(4, count);
+        }
+    }
+
+    @Test
+    public void failedWaitClosesTheRing() {
+        FakeEndpoint endpoint = new FakeEndpoint(8, "$GP");
+        ByteRingBuffer ring = new ByteRingBuffer(1024);
+        new AsyncBulkReader(endpoint, ring, 0, 2).run();
+
+        assertTrue(ring.isClosed());
+        // the data read before can still be read
+        assertEquals("$GP", content(ring));
+        assertTrue(endpoint.closed);
+        assertTrue(endpoint.released);
+    }
+
+    @Test
+    public void closedReaderReleasesTheTransfers() {
+        FakeEndpoint endpoint = new FakeEndpoint(8, "$GP");
+        ByteRingBuffer ring = new ByteRingBuffer(1024);
+        AsyncBulkReader reader = new AsyncBulkReader(endpoint, ring, 0, 2);
+        reader.close();
+        reader.run();
+
+        assertTrue(endpoint.closed);
+        assertTrue(endpoint.released);
+        // closing the ring is left to its owner
+        assertFalse(ring.isClosed());
+        assertEquals(0, reader.getBytesRead());
+    }
+}
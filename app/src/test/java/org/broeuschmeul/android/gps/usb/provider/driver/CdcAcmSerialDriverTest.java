@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the requests of the CDC ACM driver against the USB CDC specification.
+ */
+public class CdcAcmSerialDriverTest {
+
+    @Test
+    public void openAndBaudRate() throws IOException {
+        RecordingUsbControl control = new RecordingUsbControl();
+        CdcAcmSerialDriver driver = new CdcAcmSerialDriver(control, 1);
+        driver.open();
+        driver.setBaudRate(9600);
+        driver.setControlLines(true, true);
+
+        assertEquals(Arrays.asList(
+                "21 22 0000 0000",
+                "21 20 0000 0000 80250000000008",
+                "21 22 0003 0000"
+        ), control.takeTransfers());
+    }
+}
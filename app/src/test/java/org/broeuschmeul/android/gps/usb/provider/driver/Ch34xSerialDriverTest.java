@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the requests of the CH34x driver against the ones usb-serial-for-android sends.
+ */
+public class Ch34xSerialDriverTest {
+
+    @Test
+    public void open() throws IOException {
+        RecordingUsbControl control = new RecordingUsbControl();
+        Ch34xSerialDriver driver = new Ch34xSerialDriver(control, 0);
+        driver.open();
+
+        assertEquals(Arrays.asList(
+                "c0 5f 0000 0000",
+                "40 a1 0000 0000",
+                "40 9a 1312 b282",
+                "40 9a 0f2c 000c",
+                "c0 95 2518 0000",
+                "40 9a 2518 00c3",
+                "c0 95 0706 0000",
+                "40 a1 501f d90a",
+                "40 9a 1312 b282",
+                "40 9a 0f2c 000c",
+                "40 a4 ffff 0000"
+        ), control.takeTransfers());
+    }
+
+    @Test
+    public void baudRates() throws IOException {
+        RecordingUsbControl control = new RecordingUsbControl();
+        Ch34xSerialDriver driver = new Ch34xSerialDriver(control, 0);
+        driver.setBaudRate(115200);
+        driver.setBaudRate(921600);
+
+        assertEquals(Arrays.asList(
+                "40 9a 1312 cc83",
+                "40 9a 0f2c 0008",
+                "40 9a 1312 f387",
+                "40 9a 0f2c 0000"
+        ), control.takeTransfers());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandWriterTest {
+
+    /**
+     * Keeps what is written.
+     */
+    private static class RecordingTransport implements GpsTransport {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length, long timeout) {
+            return -1;
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) {
+            written.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public TransportStats getStats() {
+            return new TransportStats();
+        }
+
+        synchronized String getWritten() {
+            return new String(written.toByteArray());
+        }
+    }
+
+    @Test
+    public void commandsWaitForTheReadyLink() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        CommandWriter writer = new CommandWriter(transport);
+        writer.start();
+        try {
+            CommandWriter.Command command = writer.submit("$A\r\n".getBytes());
+            Thread.sleep(50);
+            assertFalse(command.isDone());
+
+            writer.setReady(true);
+            command.get(1, TimeUnit.SECONDS);
+            assertTrue(command.isWritten());
+            assertEquals("$A\r\n", transport.getWritten());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void linkCommandsGoFirstWithoutReadyLink() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        CommandWriter writer = new CommandWriter(transport);
+        writer.start();
+        try {
+            CommandWriter.Command command = writer.submit("$A\r\n".getBytes());
+            CommandWriter.Command speed = writer.submitLinkCommand("$SPEED\r\n".getBytes());
+            speed.get(1, TimeUnit.SECONDS);
+            assertTrue(speed.isWritten());
+            assertFalse(command.isDone());
+            assertEquals("$SPEED\r\n", transport.getWritten());
+
+            writer.setReady(true);
+            command.get(1, TimeUnit.SECONDS);
+            assertEquals("$SPEED\r\n$A\r\n", transport.getWritten());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void closingFailsThePendingCommands() {
+        CommandWriter writer = new CommandWriter(new RecordingTransport());
+        CommandWriter.Command command = writer.submit("$A\r\n".getBytes());
+        CommandWriter.Command speed = writer.submitLinkCommand("$SPEED\r\n".getBytes());
+        writer.close();
+        assertTrue(command.isDone());
+        assertFalse(command.isWritten());
+        assertTrue(speed.isDone());
+        assertFalse(speed.isWritten());
+        assertEquals(0, writer.getPendingCount());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the requests of the CP210x driver against the ones the Linux cp210x driver sends.
+ */
+public class Cp210xSerialDriverTest {
+
+    @Test
+    public void openBaudRateAndPurge() throws IOException {
+        RecordingUsbControl control = new RecordingUsbControl();
+        Cp210xSerialDriver driver = new Cp210xSerialDriver(control, 0);
+        driver.open();
+        driver.setBaudRate(9600);
+        driver.purge();
+        driver.setControlLines(true, false);
+
+        assertEquals(Arrays.asList(
+                "41 00 0001 0000",
+                "41 03 0800 0000",
+                "41 1e 0000 0000 80250000",
+                "41 03 0800 0000",
+                "41 12 000f 0000",
+                "41 07 0301 0000"
+        ), control.takeTransfers());
+    }
+
+    @Test
+    public void secondPort() throws IOException {
+        RecordingUsbControl control = new RecordingUsbControl();
+        Cp210xSerialDriver driver = new Cp210xSerialDriver(control, 1);
+        driver.setBaudRate(115200);
+
+        assertEquals(Arrays.asList(
+                "41 1e 0000 0001 00c20100",
+                "41 03 0800 0001"
+        ), control.takeTransfers());
+    }
+}
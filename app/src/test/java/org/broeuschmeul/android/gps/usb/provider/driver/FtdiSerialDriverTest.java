@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the requests of the FTDI driver against the ones libftdi and the Linux ftdi_sio
+ * driver send.
+ */
+public class FtdiSerialDriverTest {
+
+    private static RecordingUsbControl open(FtdiSerialDriver[] driver, int bcdDevice, int interfaceIndex)
+            throws IOException {
+        RecordingUsbControl control = new RecordingUsbControl(
+                RecordingUsbControl.deviceDescriptor(0, 8, bcdDevice));
+        driver[0] = new FtdiSerialDriver(control, interfaceIndex);
+        driver[0].open();
+        return control;
+    }
+
+    @Test
+    public void openFt232r() throws IOException {
+        FtdiSerialDriver[] driver = new FtdiSerialDriver[1];
+        RecordingUsbControl control = open(driver, 0x0600, 0);
+
+        assertEquals("FT232R", driver[0].getName());
+        assertEquals(Arrays.asList(
+                "40 00 0000 0000",
+                "40 04 0008 0000",
+                "40 09 0002 0000"
+        ), control.takeTransfers());
+    }
+
+    @Test
+    public void baudRatesOfSinglePortChip() throws IOException {
+        FtdiSerialDriver[] driver = new FtdiSerialDriver[1];
+        RecordingUsbControl control = open(driver, 0x0600, 0);
+        control.takeTransfers();
+
+        driver[0].setBaudRate(9600);
+        driver[0].setBaudRate(38400);
+        driver[0].setBaudRate(57600);
+        driver[0].setBaudRate(115200);
+        // 208.375, the fraction sets the bit 16 of the divisor
+        driver[0].setBaudRate(14400);
+        assertEquals(Arrays.asList(
+                "40 03 4138 0000", "40 04 0008 0000",
+                "40 03 c04e 0000", "40 04 0008 0000",
+                "40 03 c034 0000", "40 04 0008 0000",
+                "40 03 001a 0000", "40 04 0008 0000",
+                "40 03 00d0 0001", "40 04 0008 0000"
+        ), control.takeTransfers());
+    }
+
+    @Test
+    public void baudRatesOfMultiPortChip() throws IOException {
+        FtdiSerialDriver[] driver = new FtdiSerialDriver[1];
+        RecordingUsbControl control = open(driver, 0x0700, 1);
+        control.takeTransfers();
+
+        driver[0].setBaudRate(115200);
+        driver[0].setBaudRate(14400);
+        assertEquals(Arrays.asList(
+                "40 03 001a 0002", "40 04 0008 0002",
+                "40 03 00d0 0102", "40 04 0008 0002"
+        ), control.takeTransfers());
+    }
+
+    @Test
+    public void baudRateOfFtx() throws IOException {
+        FtdiSerialDriver[] driver = new FtdiSerialDriver[1];
+        RecordingUsbControl control = open(driver, 0x1000, 0);
+        control.takeTransfers();
+
+        driver[0].setBaudRate(14400);
+        assertEquals(Arrays.asList(
+                "40 03 00d0 0101", "40 04 0008 0001"
+        ), control.takeTransfers());
+    }
+
+    @Test
+    public void purgeAndControl() throws IOException {
+        FtdiSerialDriver[] driver = new FtdiSerialDriver[1];
+        RecordingUsbControl control = open(driver, 0x0600, 0);
+        control.takeTransfers();
+
+        driver[0].purge();
+        driver[0].setControlLines(true, true);
+        driver[0].setFlowControl(true);
+        assertEquals(Arrays.asList(
+                "40 00 0001 0000",
+                "40 00 0002 0000",
+                "40 01 0101 0000",
+                "40 01 0202 0000",
+                "40 02 0000 0100"
+        ), control.takeTransfers());
+    }
+}
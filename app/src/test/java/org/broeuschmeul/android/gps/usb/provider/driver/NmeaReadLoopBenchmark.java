@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+/**
+ * Reports the throughput of the read path over the transports that don't need a device,
+ * with the checks of {@link NmeaReadLoopTest} on a much longer recording.
+ * <p>
+ * Not a test, so the test task doesn't run it: run its {@link #main(String[])} by hand.
+ */
+public class NmeaReadLoopBenchmark {
+
+    private static final int SENTENCES = 200000;
+
+    private static void report(String name, NmeaReadLoopTest test, long elapsed) {
+        System.out.println(name + ": " + test.sentences * 1000000000L / elapsed + " sentences/s, " +
+                test.recordingSize * 1000L / elapsed + " MB/s, " + test.lastStats);
+    }
+
+    public static void main(String[] args) throws Exception {
+        NmeaReadLoopTest test = new NmeaReadLoopTest(SENTENCES);
+        test.record();
+        try {
+            long start = System.nanoTime();
+            test.fileReplay();
+            report("File replay", test, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            test.tcp();
+            report("TCP", test, System.nanoTime() - start);
+
+            // last, it throws where named pipes aren't available
+            start = System.nanoTime();
+            test.namedPipe();
+            report("Named pipe", test, System.nanoTime() - start);
+        } finally {
+            test.deleteRecording();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the read path over the transports that don't need a device.
+ * <p>
+ * The recorded sentences are numbered, so that a sentence lost, doubled or mangled anywhere
+ * between the transport and the framer is caught.
+ *
+ * @see NmeaReadLoopBenchmark
+ */
+public class NmeaReadLoopTest {
+
+    private static final int SENTENCES = 300;
+
+    // more sentences are recorded by the benchmark
+    final int sentences;
+    File recording;
+    long recordingSize;
+    // stats of the transport of the last read
+    TransportStats lastStats;
+
+    public NmeaReadLoopTest() {
+        this(SENTENCES);
+    }
+
+    NmeaReadLoopTest(int sentences) {
+        this.sentences = sentences;
+    }
+
+    @Before
+    public void record() throws IOException {
+        recording = File.createTempFile("nmea", ".log");
+        OutputStream out = new FileOutputStream(recording);
+        try {
+            StringBuilder block = new StringBuilder();
+            for (int i = 0; i < sentences; i++) {
+                block.append(sentence(i));
+                if (block.length() > 60000) {
+                    out.write(block.toString().getBytes("US-ASCII"));
+                    block.setLength(0);
+                }
+            }
+            out.write(block.toString().getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        recordingSize = recording.length();
+    }
+
+    @After
+    public void deleteRecording() {
+        recording.delete();
+    }
+
+    private static String sentence(int number) {
+        String body = "GPTXT,01,01,02," + number;
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            checksum ^= body.charAt(i);
+        }
+        return "$" + body + "*" + String.format("%02X", checksum) + "\r\n";
+    }
+
+    /**
+     * Checks that the sentences come whole and in order.
+     */
+    private static class CountingHandler implements NmeaReadLoop.Handler {
+        long bytes = 0;
+        int sentences = 0;
+        int errors = 0;
+
+        @Override
+        public void onData(byte[] buffer, int offset, int length) {
+            bytes += length;
+        }
+
+        @Override
+        public boolean onSentence(byte[] buffer, int start, int end, long timestamp) {
+            int checksum = 0;
+            int i = start + 1;
+            for (; buffer[i] != '*'; i++) {
+                checksum ^= buffer[i];
+            }
+            int number = 0;
+            for (int j = i - 1; buffer[j] != ','; j--) {
+                number += (buffer[j] - '0') * pow10(i - 1 - j);
+            }
+            int given = Integer.parseInt(new String(buffer, i + 1, 2), 16);
+            if (given != checksum || number != sentences) {
+                errors++;
+                return false;
+            }
+            sentences++;
+            return true;
+        }
+
+        private static int pow10(int n) {
+            int p = 1;
+            while (n-- > 0) {
+                p *= 10;
+            }
+            return p;
+        }
+
+        @Override
+        public void onIdle() {
+        }
+
+        @Override
+        public long getReadTimeout() {
+            return 1000;
+        }
+    }
+
+    private void readAll(GpsTransport transport) throws IOException {
+        CountingHandler handler = new CountingHandler();
+        NmeaReadLoop loop = new NmeaReadLoop(transport, handler);
+        transport.open();
+        int end;
+        try {
+            end = loop.run(10000, 10000);
+        } finally {
+            transport.close();
+        }
+        lastStats = transport.getStats();
+
+        assertEquals(NmeaReadLoop.LINK_CLOSED, end);
+        assertEquals(recordingSize, handler.bytes);
+        assertEquals(sentences, handler.sentences);
+        assertEquals(0, handler.errors);
+        assertEquals(sentences, loop.getFramer().getSentenceCount());
+        assertEquals(0, loop.getFramer().getDroppedCount());
+        assertEquals(0, loop.getFramer().getGarbageCount());
+    }
+
+    @Test
+    public void fileReplay() throws IOException {
+        readAll(new FileReplayTransport(recording));
+    }
+
+    @Test
+    public void tcp() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        Thread sender = new Thread("NMEA server") {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    try {
+                        copy(recording, socket.getOutputStream());
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // the reader fails the test
+                }
+            }
+        };
+        sender.start();
+        try {
+            readAll(new TcpGpsTransport(server.getLocalPort()));
+        } finally {
+            server.close();
+            sender.join();
+        }
+    }
+
+    @Test
+    public void namedPipe() throws Exception {
+        final File pipe = new File(recording.getPath() + ".fifo");
+        boolean created;
+        try {
+            created = new ProcessBuilder("mkfifo", pipe.getPath()).start().waitFor() == 0;
+        } catch (IOException e) {
+            created = false;
+        }
+        Assume.assumeTrue("no named pipes on this system", created);
+        Thread sender = new Thread("NMEA pipe writer") {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = new FileOutputStream(pipe);
+                    try {
+                        copy(recording, out);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    // the reader fails the test
+                }
+            }
+        };
+        sender.start();
+        try {
+            readAll(new NamedPipeTransport(pipe, null));
+        } finally {
+            sender.join();
+            pipe.delete();
+        }
+    }
+
+    @Test
+    public void silentGpsEndsTheLoop() throws IOException {
+        CountingHandler handler = new CountingHandler() {
+            @Override
+            public long getReadTimeout() {
+                return 10;
+            }
+        };
+        FileReplayTransport transport = new FileReplayTransport(recording, 0, true) {
+            @Override
+            protected InputStream openInput() {
+                return new InputStream() {
+                    @Override
+                    public int read() {
+                        return 'x';
+                    }
+                };
+            }
+        };
+        NmeaReadLoop loop = new NmeaReadLoop(transport, handler);
+        transport.open();
+        try {
+            assertEquals(NmeaReadLoop.SILENT, loop.run(200, 100));
+        } finally {
+            transport.close();
+        }
+        assertEquals(0, handler.sentences);
+        assertTrue(loop.getFramer().getGarbageCount() > 0);
+    }
+
+    private static void copy(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int nb;
+            while ((nb = in.read(buffer)) > 0) {
+                out.write(buffer, 0, nb);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
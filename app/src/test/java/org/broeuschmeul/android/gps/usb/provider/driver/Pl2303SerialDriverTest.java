@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the requests of the PL2303 driver against the ones the Linux pl2303 driver sends.
+ */
+public class Pl2303SerialDriverTest {
+
+    @Test
+    public void openHx() throws IOException {
+        RecordingUsbControl control = new RecordingUsbControl(
+                RecordingUsbControl.deviceDescriptor(0, 64, 0x0300));
+        Pl2303SerialDriver driver = new Pl2303SerialDriver(control, 0);
+        driver.open();
+
+        assertEquals("PL2303HX", driver.getName());
+        assertEquals(Arrays.asList(
+                "c0 01 8484 0000",
+                "40 01 0404 0000",
+                "c0 01 8484 0000",
+                "c0 01 8383 0000",
+                "c0 01 8484 0000",
+                "40 01 0404 0001",
+                "c0 01 8484 0000",
+                "c0 01 8383 0000",
+                "40 01 0000 0001",
+                "40 01 0001 0000",
+                "40 01 0002 0044",
+                "21 22 0000 0000"
+        ), control.takeTransfers());
+    }
+
+    @Test
+    public void openType0() throws IOException {
+        RecordingUsbControl control = new RecordingUsbControl(
+                RecordingUsbControl.deviceDescriptor(0x02, 8, 0x0300));
+        Pl2303SerialDriver driver = new Pl2303SerialDriver(control, 0);
+        driver.open();
+
+        assertEquals("PL2303", driver.getName());
+        assertEquals("40 01 0002 0024", control.takeTransfers().get(10));
+    }
+
+    @Test
+    public void baudRateAndPurge() throws IOException {
+        RecordingUsbControl control = new RecordingUsbControl(
+                RecordingUsbControl.deviceDescriptor(0, 64, 0x0300));
+        Pl2303SerialDriver driver = new Pl2303SerialDriver(control, 0);
+        driver.open();
+        control.takeTransfers();
+
+        driver.setBaudRate(4800);
+        driver.purge();
+        driver.setFlowControl(true);
+        assertEquals(Arrays.asList(
+                "21 20 0000 0000 c0120000000008",
+                "40 01 0008 0000",
+                "40 01 0009 0000",
+                "40 01 0000 0061"
+        ), control.takeTransfers());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link UsbControl} recording the control transfers of a driver, so that they can be
+ * compared with the traces of a reference driver.
+ * <p>
+ * Each transfer is recorded as "requestType request value index", in hexadecimal,
+ * followed by the data sent for the OUT transfers that have some, e.g. "40 03 4138 0000".
+ * The IN transfers read zeros.
+ */
+class RecordingUsbControl implements UsbControl {
+
+    private final byte[] descriptors;
+    private final List<String> transfers = new ArrayList<>();
+
+    RecordingUsbControl() {
+        this(null);
+    }
+
+    /**
+     * @param descriptors the raw descriptors of the device
+     */
+    RecordingUsbControl(byte[] descriptors) {
+        this.descriptors = descriptors;
+    }
+
+    /**
+     * @return the 18 bytes device descriptor of a device
+     */
+    static byte[] deviceDescriptor(int deviceClass, int maxPacketSize0, int bcdDevice) {
+        byte[] descriptor = new byte[18];
+        descriptor[0] = 18;
+        descriptor[1] = 1;
+        descriptor[4] = (byte) deviceClass;
+        descriptor[7] = (byte) maxPacketSize0;
+        descriptor[12] = (byte) bcdDevice;
+        descriptor[13] = (byte) (bcdDevice >> 8);
+        return descriptor;
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index,
+                               byte[] buffer, int length, int timeout) {
+        StringBuilder transfer = new StringBuilder(String.format("%02x %02x %04x %04x",
+                requestType, request, value, index));
+        if ((requestType & 0x80) == 0 && buffer != null && length > 0) {
+            transfer.append(' ');
+            for (int i = 0; i < length; i++) {
+                transfer.append(String.format("%02x", buffer[i] & 0xFF));
+            }
+        } else if (buffer != null) {
+            for (int i = 0; i < length; i++) {
+                buffer[i] = 0;
+            }
+        }
+        transfers.add(transfer.toString());
+        return length;
+    }
+
+    @Override
+    public byte[] getRawDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * @return the transfers recorded since the last call
+     */
+    List<String> takeTransfers() {
+        List<String> recorded = new ArrayList<>(transfers);
+        transfers.clear();
+        return recorded;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.driver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class UsbSerialDriverTest {
+
+    private static Class<?> driverFor(int vendorId, int productId) {
+        return UsbSerialDriver.forDevice(vendorId, productId, new RecordingUsbControl(), 0).getClass();
+    }
+
+    @Test
+    public void driverByVendorAndProduct() {
+        assertEquals(FtdiSerialDriver.class, driverFor(0x0403, 0x6001));
+        assertEquals(FtdiSerialDriver.class, driverFor(0x0403, 0x6015));
+        assertEquals(Pl2303SerialDriver.class, driverFor(0x067B, 0x2303));
+        assertEquals(Cp210xSerialDriver.class, driverFor(0x10C4, 0xEA60));
+        assertEquals(Ch34xSerialDriver.class, driverFor(0x1A86, 0x7523));
+        // u-blox, native USB
+        assertEquals(CdcAcmSerialDriver.class, driverFor(0x1546, 0x01A7));
+    }
+
+    @Test
+    public void unknownProductOfKnownVendorIsCdcAcm() {
+        assertEquals(CdcAcmSerialDriver.class, driverFor(0x1A86, 0x55D4));
+        assertEquals(CdcAcmSerialDriver.class, driverFor(0x0403, 0x1234));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2010, 2011, 2012 Herbert von Broeuschmeul
+ * Copyright (C) 2010, 2011, 2012 BluetoothGPS4Droid Project
+ * Copyright (C) 2011, 2012 UsbGPS4Droid Project
+ *
+ * This file is part of UsbGPS4Droid.
+ *
+ * UsbGPS4Droid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * UsbGPS4Droid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with UsbGPS4Droid. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.broeuschmeul.android.gps.usb.provider.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SentenceRingTest {
+
+    private static final int SENTENCES = 500000;
+
+    /**
+     * Fills a sentence with bytes all derived from its number, so that a torn copy shows.
+     */
+    private static int fill(byte[] buffer, long number) {
+        int length = 16 + (int) (number % 64);
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte) (number + i);
+        }
+        return length;
+    }
+
+    private static class CheckingHandler implements SentenceRing.Handler {
+        volatile long delivered = 0;
+        volatile long torn = 0;
+        private final boolean slow;
+
+        CheckingHandler(boolean slow) {
+            this.slow = slow;
+        }
+
+        @Override
+        public void onSentence(byte[] buffer, int length, long timestamp) {
+            byte[] expected = new byte[128];
+            if (fill(expected, timestamp) != length) {
+                torn++;
+            } else {
+                for (int i = 0; i < length; i++) {
+                    if (buffer[i] != expected[i]) {
+                        torn++;
+                        break;
+                    }
+                }
+            }
+            delivered++;
+            if (slow && timestamp % 1000 == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static void publishAll(SentenceRing ring) {
+        byte[] buffer = new byte[128];
+        for (long i = 0; i < SENTENCES; i++) {
+            int length = fill(buffer, i);
+            // the timestamp carries the number of the sentence
+            assertTrue(ring.publish(buffer, 0, length, i));
+        }
+    }
+
+    private static void awaitDrained(SentenceRing.Subscription subscription) throws InterruptedException {
+        for (int i = 0; i < 500 && subscription.getLag() > 0; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void laggingSubscriptionNeverGetsTornSentences() throws InterruptedException {
+        SentenceRing ring = new SentenceRing(16, 128);
+        CheckingHandler handler = new CheckingHandler(true);
+        SentenceRing.Subscription subscription = ring.subscribe(handler, "checker");
+        publishAll(ring);
+        awaitDrained(subscription);
+        ring.close();
+
+        assertEquals(0, handler.torn);
+        assertEquals(SENTENCES, subscription.getDelivered() + subscription.getDropped());
+    }
+
+    @Test
+    public void blockingSubscriptionGetsEverySentence() throws InterruptedException {
+        SentenceRing ring = new SentenceRing(16, 128);
+        CheckingHandler handler = new CheckingHandler(true);
+        SentenceRing.Subscription subscription =
+                ring.subscribe(handler, "checker", SentenceRing.POLICY_BLOCK, 1000);
+        publishAll(ring);
+        awaitDrained(subscription);
+        ring.close();
+
+        assertEquals(0, handler.torn);
+        assertEquals(SENTENCES, subscription.getDelivered());
+        assertEquals(0, subscription.getDropped());
+    }
+
+    @Test
+    public void conflatingSubscriptionFinishesItsGroupFirst() throws InterruptedException {
+        SentenceRing ring = new SentenceRing(16, 128);
+        final List<Long> received = new ArrayList<>();
+        final CountDownLatch inGroup = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        SentenceRing.Subscription subscription = ring.subscribe(new SentenceRing.Handler() {
+            @Override
+            public void onSentence(byte[] buffer, int length, long timestamp) {
+                synchronized (received) {
+                    received.add(timestamp);
+                }
+                if (timestamp == 1) {
+                    // in the middle of the first group while the next ones are published
+                    inGroup.countDown();
+                    try {
+                        resume.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, "checker", SentenceRing.POLICY_CONFLATE_LATEST, 0);
+
+        // groups of 4 sentences
+        byte[] buffer = new byte[128];
+        for (long i = 0; i < 12; i++) {
+            int length = fill(buffer, i);
+            ring.publish(buffer, 0, length, i, i % 4 == 0);
+            if (i == 1) {
+                assertTrue(inGroup.await(5, TimeUnit.SECONDS));
+            }
+        }
+        resume.countDown();
+        awaitDrained(subscription);
+        ring.close();
+
+        synchronized (received) {
+            assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 8L, 9L, 10L, 11L), received);
+        }
+        assertEquals(4, subscription.getConflated());
+        assertEquals(0, subscription.getDropped());
+    }
+}